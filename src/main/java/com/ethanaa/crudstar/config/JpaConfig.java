@@ -0,0 +1,37 @@
+package com.ethanaa.crudstar.config;
+
+import org.springframework.boot.autoconfigure.orm.jpa.JpaProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.orm.jpa.JpaVendorAdapter;
+import org.springframework.orm.jpa.vendor.HibernateJpaDialect;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+
+@Configuration
+public class JpaConfig {
+
+    // set up like boot's own adapter, only with a dialect that supports nested transactions
+    @Bean
+    public JpaVendorAdapter jpaVendorAdapter(JpaProperties jpaProperties) {
+
+        HibernateJpaDialect jpaDialect = new SavepointHibernateJpaDialect();
+        HibernateJpaVendorAdapter jpaVendorAdapter = new HibernateJpaVendorAdapter() {
+
+            @Override
+            public HibernateJpaDialect getJpaDialect() {
+                return jpaDialect;
+            }
+        };
+
+        jpaVendorAdapter.setShowSql(jpaProperties.isShowSql());
+        if (jpaProperties.getDatabase() != null) {
+            jpaVendorAdapter.setDatabase(jpaProperties.getDatabase());
+        }
+        if (jpaProperties.getDatabasePlatform() != null) {
+            jpaVendorAdapter.setDatabasePlatform(jpaProperties.getDatabasePlatform());
+        }
+        jpaVendorAdapter.setGenerateDdl(jpaProperties.isGenerateDdl());
+
+        return jpaVendorAdapter;
+    }
+}
@@ -0,0 +1,45 @@
+package com.ethanaa.crudstar.config;
+
+import com.ethanaa.crudstar.repository.PatientHistoryEntityRepository;
+import com.ethanaa.crudstar.service.PatientService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Turns the patient_history trigger (schema.sql) on when the history is read, off and emptied otherwise. Only
+ * the history replay mode needs the table, keeping it costs a jsonb_patch and a full indexed document per patch.
+ */
+@Component
+public class PatientHistoryInitializer {
+
+    private PatientHistoryEntityRepository patientHistoryEntityRepository;
+    private boolean enabled;
+
+    @Autowired
+    public PatientHistoryInitializer(PatientHistoryEntityRepository patientHistoryEntityRepository,
+                                     @Value("${crudstar.replay:jvm}") PatientService.ReplayMode replayMode,
+                                     @Value("${crudstar.history-table:false}") boolean historyTable) {
+
+        this.patientHistoryEntityRepository = patientHistoryEntityRepository;
+        this.enabled = replayMode == PatientService.ReplayMode.HISTORY || historyTable;
+    }
+
+    // one transaction, the trigger's table lock holds off patch inserts until the backfill has caught up
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional
+    public void initHistory() {
+
+        if (enabled) {
+            patientHistoryEntityRepository.enableTrigger();
+            patientHistoryEntityRepository.backfill();
+        } else {
+            // emptied so that enabling it later backfills every patient from scratch
+            patientHistoryEntityRepository.disableTrigger();
+            patientHistoryEntityRepository.truncate();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.ethanaa.crudstar.config;
+
+import org.hibernate.Session;
+import org.springframework.orm.jpa.vendor.HibernateJpaDialect;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.SavepointManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.TransactionSystemException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+
+/**
+ * Hibernate's dialect doesn't hand Spring the savepoints of the transaction's JDBC connection, so a PROPAGATION_NESTED
+ * transaction can't start under the JPA transaction manager. This one does. Rolling back to a savepoint clears the
+ * persistence context too, it can still hold the changes that were rolled back, so whatever should outlive a nested
+ * transaction's rollback has to be flushed before it starts.
+ */
+public class SavepointHibernateJpaDialect extends HibernateJpaDialect {
+
+    @Override
+    public Object beginTransaction(EntityManager entityManager, TransactionDefinition definition)
+            throws PersistenceException, SQLException, TransactionException {
+
+        return new SavepointTransactionData(super.beginTransaction(entityManager, definition), entityManager);
+    }
+
+    @Override
+    public void cleanupTransaction(Object transactionData) {
+
+        super.cleanupTransaction(transactionData instanceof SavepointTransactionData ?
+                ((SavepointTransactionData) transactionData).transactionData : transactionData);
+    }
+
+    private static class SavepointTransactionData implements SavepointManager {
+
+        private final Object transactionData;
+        private final EntityManager entityManager;
+
+        private SavepointTransactionData(Object transactionData, EntityManager entityManager) {
+
+            this.transactionData = transactionData;
+            this.entityManager = entityManager;
+        }
+
+        @Override
+        public Object createSavepoint() throws TransactionException {
+
+            try {
+                return session().doReturningWork(connection -> connection.setSavepoint());
+            } catch (PersistenceException e) {
+                throw new CannotCreateTransactionException("Could not create JDBC savepoint", e);
+            }
+        }
+
+        @Override
+        public void rollbackToSavepoint(Object savepoint) throws TransactionException {
+
+            try {
+                session().doWork(connection -> connection.rollback((Savepoint) savepoint));
+                entityManager.clear();
+            } catch (PersistenceException e) {
+                throw new TransactionSystemException("Could not roll back to JDBC savepoint", e);
+            }
+        }
+
+        @Override
+        public void releaseSavepoint(Object savepoint) throws TransactionException {
+
+            try {
+                session().doWork(connection -> connection.releaseSavepoint((Savepoint) savepoint));
+            } catch (PersistenceException e) {
+                // the savepoint goes away with the transaction anyway
+            }
+        }
+
+        private Session session() {
+            return entityManager.unwrap(Session.class);
+        }
+    }
+}
@@ -1,34 +1,51 @@
 package com.ethanaa.crudstar.controller;
 
 import com.ethanaa.crudstar.model.api.*;
+import com.ethanaa.crudstar.model.api.exception.InvalidSamplingException;
+import com.ethanaa.crudstar.model.api.exception.PatientVersionConflictException;
 import com.ethanaa.crudstar.model.assembler.*;
+import com.ethanaa.crudstar.model.persist.patient.FieldBlame;
 import com.ethanaa.crudstar.model.persist.patient.Patient;
 import com.ethanaa.crudstar.model.persist.patient.PatientEntity;
 import com.ethanaa.crudstar.model.persist.patient.PatientSnapshotEntity;
 import com.ethanaa.crudstar.model.persist.patient.patch.PatientPatchEntity;
+import com.ethanaa.crudstar.repository.PatientPatchEntityRepository;
+import com.ethanaa.crudstar.service.PatientGroupCommitter;
 import com.ethanaa.crudstar.service.PatientService;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.web.PagedResourcesAssembler;
 import org.springframework.format.annotation.DateTimeFormat;
-import org.springframework.hateoas.CollectionModel;
+import org.springframework.hateoas.IanaLinkRelations;
 import org.springframework.hateoas.Link;
 import org.springframework.hateoas.PagedModel;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
-
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.function.Consumer;
 
 // http://localhost:8080/swagger-ui/index.html#/
 @Tag(name = "Patient", description = "Patient management APIs")
@@ -38,29 +55,45 @@ public class PatientController {
 
 
     private PatientService patientService;
+    private PatientGroupCommitter patientGroupCommitter;
     private PatientModelAssembler patientModelAssembler;
     private PatientModelAsOfAssembler patientModelAsOfAssembler;
     private PatientModelSnapshotAssembler patientModelSnapshotAssembler;
     private PatientSnapshotModelAssembler patientSnapshotModelAssembler;
     private PatientPatchModelAssembler patientPatchModelAssembler;
+    private PatientVersionModelAssembler patientVersionModelAssembler;
+    private PatientFieldChangeModelAssembler patientFieldChangeModelAssembler;
     private ObjectMapper objectMapper;
 
+    private long versionStreamTimeoutMillis;
+    private long rollbackTimeoutMillis;
+
     @Autowired
     public PatientController(PatientService patientService,
+                             PatientGroupCommitter patientGroupCommitter,
                              PatientModelAssembler patientModelAssembler,
                              PatientModelAsOfAssembler patientModelAsOfAssembler,
                              PatientModelSnapshotAssembler patientModelSnapshotAssembler,
                              PatientSnapshotModelAssembler patientSnapshotModelAssembler,
                              PatientPatchModelAssembler patientPatchModelAssembler,
-                             ObjectMapper objectMapper) {
+                             PatientVersionModelAssembler patientVersionModelAssembler,
+                             PatientFieldChangeModelAssembler patientFieldChangeModelAssembler,
+                             ObjectMapper objectMapper,
+                             @Value("${crudstar.versions.stream-timeout-millis:1800000}") long versionStreamTimeoutMillis,
+                             @Value("${crudstar.rollback.timeout-millis:1800000}") long rollbackTimeoutMillis) {
 
         this.patientService = patientService;
+        this.patientGroupCommitter = patientGroupCommitter;
         this.patientModelAssembler = patientModelAssembler;
         this.patientModelAsOfAssembler = patientModelAsOfAssembler;
         this.patientModelSnapshotAssembler = patientModelSnapshotAssembler;
         this.patientSnapshotModelAssembler = patientSnapshotModelAssembler;
         this.patientPatchModelAssembler = patientPatchModelAssembler;
+        this.patientVersionModelAssembler = patientVersionModelAssembler;
+        this.patientFieldChangeModelAssembler = patientFieldChangeModelAssembler;
         this.objectMapper = objectMapper;
+        this.versionStreamTimeoutMillis = versionStreamTimeoutMillis;
+        this.rollbackTimeoutMillis = rollbackTimeoutMillis;
     }
 
     @Operation(
@@ -93,10 +126,17 @@ public class PatientController {
 
     @Operation(
             summary = "Create multiple Patients",
-            description = "Create multiple Patients by providing a list of the Patients as JSON",
+            description = "Create multiple Patients by providing a list of the Patients as JSON. With copy the " +
+                    "Patients are bulk loaded with COPY and the load's throughput is returned",
             tags = { "patients", "create", "batch" })
     @PostMapping(path = "/batch", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<Void> createPatients(@RequestBody List<Patient> patients) {
+    public ResponseEntity<IngestReport> createPatients(
+            @RequestParam(name = "copy", defaultValue = "false") boolean copy,
+            @RequestBody List<Patient> patients) {
+
+        if (copy) {
+            return ResponseEntity.status(HttpStatus.CREATED).body(patientService.ingest(patients));
+        }
 
         patientService.create(patients);
 
@@ -149,11 +189,22 @@ public class PatientController {
     public ResponseEntity<PagedModel<PatientModel>> getPatientSnapshots(
             Pageable pageable,
             @PathVariable UUID snapshotId,
+            @RequestParam(name = "query", required = false) String query,
+            @RequestParam(name = "filters", required = false) String filtersJson,
             @RequestParam(name = "asOf", required = false)
             @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime asOf,
+            @RequestParam(name = "cursor", required = false) String cursor,
             PagedResourcesAssembler<Snapshot<PatientEntity>> pagedResourcesAssemblerSnapshot) {
 
-        Page<Snapshot<PatientEntity>> patientsPage = patientService.getSnapshot(pageable, snapshotId, asOf);
+        List<ApiFilter> filters = readFilters(filtersJson);
+
+        CursorPage<Snapshot<PatientEntity>> patientsPage;
+        if (StringUtils.hasText(query) || !filters.isEmpty()) {
+            patientsPage = patientService.searchSnapshot(query, pageable, filters, snapshotId, asOf);
+        } else {
+            patientsPage = patientService.getSnapshot(pageable, snapshotId, asOf,
+                    StringUtils.hasText(cursor) ? PageCursor.decode(cursor) : null);
+        }
 
         PagedModel<PatientModel> patientModelsPage = pagedResourcesAssemblerSnapshot
                 .toModel(patientsPage, patientModelSnapshotAssembler);
@@ -165,6 +216,7 @@ public class PatientController {
                 }
             }
         }
+        addCursorLinks(patientModelsPage, patientsPage);
 
         return ResponseEntity.ok(patientModelsPage);
     }
@@ -180,12 +232,20 @@ public class PatientController {
             @RequestParam(name = "filters", required = false) String filtersJson,
             @RequestParam(name = "asOf", required = false)
             @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime asOf,
+            @RequestParam(name = "cursor", required = false) String cursor,
             PagedResourcesAssembler<LatestVersion<PatientEntity>> pagedResourcesAssembler,
             PagedResourcesAssembler<Version<PatientEntity>> pagedResourcesAssemblerAsOf) {
 
+        List<ApiFilter> filters = readFilters(filtersJson);
+
         if (asOf != null) {
-            // TODO some way to apply query and filters to asOf results?
-            Page<Version<PatientEntity>> patientsPage = patientService.getAsOfDateTime(pageable, asOf);
+            CursorPage<Version<PatientEntity>> patientsPage;
+            if (StringUtils.hasText(query) || !filters.isEmpty()) {
+                patientsPage = patientService.searchAsOfDateTime(query, pageable, filters, asOf);
+            } else {
+                patientsPage = patientService.getAsOfDateTime(pageable, asOf,
+                        StringUtils.hasText(cursor) ? PageCursor.decode(cursor) : null);
+            }
 
             PagedModel<PatientModel> patientModelsPage = pagedResourcesAssemblerAsOf
                     .toModel(patientsPage, patientModelAsOfAssembler);
@@ -195,19 +255,11 @@ public class PatientController {
                     patientModelsPage.mapLink(pageLink.getRel(), link -> link.withHref(link.getHref() + "&asOf=" + asOf));
                 }
             }
+            addCursorLinks(patientModelsPage, patientsPage);
 
             return ResponseEntity.ok(patientModelsPage);
         }
 
-        List<ApiFilter> filters = new ArrayList<>();
-        if (StringUtils.hasText(filtersJson)) {
-            try {
-                filters = objectMapper.readValue(filtersJson, new TypeReference<>() {});
-            } catch (JsonProcessingException e) {
-                e.printStackTrace();
-            }
-        }
-
         Page<LatestVersion<PatientEntity>> patientsPage = patientService.get(pageable, query, filters);
 
         PagedModel<PatientModel> patientModelsPage = pagedResourcesAssembler.toModel(patientsPage, patientModelAssembler);
@@ -233,7 +285,8 @@ public class PatientController {
 
         LatestVersion<PatientEntity> patientEntity = patientService.get(patientId);
 
-        return ResponseEntity.ok(patientModelAssembler.toModel(patientEntity));
+        return ResponseEntity.ok().eTag(Long.toString(patientEntity.getVersion()))
+                .body(patientModelAssembler.toModel(patientEntity));
     }
 
     @Operation(
@@ -276,6 +329,23 @@ public class PatientController {
         return ResponseEntity.ok(patientModelAsOfAssembler.toModel(patientEntity));
     }
 
+    @Operation(
+            summary = "Get multiple Patients as of different times",
+            description = "Get multiple Patients, each as of its own DateTime and / or version, by providing a list " +
+                    "of Patient UUIDs with an asOf and / or a version as JSON. Patients come back in the order " +
+                    "they were asked for",
+            tags = { "patients", "get", "asOf", "version", "batch" })
+    @PostMapping(path = "/asOf", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<PatientModel>> getPatientsAsOf(@RequestBody List<VersionRequest> versionRequests) {
+
+        List<PatientModel> patientModels = new ArrayList<>();
+        for (Version<PatientEntity> patientEntity : patientService.getAsOf(versionRequests)) {
+            patientModels.add(patientModelAsOfAssembler.toModel(patientEntity));
+        }
+
+        return ResponseEntity.ok(patientModels);
+    }
+
     @Operation(
             summary = "Get a Patient version for a Snapshot",
             description = "Get a Patient as seen by the Snapshot and as of some version by providing the Patient UUID, " +
@@ -292,32 +362,90 @@ public class PatientController {
     }
 
     @Operation(
-            summary = "Get all Patient versions",
-            description = "Get a Patient as of every version by providing the Patient UUID",
-            tags = { "patients", "get", "version" })
+            summary = "Get Patient versions",
+            description = "Get a Page of a Patient's versions by providing the Patient UUID. Each version has its " +
+                    "number, timestamp, snapshot and patch size, include=body adds the Patient as of the version",
+            tags = { "patients", "get", "version", "pageable" })
     @GetMapping(path = "/{patientId}/version", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<CollectionModel<PatientModel>> getPatientVersions(@PathVariable UUID patientId) {
+    public ResponseEntity<PagedModel<VersionModel>> getPatientVersions(
+            @PathVariable UUID patientId,
+            @RequestParam(name = "include", required = false) String include,
+            Pageable pageable,
+            PagedResourcesAssembler<VersionSummary> pagedResourcesAssembler) {
 
-        Map<String, List<Version<PatientEntity>>> patientVersions =
-                patientService.getVersions(Collections.singletonList(patientId));
+        Page<VersionSummary> versionPage = patientService.getVersionSummaries(pageable, patientId,
+                "body".equals(include));
 
-        return ResponseEntity.ok(
-                patientModelAsOfAssembler.toCollectionModel(patientVersions.get(patientId.toString())));
+        return ResponseEntity.ok(pagedResourcesAssembler.toModel(versionPage, patientVersionModelAssembler));
     }
 
     @Operation(
-            summary = "Get all Patient versions for a Snapshot",
-            description = "Get a Patient as seen by the Snapshot as of every version by providing the Patient UUID " +
-                    "and the Snapshot UUID",
-            tags = { "patients", "snapshot", "get", "version" })
+            summary = "Get Patient versions for a Snapshot",
+            description = "Get a Page of a Patient's versions as seen by the Snapshot by providing the Patient UUID " +
+                    "and the Snapshot UUID. include=body adds the Patient as of the version",
+            tags = { "patients", "snapshot", "get", "version", "pageable" })
     @GetMapping(path = "/{patientId}/snapshot/{snapshotId}/version", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<CollectionModel<PatientModel>> getPatientSnapshotVersions(@PathVariable UUID patientId,
-                                                                                    @PathVariable UUID snapshotId) {
+    public ResponseEntity<PagedModel<VersionModel>> getPatientSnapshotVersions(
+            @PathVariable UUID patientId,
+            @PathVariable UUID snapshotId,
+            @RequestParam(name = "include", required = false) String include,
+            Pageable pageable,
+            PagedResourcesAssembler<VersionSummary> pagedResourcesAssembler) {
+
+        Page<VersionSummary> versionPage = patientService.getVersionSummaries(pageable, patientId, snapshotId,
+                "body".equals(include));
+
+        return ResponseEntity.ok(pagedResourcesAssembler.toModel(versionPage, patientVersionModelAssembler));
+    }
+
+    @Operation(
+            summary = "Export all Patient versions",
+            description = "Stream every version of a Patient as newline delimited JSON by providing the Patient UUID",
+            tags = { "patients", "get", "version", "export" })
+    @GetMapping(path = "/{patientId}/version/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public WebAsyncTask<Void> exportPatientVersions(@PathVariable UUID patientId, HttpServletResponse response) {
 
-        List<Snapshot<PatientEntity>> patientVersions = patientService.getSnapshotVersions(patientId, snapshotId);
+        patientService.get(patientId);
 
-        return ResponseEntity.ok(
-                patientModelSnapshotAssembler.toCollectionModel(patientVersions));
+        return stream(response, versionStreamTimeoutMillis, exportVersions(Collections.singletonList(patientId)));
+    }
+
+    @Operation(
+            summary = "Get a timeline of Patient versions",
+            description = "Stream a fixed number of Patient versions spread over its history as newline delimited " +
+                    "JSON by providing the Patient UUID, evenly by version number (count) or by time (time)",
+            tags = { "patients", "get", "version", "timeline" })
+    @GetMapping(path = "/{patientId}/version/timeline", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public WebAsyncTask<Void> getPatientVersionTimeline(
+            @PathVariable UUID patientId,
+            @RequestParam(name = "points", defaultValue = "50") int points,
+            @RequestParam(name = "by", defaultValue = "count") String sampling,
+            HttpServletResponse response) {
+
+        PatientService.TimelineSampling timelineSampling;
+        try {
+            timelineSampling = PatientService.TimelineSampling.valueOf(sampling.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSamplingException(sampling);
+        }
+
+        patientService.get(patientId);
+
+        return stream(response, versionStreamTimeoutMillis, writeVersionRecords(consumer ->
+                patientService.timeline(patientId, points, timelineSampling, consumer)));
+    }
+
+    @Operation(
+            summary = "Export all versions of multiple Patients",
+            description = "Stream every version of multiple Patients as newline delimited JSON by providing a list " +
+                    "of the Patient UUIDs as JSON",
+            tags = { "patients", "version", "export", "batch" })
+    @PostMapping(path = "/version/export", consumes = MediaType.APPLICATION_JSON_VALUE,
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public WebAsyncTask<Void> exportPatientsVersions(@RequestBody List<UUID> patientIds,
+                                                     HttpServletResponse response) {
+
+        return stream(response, versionStreamTimeoutMillis, exportVersions(patientIds));
     }
 
     @Operation(
@@ -424,6 +552,60 @@ public class PatientController {
         return ResponseEntity.ok(patchModelsPage);
     }
 
+    @Operation(
+            summary = "Get a Patient's Patches squashed into one",
+            description = "Get one JSON Patch taking a Patient from a base version (or the version as of a date time, " +
+                    "0 is the empty document) to the latest or a target version by providing the Patient UUID",
+            tags = { "patients", "get", "patches", "version", "asOf" })
+    @GetMapping(path = "/{patientId}/patches/squashed", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<SquashedPatch> getSquashedPatientPatches(
+            @PathVariable UUID patientId,
+            @RequestParam(name = "from", required = false) Long fromVersion,
+            @RequestParam(name = "asOf", required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime asOf,
+            @RequestParam(name = "to", required = false) Long toVersion) {
+
+        SquashedPatch squashedPatch;
+        if (asOf != null) {
+            squashedPatch = patientService.squash(patientId, asOf, toVersion);
+        } else {
+            squashedPatch = patientService.squash(patientId, fromVersion != null ? fromVersion : 0, toVersion);
+        }
+
+        return ResponseEntity.ok(squashedPatch);
+    }
+
+    @Operation(
+            summary = "Get the history of a Patient field",
+            description = "Get a Page of every change to one field of a Patient, or to everything under a path, with " +
+                    "the values written by providing the Patient UUID and a JSON pointer",
+            tags = { "patients", "get", "patches", "history", "pageable" })
+    @GetMapping(path = "/{patientId}/history", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<PagedModel<FieldChangeModel>> getPatientFieldHistory(
+            @PathVariable UUID patientId,
+            @RequestParam(name = "path") String path,
+            Pageable pageable,
+            PagedResourcesAssembler<PatientPatchEntityRepository.PatchOperation> pagedResourcesAssembler) {
+
+        Page<PatientPatchEntityRepository.PatchOperation> fieldHistoryPage =
+                patientService.getFieldHistory(pageable, patientId, path);
+
+        return ResponseEntity.ok(pagedResourcesAssembler.toModel(fieldHistoryPage, patientFieldChangeModelAssembler));
+    }
+
+    @Operation(
+            summary = "Get the blame of a Patient",
+            description = "Get the version that last changed each field of the current Patient, and when, by " +
+                    "providing the Patient UUID. A JSON pointer narrows it to one field",
+            tags = { "patients", "get", "version", "history" })
+    @GetMapping(path = "/{patientId}/blame", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, FieldBlame>> getPatientBlame(
+            @PathVariable UUID patientId,
+            @RequestParam(name = "path", required = false) String path) {
+
+        return ResponseEntity.ok(patientService.getBlame(patientId, path));
+    }
+
     @Operation(
             summary = "Search Patients",
             description = "Get a Page of all Patients that match the search query",
@@ -435,14 +617,7 @@ public class PatientController {
             @RequestParam(name = "filters", required = false) String filtersJson,
             PagedResourcesAssembler<LatestVersion<PatientEntity>> pagedResourcesAssembler) {
 
-        List<ApiFilter> filters = new ArrayList<>();
-        if (StringUtils.hasText(filtersJson)) {
-            try {
-                filters = objectMapper.readValue(filtersJson, new TypeReference<>() {});
-            } catch (JsonProcessingException e) {
-                e.printStackTrace();
-            }
-        }
+        List<ApiFilter> filters = readFilters(filtersJson);
 
         Page<LatestVersion<PatientEntity>> patientsPage = patientService.search(query, pageable, filters);
 
@@ -453,16 +628,25 @@ public class PatientController {
 
     @Operation(
             summary = "Update a Patient",
-            description = "Update a Patient by providing the Patient UUID and the Patient as JSON",
+            description = "Update a Patient by providing the Patient UUID and the Patient as JSON. With an If-Match " +
+                    "of the version (ETag) the Patient was read at, the update fails with 412 if the Patient has " +
+                    "changed since",
             tags = { "patients", "update" })
     @PutMapping(path = "/{patientId}", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<PatientModel> updatePatient(@PathVariable UUID patientId, @RequestBody Patient patient) {
+    public ResponseEntity<PatientModel> updatePatient(
+            @PathVariable UUID patientId,
+            @RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+            @RequestBody Patient patient) {
 
-        LatestVersion<PatientEntity> patientEntity = patientService.update(patientId, patient);
+        Long expectedVersion = readIfMatch(patientId, ifMatch);
+
+        LatestVersion<PatientEntity> patientEntity = patientGroupCommitter.write(() -> detached(expectedVersion != null ?
+                patientService.updateAtVersion(patientId, patient, expectedVersion) :
+                patientService.update(patientId, patient)));
 
         PatientModel patientModel = patientModelAssembler.toModel(patientEntity);
 
-        return ResponseEntity.ok(patientModel);
+        return ResponseEntity.ok().eTag(Long.toString(patientEntity.getVersion())).body(patientModel);
     }
 
     @Operation(
@@ -483,18 +667,64 @@ public class PatientController {
 
     @Operation(
             summary = "Patch a Patient",
-            description = "Patch a Patient by providing the Patient UUID and the Patient Patch as JSON",
+            description = "Patch a Patient by providing the Patient UUID and the Patient Patch as JSON. With an " +
+                    "If-Match of the version (ETag) the Patient was read at, the patch fails with 412 if the Patient " +
+                    "has changed since",
             tags = { "patients", "update", "patches" })
     @PatchMapping(path = "/{patientId}", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<PatientModel> patchPatient(@PathVariable UUID patientId, @RequestBody JsonNode patientPatch) {
+    public ResponseEntity<PatientModel> patchPatient(
+            @PathVariable UUID patientId,
+            @RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+            @RequestBody JsonNode patientPatch) {
 
-        LatestVersion<PatientEntity> patientEntity = patientService.patch(patientId, patientPatch);
+        Long expectedVersion = readIfMatch(patientId, ifMatch);
+
+        LatestVersion<PatientEntity> patientEntity = patientGroupCommitter.write(() -> detached(expectedVersion != null ?
+                patientService.patchAtVersion(patientId, patientPatch, expectedVersion) :
+                patientService.patch(patientId, patientPatch)));
+
+        PatientModel patientModel = patientModelAssembler.toModel(patientEntity);
+
+        return ResponseEntity.ok().eTag(Long.toString(patientEntity.getVersion())).body(patientModel);
+    }
+
+    @Operation(
+            summary = "Revert a Patient",
+            description = "Revert a Patient to an earlier version by providing the Patient UUID and the version " +
+                    "number. The revert is written as a new version",
+            tags = { "patients", "update", "version" })
+    @PostMapping(path = "/{patientId}/version/{version}/revert", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<PatientModel> revertPatient(@PathVariable UUID patientId, @PathVariable long version) {
+
+        LatestVersion<PatientEntity> patientEntity = patientService.revert(patientId, version);
 
         PatientModel patientModel = patientModelAssembler.toModel(patientEntity);
 
         return ResponseEntity.ok(patientModel);
     }
 
+    @Operation(
+            summary = "Roll back multiple Patients",
+            description = "Revert multiple Patients to their state as of a DateTime, each as a new version. The " +
+                    "Patients are given as a list of UUIDs as JSON, or selected by a search query / filters, or " +
+                    "else every Patient changed since the DateTime. Progress is streamed as newline delimited JSON, " +
+                    "one line per committed chunk",
+            tags = { "patients", "update", "asOf", "batch" })
+    @PostMapping(path = "/rollback", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public WebAsyncTask<Void> rollbackPatients(
+            @RequestParam(name = "asOf", required = true)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime asOf,
+            @RequestParam(name = "query", required = false) String query,
+            @RequestParam(name = "filters", required = false) String filtersJson,
+            @RequestBody(required = false) List<UUID> patientIds,
+            HttpServletResponse response) {
+
+        List<ApiFilter> filters = readFilters(filtersJson);
+
+        return stream(response, rollbackTimeoutMillis, writeRollbackProgress(consumer ->
+                patientService.rollback(asOf, patientIds, query, filters, consumer)));
+    }
+
     @Operation(
             summary = "Delete a Patient",
             description = "Delete a Patient by providing the Patient UUID",
@@ -543,4 +773,116 @@ public class PatientController {
         return ResponseEntity.ok().build();
     }
 
+    // what a StreamingResponseBody return does, with the async timeout of this response instead of the default. these
+    // stream for as long as the history (or the rollback) takes
+    private WebAsyncTask<Void> stream(HttpServletResponse response, long timeoutMillis, StreamingResponseBody body) {
+
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+
+        return new WebAsyncTask<>(timeoutMillis, () -> {
+            OutputStream outputStream = response.getOutputStream();
+            body.writeTo(outputStream);
+            outputStream.flush();
+            return null;
+        });
+    }
+
+    // written from the async request thread while the service replays, one record per line
+    private StreamingResponseBody exportVersions(List<UUID> patientIds) {
+
+        return writeVersionRecords(consumer -> patientService.exportVersions(patientIds, consumer));
+    }
+
+    private StreamingResponseBody writeVersionRecords(Consumer<Consumer<VersionRecord>> producer) {
+
+        ObjectWriter objectWriter = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
+
+        return outputStream -> producer.accept(versionRecord -> writeRecord(outputStream, objectWriter, versionRecord));
+    }
+
+    // flushed after every line, there's one per committed chunk and the client is watching them come in
+    private StreamingResponseBody writeRollbackProgress(Consumer<Consumer<RollbackProgress>> producer) {
+
+        ObjectWriter objectWriter = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
+
+        return outputStream -> producer.accept(progress -> {
+            writeRecord(outputStream, objectWriter, progress);
+            try {
+                outputStream.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private void writeRecord(OutputStream outputStream, ObjectWriter objectWriter, Object record) {
+
+        try {
+            outputStream.write(objectWriter.writeValueAsBytes(record));
+            outputStream.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // writes committed as a group share a persistence context, a later write to the same patient changes the entity an
+    // earlier one returned. the copy is taken inside the write, while the entity still holds that write's document
+    private LatestVersion<PatientEntity> detached(LatestVersion<PatientEntity> latestVersion) {
+
+        PatientEntity patientEntity = new PatientEntity(
+                objectMapper.convertValue(latestVersion.getEntity().getPatient(), Patient.class));
+        patientEntity.setId(latestVersion.getEntity().getId());
+
+        return new LatestVersion<>(patientEntity, latestVersion.getVersion());
+    }
+
+    // the version from an If-Match etag, null (lock instead) without one or for *. an etag that isn't a version can't
+    // match any
+    private Long readIfMatch(UUID patientId, String ifMatch) {
+
+        if (!StringUtils.hasText(ifMatch) || ifMatch.trim().equals("*")) {
+            return null;
+        }
+
+        String eTag = ifMatch.trim();
+        if (eTag.startsWith("W/")) {
+            eTag = eTag.substring(2);
+        }
+        eTag = eTag.replace("\"", "");
+
+        try {
+            return Long.parseLong(eTag);
+        } catch (NumberFormatException e) {
+            throw new PatientVersionConflictException(patientId, ifMatch);
+        }
+    }
+
+    private List<ApiFilter> readFilters(String filtersJson) {
+
+        List<ApiFilter> filters = new ArrayList<>();
+        if (StringUtils.hasText(filtersJson)) {
+            try {
+                filters = objectMapper.readValue(filtersJson, new TypeReference<>() {});
+            } catch (JsonProcessingException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return filters;
+    }
+
+    // the next link seeks past the last patient of this page, every other link is a plain page number
+    private void addCursorLinks(PagedModel<PatientModel> patientModelsPage, CursorPage<?> patientsPage) {
+
+        for (Link pageLink : patientModelsPage.getLinks()) {
+            UriComponentsBuilder uriComponentsBuilder = UriComponentsBuilder.fromUriString(pageLink.getHref());
+            if (pageLink.hasRel(IanaLinkRelations.NEXT) && patientsPage.getNextCursor() != null) {
+                uriComponentsBuilder.replaceQueryParam("cursor", patientsPage.getNextCursor().encode());
+            } else {
+                uriComponentsBuilder.replaceQueryParam("cursor");
+            }
+            String href = uriComponentsBuilder.build().toUriString();
+            patientModelsPage.mapLink(pageLink.getRel(), link -> link.withHref(href));
+        }
+    }
 }
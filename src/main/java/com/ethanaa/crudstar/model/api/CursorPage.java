@@ -0,0 +1,21 @@
+package com.ethanaa.crudstar.model.api;
+
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+
+import java.util.List;
+
+public class CursorPage<T> extends PageImpl<T> {
+
+    PageCursor nextCursor;
+
+    public CursorPage(List<T> content, Pageable pageable, long total, PageCursor nextCursor) {
+        super(content, pageable, total);
+        this.nextCursor = nextCursor;
+    }
+
+    // null on the last page
+    public PageCursor getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,70 @@
+package com.ethanaa.crudstar.model.api;
+
+import com.fasterxml.jackson.annotation.JsonRawValue;
+import org.springframework.hateoas.RepresentationModel;
+
+import java.time.LocalDateTime;
+
+public class FieldChangeModel extends RepresentationModel<FieldChangeModel> {
+
+    private long version;
+
+    private LocalDateTime createdAt;
+
+    private String op;
+
+    private String path;
+
+    private String from;
+
+    @JsonRawValue
+    private String value;
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public String getOp() {
+        return op;
+    }
+
+    public void setOp(String op) {
+        this.op = op;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public void setFrom(String from) {
+        this.from = from;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public void setValue(String value) {
+        this.value = value;
+    }
+}
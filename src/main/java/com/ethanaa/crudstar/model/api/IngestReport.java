@@ -0,0 +1,25 @@
+package com.ethanaa.crudstar.model.api;
+
+// how a bulk load went, the rate is over the whole load including the patch triggers
+public class IngestReport {
+
+    long patients;
+    long millis;
+
+    public IngestReport(long patients, long millis) {
+        this.patients = patients;
+        this.millis = millis;
+    }
+
+    public long getPatients() {
+        return patients;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    public double getPatientsPerSecond() {
+        return millis > 0 ? patients * 1000.0 / millis : patients;
+    }
+}
@@ -0,0 +1,53 @@
+package com.ethanaa.crudstar.model.api;
+
+import com.ethanaa.crudstar.model.api.exception.InvalidCursorException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.UUID;
+
+/**
+ * Position in a keyset paged listing: the latest patch created_at and the patient id of the last patient on a page.
+ * Handed out as an opaque token so clients don't depend on what's in it.
+ */
+public class PageCursor {
+
+    // same order as postgres, which compares uuids byte by byte
+    public static final Comparator<PageCursor> ORDER = Comparator
+            .comparing(PageCursor::getCreatedAt)
+            .thenComparing(pageCursor -> pageCursor.getPatientId().toString());
+
+    LocalDateTime createdAt;
+    UUID patientId;
+
+    public PageCursor(LocalDateTime createdAt, UUID patientId) {
+        this.createdAt = createdAt;
+        this.patientId = patientId;
+    }
+
+    public static PageCursor decode(String token) {
+
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("\\|");
+            return new PageCursor(LocalDateTime.parse(parts[0]), UUID.fromString(parts[1]));
+        } catch (RuntimeException e) {
+            throw new InvalidCursorException(token);
+        }
+    }
+
+    public String encode() {
+
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((createdAt + "|" + patientId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public UUID getPatientId() {
+        return patientId;
+    }
+}
@@ -0,0 +1,52 @@
+package com.ethanaa.crudstar.model.api;
+
+import java.time.LocalDateTime;
+
+// one line of a bulk rollback, written after each committed chunk. skipped patients had nothing to revert or didn't
+// exist yet as of the time
+public class RollbackProgress {
+
+    LocalDateTime asOf;
+
+    long total;
+    long processed;
+    long reverted;
+    long skipped;
+
+    public RollbackProgress(LocalDateTime asOf, long total) {
+        this.asOf = asOf;
+        this.total = total;
+    }
+
+    public LocalDateTime getAsOf() {
+        return asOf;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public void setProcessed(long processed) {
+        this.processed = processed;
+    }
+
+    public long getReverted() {
+        return reverted;
+    }
+
+    public void setReverted(long reverted) {
+        this.reverted = reverted;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public void setSkipped(long skipped) {
+        this.skipped = skipped;
+    }
+}
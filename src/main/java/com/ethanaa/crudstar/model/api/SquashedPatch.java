@@ -0,0 +1,40 @@
+package com.ethanaa.crudstar.model.api;
+
+import com.fasterxml.jackson.annotation.JsonRawValue;
+
+import java.util.UUID;
+
+// one json patch taking a patient from a version (0 is the empty document) to another
+public class SquashedPatch {
+
+    UUID patientId;
+
+    long fromVersion;
+    long toVersion;
+
+    @JsonRawValue
+    String patch;
+
+    public SquashedPatch(UUID patientId, long fromVersion, long toVersion, String patch) {
+        this.patientId = patientId;
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.patch = patch;
+    }
+
+    public UUID getPatientId() {
+        return patientId;
+    }
+
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    public long getToVersion() {
+        return toVersion;
+    }
+
+    public String getPatch() {
+        return patch;
+    }
+}
@@ -0,0 +1,60 @@
+package com.ethanaa.crudstar.model.api;
+
+import com.ethanaa.crudstar.model.persist.patient.Patient;
+import org.springframework.hateoas.RepresentationModel;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+public class VersionModel extends RepresentationModel<VersionModel> {
+
+    private long version;
+
+    private LocalDateTime createdAt;
+
+    private UUID snapshotId;
+
+    private long patchSize;
+
+    private Patient patient;
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public UUID getSnapshotId() {
+        return snapshotId;
+    }
+
+    public void setSnapshotId(UUID snapshotId) {
+        this.snapshotId = snapshotId;
+    }
+
+    public long getPatchSize() {
+        return patchSize;
+    }
+
+    public void setPatchSize(long patchSize) {
+        this.patchSize = patchSize;
+    }
+
+    public Patient getPatient() {
+        return patient;
+    }
+
+    public void setPatient(Patient patient) {
+        this.patient = patient;
+    }
+}
@@ -0,0 +1,40 @@
+package com.ethanaa.crudstar.model.api;
+
+import com.ethanaa.crudstar.model.persist.patient.Patient;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+// one line of a version export. the patient is the exporter's working copy, it changes with the next record
+public class VersionRecord {
+
+    UUID patientId;
+
+    long version;
+    LocalDateTime createdAt;
+
+    Patient patient;
+
+    public VersionRecord(UUID patientId, long version, LocalDateTime createdAt, Patient patient) {
+        this.patientId = patientId;
+        this.version = version;
+        this.createdAt = createdAt;
+        this.patient = patient;
+    }
+
+    public UUID getPatientId() {
+        return patientId;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public Patient getPatient() {
+        return patient;
+    }
+}
@@ -0,0 +1,47 @@
+package com.ethanaa.crudstar.model.api;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+// one patient of a batch time-travel read, as of a time and / or a version (the latest when neither is given)
+public class VersionRequest {
+
+    UUID patientId;
+
+    LocalDateTime asOf;
+    Long version;
+
+    public VersionRequest() {
+
+    }
+
+    public VersionRequest(UUID patientId, LocalDateTime asOf, Long version) {
+        this.patientId = patientId;
+        this.asOf = asOf;
+        this.version = version;
+    }
+
+    public UUID getPatientId() {
+        return patientId;
+    }
+
+    public void setPatientId(UUID patientId) {
+        this.patientId = patientId;
+    }
+
+    public LocalDateTime getAsOf() {
+        return asOf;
+    }
+
+    public void setAsOf(LocalDateTime asOf) {
+        this.asOf = asOf;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
@@ -0,0 +1,64 @@
+package com.ethanaa.crudstar.model.api;
+
+import com.ethanaa.crudstar.model.persist.patient.Patient;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+public class VersionSummary {
+
+    UUID patientId;
+    UUID snapshotId;
+
+    long version;
+    LocalDateTime createdAt;
+
+    UUID patchSnapshotId;
+    long patchSize;
+
+    Patient patient;
+
+    public VersionSummary(UUID patientId, UUID snapshotId, long version, LocalDateTime createdAt,
+                          UUID patchSnapshotId, long patchSize) {
+        this.patientId = patientId;
+        this.snapshotId = snapshotId;
+        this.version = version;
+        this.createdAt = createdAt;
+        this.patchSnapshotId = patchSnapshotId;
+        this.patchSize = patchSize;
+    }
+
+    public UUID getPatientId() {
+        return patientId;
+    }
+
+    // the snapshot the versions are listed for, null for the mainline
+    public UUID getSnapshotId() {
+        return snapshotId;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    // the snapshot the patch belongs to, null for a mainline patch
+    public UUID getPatchSnapshotId() {
+        return patchSnapshotId;
+    }
+
+    public long getPatchSize() {
+        return patchSize;
+    }
+
+    public Patient getPatient() {
+        return patient;
+    }
+
+    public void setPatient(Patient patient) {
+        this.patient = patient;
+    }
+}
@@ -0,0 +1,12 @@
+package com.ethanaa.crudstar.model.api.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class InvalidJsonPointerException extends RuntimeException {
+
+    public InvalidJsonPointerException(String pointer) {
+        super("JSON pointer [" + pointer + "] is not valid");
+    }
+}
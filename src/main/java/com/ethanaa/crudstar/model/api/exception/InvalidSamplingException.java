@@ -0,0 +1,12 @@
+package com.ethanaa.crudstar.model.api.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class InvalidSamplingException extends RuntimeException {
+
+    public InvalidSamplingException(String sampling) {
+        super("Sampling [" + sampling + "] is not valid");
+    }
+}
@@ -0,0 +1,14 @@
+package com.ethanaa.crudstar.model.api.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import java.util.UUID;
+
+@ResponseStatus(HttpStatus.PRECONDITION_FAILED)
+public class PatientVersionConflictException extends RuntimeException {
+
+    public PatientVersionConflictException(UUID patientId, String version) {
+        super("Patient with id [" + patientId + "] is not at version [" + version + "]");
+    }
+}
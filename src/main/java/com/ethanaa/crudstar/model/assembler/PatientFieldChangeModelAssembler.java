@@ -0,0 +1,41 @@
+package com.ethanaa.crudstar.model.assembler;
+
+import com.ethanaa.crudstar.controller.PatientController;
+import com.ethanaa.crudstar.model.api.FieldChangeModel;
+import com.ethanaa.crudstar.repository.PatientPatchEntityRepository;
+import org.springframework.hateoas.server.mvc.RepresentationModelAssemblerSupport;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.linkTo;
+import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.methodOn;
+
+@Component
+public class PatientFieldChangeModelAssembler extends RepresentationModelAssemblerSupport<
+        PatientPatchEntityRepository.PatchOperation, FieldChangeModel> {
+
+    public PatientFieldChangeModelAssembler() {
+        super(PatientController.class, FieldChangeModel.class);
+    }
+
+    @Override
+    public FieldChangeModel toModel(PatientPatchEntityRepository.PatchOperation patchOperation) {
+
+        FieldChangeModel fieldChangeModel = instantiateModel(patchOperation);
+
+        fieldChangeModel.setVersion(patchOperation.getVersion());
+        fieldChangeModel.setCreatedAt(patchOperation.getCreatedAt());
+        fieldChangeModel.setOp(patchOperation.getOp());
+        fieldChangeModel.setPath(patchOperation.getPath());
+        fieldChangeModel.setFrom(patchOperation.getFromPath());
+        fieldChangeModel.setValue(patchOperation.getValue());
+
+        // the full patient as of the change
+        fieldChangeModel.add(linkTo(methodOn(PatientController.class)
+                .getPatientVersion(UUID.fromString(patchOperation.getPatientId()),
+                        patchOperation.getVersion())).withRel("version"));
+
+        return fieldChangeModel;
+    }
+}
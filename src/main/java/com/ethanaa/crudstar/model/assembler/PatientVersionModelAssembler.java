@@ -0,0 +1,44 @@
+package com.ethanaa.crudstar.model.assembler;
+
+import com.ethanaa.crudstar.controller.PatientController;
+import com.ethanaa.crudstar.model.api.VersionModel;
+import com.ethanaa.crudstar.model.api.VersionSummary;
+import org.springframework.hateoas.server.mvc.RepresentationModelAssemblerSupport;
+import org.springframework.stereotype.Component;
+
+import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.linkTo;
+import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.methodOn;
+
+@Component
+public class PatientVersionModelAssembler extends RepresentationModelAssemblerSupport<VersionSummary, VersionModel> {
+
+    public PatientVersionModelAssembler() {
+        super(PatientController.class, VersionModel.class);
+    }
+
+    @Override
+    public VersionModel toModel(VersionSummary versionSummary) {
+
+        VersionModel versionModel = instantiateModel(versionSummary);
+
+        versionModel.setVersion(versionSummary.getVersion());
+        versionModel.setCreatedAt(versionSummary.getCreatedAt());
+        versionModel.setSnapshotId(versionSummary.getPatchSnapshotId());
+        versionModel.setPatchSize(versionSummary.getPatchSize());
+        versionModel.setPatient(versionSummary.getPatient());
+
+        // the full patient as of the version
+        if (versionSummary.getSnapshotId() != null) {
+            versionModel.add(linkTo(methodOn(PatientController.class)
+                    .getPatientSnapshotVersion(versionSummary.getPatientId(),
+                            versionSummary.getSnapshotId(),
+                            versionSummary.getVersion())).withSelfRel());
+        } else {
+            versionModel.add(linkTo(methodOn(PatientController.class)
+                    .getPatientVersion(versionSummary.getPatientId(),
+                            versionSummary.getVersion())).withSelfRel());
+        }
+
+        return versionModel;
+    }
+}
@@ -0,0 +1,39 @@
+package com.ethanaa.crudstar.model.persist.patient;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+
+import java.time.LocalDateTime;
+
+// the version that last wrote a path of the patient document and when
+public class FieldBlame {
+
+    private long version;
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING)
+    private LocalDateTime changedAt;
+
+    public FieldBlame() {
+
+    }
+
+    public FieldBlame(long version, LocalDateTime changedAt) {
+        this.version = version;
+        this.changedAt = changedAt;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public LocalDateTime getChangedAt() {
+        return changedAt;
+    }
+
+    public void setChangedAt(LocalDateTime changedAt) {
+        this.changedAt = changedAt;
+    }
+}
@@ -1,6 +1,7 @@
 package com.ethanaa.crudstar.model.persist.patient;
 
 import com.ethanaa.crudstar.model.persist.UUIDEntity;
+import com.ethanaa.crudstar.model.persist.patient.patch.PatientCheckpointEntity;
 import com.ethanaa.crudstar.model.persist.patient.patch.PatientPatchEntity;
 import com.vladmihalcea.hibernate.type.json.JsonBinaryType;
 import org.hibernate.annotations.DynamicUpdate;
@@ -10,6 +11,8 @@ import org.hibernate.annotations.TypeDef;
 import javax.persistence.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 @Entity
 @Table(indexes = {
@@ -23,6 +26,24 @@ public class PatientEntity extends UUIDEntity {
     @Column(columnDefinition = "jsonb")
     private Patient patient;
 
+    // latest mainline version, null for patients created in a snapshot
+    @Column(name = "version")
+    private Long version;
+
+    // json pointer -> last mainline write, kept by PatientBlame. paths with no entry here or above date from the
+    // create. null for rows written before the column existed
+    @Type(type = "jsonb")
+    @Column(columnDefinition = "jsonb")
+    private SortedMap<String, FieldBlame> blame;
+
+    // mainline version of the last checkpoint and the bytes of the patches after it, kept by
+    // PatientCheckpointService. null for rows written before the columns existed (or without it)
+    @Column(name = "checkpoint_version")
+    private Long checkpointVersion;
+
+    @Column(name = "checkpoint_tail_bytes")
+    private Long checkpointTailBytes;
+
     @OneToMany(
         mappedBy = "patient",
         cascade = CascadeType.ALL,
@@ -30,6 +51,13 @@ public class PatientEntity extends UUIDEntity {
     )
     private List<PatientPatchEntity> patches = new ArrayList<>();
 
+    @OneToMany(
+        mappedBy = "patient",
+        cascade = CascadeType.ALL,
+        orphanRemoval = true
+    )
+    private List<PatientCheckpointEntity> checkpoints = new ArrayList<>();
+
     @ManyToOne(fetch = FetchType.LAZY)
     private PatientSnapshotEntity snapshot;
 
@@ -42,6 +70,9 @@ public class PatientEntity extends UUIDEntity {
 
     public PatientEntity(Patient patient) {
         this.patient = patient;
+        this.blame = new TreeMap<>();
+        this.checkpointVersion = 0L;
+        this.checkpointTailBytes = 0L;
     }
 
     public PatientEntity(Patient patient, PatientSnapshotEntity snapshot) {
@@ -57,14 +88,51 @@ public class PatientEntity extends UUIDEntity {
         this.patient = patient;
     }
 
+    public SortedMap<String, FieldBlame> getBlame() {
+        return blame;
+    }
+
+    public void setBlame(SortedMap<String, FieldBlame> blame) {
+        this.blame = blame;
+    }
+
+    public Long getCheckpointVersion() {
+        return checkpointVersion;
+    }
+
+    public void setCheckpointVersion(Long checkpointVersion) {
+        this.checkpointVersion = checkpointVersion;
+    }
+
+    public Long getCheckpointTailBytes() {
+        return checkpointTailBytes;
+    }
+
+    public void setCheckpointTailBytes(Long checkpointTailBytes) {
+        this.checkpointTailBytes = checkpointTailBytes;
+    }
+
     public List<PatientPatchEntity> getPatches() {
         return patches;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     public void addPatch(PatientPatchEntity patientPatchEntity) {
 
         patches.add(patientPatchEntity);
         patientPatchEntity.setPatient(this);
+
+        if (patientPatchEntity.getSnapshot() == null) {
+            version = version == null ? 1 : version + 1;
+            patientPatchEntity.setVersion(version);
+        }
     }
 
     public void removePatch(PatientPatchEntity patientPatchEntity) {
@@ -73,6 +141,10 @@ public class PatientEntity extends UUIDEntity {
         patientPatchEntity.setPatient(null);
     }
 
+    public List<PatientCheckpointEntity> getCheckpoints() {
+        return checkpoints;
+    }
+
     public PatientSnapshotEntity getSnapshot() {
         return snapshot;
     }
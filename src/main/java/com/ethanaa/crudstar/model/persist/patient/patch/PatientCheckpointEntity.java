@@ -0,0 +1,79 @@
+package com.ethanaa.crudstar.model.persist.patient.patch;
+
+import com.ethanaa.crudstar.model.persist.UUIDEntity;
+import com.ethanaa.crudstar.model.persist.patient.Patient;
+import com.ethanaa.crudstar.model.persist.patient.PatientEntity;
+import com.vladmihalcea.hibernate.type.json.JsonBinaryType;
+import org.hibernate.annotations.Type;
+import org.hibernate.annotations.TypeDef;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Full patient document as of some version of the patch log, so replay can start here instead of from
+ * an empty document.
+ */
+@Entity
+@Table(indexes = {
+        @Index(name = "checkpoint_patient_version_index", columnList = "patient_id, version DESC")
+})
+@TypeDef(name = "jsonb", typeClass = JsonBinaryType.class)
+public class PatientCheckpointEntity extends UUIDEntity {
+
+    @Type(type = "jsonb")
+    @Column(columnDefinition = "jsonb")
+    private Patient document;
+
+    @Column(name = "version")
+    private long version;
+
+    // created_at of the last patch folded into the document
+    @Column(name = "patch_created_at")
+    private LocalDateTime patchCreatedAt;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    private PatientEntity patient;
+
+    public PatientCheckpointEntity() {
+
+    }
+
+    public PatientCheckpointEntity(Patient document, long version, LocalDateTime patchCreatedAt) {
+        this.document = document;
+        this.version = version;
+        this.patchCreatedAt = patchCreatedAt;
+    }
+
+    public Patient getDocument() {
+        return document;
+    }
+
+    public void setDocument(Patient document) {
+        this.document = document;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public LocalDateTime getPatchCreatedAt() {
+        return patchCreatedAt;
+    }
+
+    public void setPatchCreatedAt(LocalDateTime patchCreatedAt) {
+        this.patchCreatedAt = patchCreatedAt;
+    }
+
+    public PatientEntity getPatient() {
+        return patient;
+    }
+
+    public void setPatient(PatientEntity patient) {
+        this.patient = patient;
+    }
+}
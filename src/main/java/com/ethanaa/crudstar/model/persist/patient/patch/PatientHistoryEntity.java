@@ -0,0 +1,85 @@
+package com.ethanaa.crudstar.model.persist.patient.patch;
+
+import com.ethanaa.crudstar.model.persist.patient.Patient;
+import com.vladmihalcea.hibernate.type.json.JsonBinaryType;
+import org.hibernate.annotations.Immutable;
+import org.hibernate.annotations.Subselect;
+import org.hibernate.annotations.Synchronize;
+import org.hibernate.annotations.Type;
+import org.hibernate.annotations.TypeDef;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Read only view of patient_history (schema.sql, written by a trigger on patient_patch_entity) so historical
+ * documents can be searched and filtered with the same criteria as the latest ones.
+ */
+@Entity
+@Immutable
+@Subselect("SELECT h.patch_id, h.patient_id, h.snapshot_id, h.version, h.valid, " +
+        "lower(h.valid) AS valid_from, h.patient " +
+        "FROM patient_history h")
+@Synchronize("patient_history")
+@TypeDef(name = "jsonb", typeClass = JsonBinaryType.class)
+public class PatientHistoryEntity implements Serializable {
+
+    @Id
+    @Column(name = "patch_id")
+    private UUID patchId;
+
+    @Column(name = "patient_id")
+    private UUID patientId;
+
+    @Column(name = "snapshot_id")
+    private UUID snapshotId;
+
+    @Column(name = "version")
+    private Long version;
+
+    // tsrange the document was current for, only used in predicates through range_contains
+    @Column(name = "valid")
+    private String valid;
+
+    // created_at of the patch that produced this version
+    @Column(name = "valid_from")
+    private LocalDateTime validFrom;
+
+    @Type(type = "jsonb")
+    @Column(columnDefinition = "jsonb")
+    private Patient patient;
+
+    public PatientHistoryEntity() {
+
+    }
+
+    public UUID getPatchId() {
+        return patchId;
+    }
+
+    public UUID getPatientId() {
+        return patientId;
+    }
+
+    public UUID getSnapshotId() {
+        return snapshotId;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public String getValid() {
+        return valid;
+    }
+
+    public LocalDateTime getValidFrom() {
+        return validFrom;
+    }
+
+    public Patient getPatient() {
+        return patient;
+    }
+}
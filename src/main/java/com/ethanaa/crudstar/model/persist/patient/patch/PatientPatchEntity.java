@@ -11,7 +11,10 @@ import javax.persistence.*;
 
 @Entity
 @Table(indexes = {
-        @Index(name = "created_at_index", columnList = "created_at ASC")
+        @Index(name = "created_at_index", columnList = "created_at ASC"),
+        @Index(name = "patch_created_at_patient_index", columnList = "created_at, patient_id"),
+        @Index(name = "patch_patient_snapshot_version_index", columnList = "patient_id, snapshot_id, version", unique = true),
+        @Index(name = "patch_patient_snapshot_created_at_index", columnList = "patient_id, snapshot_id, created_at")
 })
 @TypeDef(name = "json", typeClass = JsonType.class)
 public class PatientPatchEntity extends UUIDEntity {
@@ -20,6 +23,15 @@ public class PatientPatchEntity extends UUIDEntity {
     @Column(columnDefinition = "jsonb")
     private String patch;
 
+    // undoes this patch against the materialized patient, null for creates, snapshot writes and older rows
+    @Type(type = "json")
+    @Column(name = "inverse_patch", columnDefinition = "jsonb")
+    private String inversePatch;
+
+    // position in the patient's history, a snapshot continues the mainline numbering as of the snapshot
+    @Column(name = "version")
+    private Long version;
+
     @ManyToOne(fetch = FetchType.LAZY)
     private PatientEntity patient;
 
@@ -52,6 +64,22 @@ public class PatientPatchEntity extends UUIDEntity {
         this.patch = patch;
     }
 
+    public String getInversePatch() {
+        return inversePatch;
+    }
+
+    public void setInversePatch(String inversePatch) {
+        this.inversePatch = inversePatch;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     public PatientEntity getPatient() {
         return patient;
     }
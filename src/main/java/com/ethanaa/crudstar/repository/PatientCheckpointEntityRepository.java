@@ -0,0 +1,41 @@
+package com.ethanaa.crudstar.repository;
+
+import com.ethanaa.crudstar.model.persist.patient.patch.PatientCheckpointEntity;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+import java.util.UUID;
+
+@Repository
+public interface PatientCheckpointEntityRepository extends JpaRepository<PatientCheckpointEntity, UUID> {
+
+    @Query(nativeQuery = true,
+            value = "SELECT pce.* " +
+                    "FROM patient_checkpoint_entity pce " +
+                    "WHERE pce.patient_id = :patientId " +
+                    "  AND pce.version <= :version " +
+                    "ORDER BY pce.version DESC " +
+                    "LIMIT 1")
+    Optional<PatientCheckpointEntity> findLatestCheckpoint(UUID patientId, long version);
+
+    public static interface CheckpointTail {
+        Long getPatches();
+        Long getBytes();
+    }
+
+    // patients are counted here once, when their row has no tail tracked yet
+    @Query(nativeQuery = true,
+            value = "SELECT COUNT(ppe.id) AS patches, " +
+                    "    COALESCE(SUM(OCTET_LENGTH(CAST(ppe.patch AS text))), 0) AS bytes " +
+                    "FROM patient_patch_entity ppe " +
+                    "WHERE ppe.patient_id = :patientId " +
+                    "  AND ppe.snapshot_id IS NULL " +
+                    "  AND ppe.version > COALESCE(( " +
+                    "    SELECT MAX(pce.version) " +
+                    "    FROM patient_checkpoint_entity pce " +
+                    "    WHERE pce.patient_id = :patientId " +
+                    "  ), 0)")
+    CheckpointTail findCheckpointTail(UUID patientId);
+}
@@ -0,0 +1,13 @@
+package com.ethanaa.crudstar.repository;
+
+import com.ethanaa.crudstar.model.persist.patient.PatientEntity;
+import org.springframework.data.jpa.domain.Specification;
+
+import java.util.List;
+import java.util.UUID;
+
+public interface PatientEntityIdRepository {
+
+    // the ids of the patients matching the specification, in id order, without loading the entities
+    List<UUID> findIds(Specification<PatientEntity> specification);
+}
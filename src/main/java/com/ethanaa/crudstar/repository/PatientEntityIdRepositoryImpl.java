@@ -0,0 +1,36 @@
+package com.ethanaa.crudstar.repository;
+
+import com.ethanaa.crudstar.model.persist.patient.PatientEntity;
+import org.springframework.data.jpa.domain.Specification;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import java.util.List;
+import java.util.UUID;
+
+public class PatientEntityIdRepositoryImpl implements PatientEntityIdRepository {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<UUID> findIds(Specification<PatientEntity> specification) {
+
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<UUID> query = builder.createQuery(UUID.class);
+        Root<PatientEntity> root = query.from(PatientEntity.class);
+
+        Predicate predicate = specification.toPredicate(root, query, builder);
+
+        // the specification's own ordering is for pages of documents, ids come back in id order
+        query.select(root.get("id"))
+                .where(predicate)
+                .orderBy(builder.asc(root.get("id")));
+
+        return entityManager.createQuery(query).getResultList();
+    }
+}
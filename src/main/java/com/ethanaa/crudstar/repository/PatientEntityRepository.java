@@ -6,24 +6,73 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import javax.persistence.LockModeType;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
 @Repository
-public interface PatientEntityRepository extends JpaRepository<PatientEntity, UUID>, JpaSpecificationExecutor<PatientEntity> {
+public interface PatientEntityRepository extends JpaRepository<PatientEntity, UUID>, JpaSpecificationExecutor<PatientEntity>,
+        PatientEntityIdRepository {
 
     @Lock(LockModeType.PESSIMISTIC_WRITE)
     @Query("SELECT p FROM PatientEntity p WHERE p.id = :id and p.snapshot is null")
     Optional<PatientEntity> findByIdWithLock(UUID id);
 
+    // mainline or created in a snapshot, for snapshot updates
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT p FROM PatientEntity p WHERE p.id = :id")
+    Optional<PatientEntity> findAnyByIdWithLock(UUID id);
+
+    // only locks (and returns) the row while it's still at the version
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT p FROM PatientEntity p WHERE p.id = :id and p.version = :version and p.snapshot is null")
+    Optional<PatientEntity> findByIdAndVersionWithLock(UUID id, long version);
+
+    // locked in id order so two bulk writers can't deadlock on each other's rows
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT p FROM PatientEntity p WHERE p.id IN :ids and p.snapshot is null ORDER BY p.id")
+    List<PatientEntity> findAllByIdWithLock(Collection<UUID> ids);
+
     // must expose as native query for sorting on json properties
     @Override
     @Query(value = "select p.* from patient_entity p",
             nativeQuery = true)
     Page<PatientEntity> findAll(Pageable pageable);
 
+    public static interface PatientDocument {
+        String getPatient();
+        Long getVersion();
+    }
+
+    // the current document and its version without loading the entity into the persistence context
+    @Query(value = "SELECT Cast(p.patient as text) as patient, p.version as version " +
+            "FROM patient_entity p " +
+            "WHERE p.id = :id AND p.snapshot_id IS NULL",
+            nativeQuery = true)
+    Optional<PatientDocument> findDocument(UUID id);
+
+    public static interface PatientIdDocument extends PatientDocument {
+        String getId();
+    }
+
+    @Query(value = "SELECT Cast(p.id as varchar) as id, Cast(p.patient as text) as patient, p.version as version " +
+            "FROM patient_entity p " +
+            "WHERE p.id IN (:ids) AND p.snapshot_id IS NULL",
+            nativeQuery = true)
+    List<PatientIdDocument> findDocuments(Collection<UUID> ids);
+
+    // backfills the blame built from the patches up to version, unless a write got there first. native so it
+    // doesn't touch updated_at
+    @Modifying
+    @Query(value = "UPDATE patient_entity SET blame = Cast(:blame as jsonb) " +
+            "WHERE id = :id AND version = :version AND blame IS NULL",
+            nativeQuery = true)
+    int updateBlame(UUID id, long version, String blame);
+
 }
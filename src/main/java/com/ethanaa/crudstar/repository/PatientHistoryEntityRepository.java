@@ -0,0 +1,50 @@
+package com.ethanaa.crudstar.repository;
+
+import com.ethanaa.crudstar.model.persist.patient.patch.PatientHistoryEntity;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.util.UUID;
+
+@Repository
+public interface PatientHistoryEntityRepository extends JpaRepository<PatientHistoryEntity, UUID>,
+        JpaSpecificationExecutor<PatientHistoryEntity> {
+
+    @Modifying
+    @Query(value = "ALTER TABLE patient_patch_entity ENABLE TRIGGER patient_history_trigger", nativeQuery = true)
+    void enableTrigger();
+
+    @Modifying
+    @Query(value = "ALTER TABLE patient_patch_entity DISABLE TRIGGER patient_history_trigger", nativeQuery = true)
+    void disableTrigger();
+
+    @Modifying
+    @Query(value = "TRUNCATE patient_history", nativeQuery = true)
+    void truncate();
+
+    // history for patches written while the trigger was disabled, every version of those patients
+    @Modifying
+    @Query(value =
+            "INSERT INTO patient_history (patch_id, patient_id, snapshot_id, version, valid, patient) " +
+            "SELECT p.id, p.patient_id, p.snapshot_id, p.version, " +
+            "    tsrange(p.created_at, LEAD(p.created_at) OVER (PARTITION BY p.patient_id, p.snapshot_id ORDER BY p.version)), " +
+            "    (SELECT jsonb_patch_agg(x.patch ORDER BY x.version) " +
+            "     FROM patient_patch_entity x " +
+            "     WHERE x.patient_id = p.patient_id " +
+            "       AND x.version <= p.version " +
+            "       AND ((x.snapshot_id IS NULL AND (p.snapshot_id IS NULL OR x.created_at <= pse.as_of)) " +
+            "         OR x.snapshot_id = p.snapshot_id)) " +
+            "FROM patient_patch_entity p " +
+            "    LEFT JOIN patient_snapshot_entity pse ON pse.id = p.snapshot_id " +
+            "WHERE p.patient_id IN ( " +
+            "    SELECT ppe.patient_id " +
+            "    FROM patient_patch_entity ppe " +
+            "    WHERE NOT EXISTS (SELECT 1 FROM patient_history h WHERE h.patch_id = ppe.id)) " +
+            "ON CONFLICT (patch_id) DO NOTHING",
+            nativeQuery = true)
+    int backfill();
+
+}
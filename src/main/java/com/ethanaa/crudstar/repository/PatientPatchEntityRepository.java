@@ -5,12 +5,15 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
 import java.time.LocalDateTime;
 import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 @Repository
 public interface PatientPatchEntityRepository extends JpaRepository<PatientPatchEntity, UUID> {
@@ -32,6 +35,14 @@ public interface PatientPatchEntityRepository extends JpaRepository<PatientPatch
                     "ORDER BY ppe.created_at DESC")
     Page<PatientPatchEntity> findSnapshotPatches(Pageable pageable, UUID patientId, UUID snapshotId);
 
+    // a page's patches along with each patient's latest version and the number of patients as of the time, so an
+    // as-of page is one round trip. every patient has exactly one version 1 patch (a snapshot's own patients start
+    // there too), counting those stays on patch_first_version_index instead of scanning every patch
+    public static interface PatientPagePatch extends PatientIdPatchTuple {
+        Long getLatestVersion();
+        Long getTotal();
+    }
+
     @Query(nativeQuery = true,
             value = "WITH patients_with_patches AS ( " +
                     "  SELECT patient_entity_id FROM ( " +
@@ -46,21 +57,39 @@ public interface PatientPatchEntityRepository extends JpaRepository<PatientPatch
                     "      ppe.patient_id, " +
                     "      ppe.created_at DESC " +
                     "  ) distinct_patients " +
-                    "  ORDER BY distinct_patients.created_at DESC " +
+                    "  ORDER BY distinct_patients.created_at DESC, distinct_patients.patient_entity_id DESC " +
                     "  LIMIT :pageSize OFFSET :pageNumber * :pageSize " +
                     ") " +
                     "SELECT " +
-                    "  patient_entity_id, " +
-                    "  ppe.* " +
+                    "  Cast(ppe.id as varchar) as id, " +
+                    "  Cast(ppe.patient_id as varchar) as patientId, " +
+                    "  Cast(ppe.patch as text) as patch, " +
+                    "  ppe.version as version, " +
+                    "  ppe.created_at as createdAt, " +
+                    "  latest.version as latestVersion, " +
+                    "  total.patients as total " +
                     "FROM " +
                     "  patients_with_patches " +
                     "  JOIN patient_patch_entity ppe ON patient_entity_id = ppe.patient_id " +
+                    "  CROSS JOIN LATERAL ( " +
+                    "    SELECT MAX(l.version) AS version " +
+                    "    FROM patient_patch_entity l " +
+                    "    WHERE l.patient_id = patient_entity_id " +
+                    "      AND l.snapshot_id IS NULL " +
+                    "  ) latest " +
+                    "  CROSS JOIN ( " +
+                    "    SELECT COUNT(*) AS patients " +
+                    "    FROM patient_patch_entity f " +
+                    "    WHERE f.version = 1 " +
+                    "      AND f.snapshot_id IS NULL " +
+                    "      AND f.created_at <= :localDateTime " +
+                    "  ) total " +
                     "WHERE " +
                     "  ppe.created_at <= :localDateTime " +
                     "    AND ppe.snapshot_id IS NULL " +
                     "ORDER BY " +
                     "  ppe.created_at ASC")
-    List<PatientPatchEntity> findPatchesAsOfDateTime(int pageSize, int pageNumber, LocalDateTime localDateTime);
+    List<PatientPagePatch> findPatchesAsOfDateTime(int pageSize, int pageNumber, LocalDateTime localDateTime);
 
     @Query(nativeQuery = true,
             value = "WITH patients_with_patches AS ( " +
@@ -71,29 +100,451 @@ public interface PatientPatchEntityRepository extends JpaRepository<PatientPatch
                     "      patient_patch_entity ppe " +
                     "    WHERE " +
                     "      ppe.created_at <= :localDateTime " +
-                    "        AND (ppe.snapshot_id IS NULL " +
+                    "        AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
                     "      OR ppe.snapshot_id = :snapshotId)" +
                     "    ORDER BY " +
                     "      ppe.patient_id, " +
                     "      ppe.created_at DESC " +
                     "  ) distinct_patients " +
-                    "  ORDER BY distinct_patients.created_at DESC " +
+                    "  ORDER BY distinct_patients.created_at DESC, distinct_patients.patient_entity_id DESC " +
                     "  LIMIT :pageSize OFFSET :pageNumber * :pageSize" +
                     ") " +
                     "SELECT " +
-                    "  patient_entity_id, " +
-                    "  ppe.* " +
+                    "  Cast(ppe.id as varchar) as id, " +
+                    "  Cast(ppe.patient_id as varchar) as patientId, " +
+                    "  Cast(ppe.patch as text) as patch, " +
+                    "  ppe.version as version, " +
+                    "  ppe.created_at as createdAt, " +
+                    "  latest.version as latestVersion, " +
+                    "  total.patients as total " +
                     "FROM " +
                     "  patients_with_patches " +
                     "  JOIN patient_patch_entity ppe ON patient_entity_id = ppe.patient_id " +
+                    "  CROSS JOIN LATERAL ( " +
+                    "    SELECT COALESCE(MAX(l.version) FILTER (WHERE l.snapshot_id = :snapshotId), " +
+                    "      MAX(l.version) FILTER (WHERE l.snapshot_id IS NULL)) AS version " +
+                    "    FROM patient_patch_entity l " +
+                    "    WHERE l.patient_id = patient_entity_id " +
+                    "      AND ((l.snapshot_id IS NULL AND l.created_at <= :snapshotDateTime) " +
+                    "        OR l.snapshot_id = :snapshotId) " +
+                    "  ) latest " +
+                    "  CROSS JOIN ( " +
+                    "    SELECT COUNT(*) AS patients " +
+                    "    FROM patient_patch_entity f " +
+                    "    WHERE f.version = 1 " +
+                    "      AND f.created_at <= :localDateTime " +
+                    "      AND ((f.snapshot_id IS NULL AND f.created_at <= :snapshotDateTime) " +
+                    "        OR f.snapshot_id = :snapshotId) " +
+                    "  ) total " +
                     "WHERE " +
                     "  ppe.created_at <= :localDateTime " +
-                    "    AND (ppe.snapshot_id IS NULL " +
+                    "    AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
+                    "  OR ppe.snapshot_id = :snapshotId) " +
+                    "ORDER BY " +
+                    "  ppe.created_at ASC")
+    List<PatientPagePatch> findPatchesAsOfDateTime(int pageSize, int pageNumber, LocalDateTime localDateTime,
+                                                   UUID snapshotId, LocalDateTime snapshotDateTime);
+
+    // keyset version of the paged listing: walks patches newest first from the cursor and keeps the ones that are
+    // still the latest for their patient as of localDateTime, so it reads about a page worth of rows
+    @Query(nativeQuery = true,
+            value = "WITH patients_with_patches AS ( " +
+                    "  SELECT ppe.patient_id AS patient_entity_id " +
+                    "  FROM " +
+                    "    patient_patch_entity ppe " +
+                    "  WHERE " +
+                    "    ppe.created_at <= :localDateTime " +
+                    "      AND ppe.snapshot_id IS NULL " +
+                    "      AND ppe.created_at <= :cursorCreatedAt " +
+                    "      AND (ppe.created_at, ppe.patient_id) < (:cursorCreatedAt, :cursorPatientId) " +
+                    "      AND NOT EXISTS ( " +
+                    "        SELECT 1 " +
+                    "        FROM patient_patch_entity later " +
+                    "        WHERE later.patient_id = ppe.patient_id " +
+                    "          AND later.snapshot_id IS NULL " +
+                    "          AND later.version > ppe.version " +
+                    "          AND later.created_at <= :localDateTime " +
+                    "      ) " +
+                    "  ORDER BY ppe.created_at DESC, ppe.patient_id DESC " +
+                    "  LIMIT :pageSize " +
+                    ") " +
+                    "SELECT " +
+                    "  Cast(ppe.id as varchar) as id, " +
+                    "  Cast(ppe.patient_id as varchar) as patientId, " +
+                    "  Cast(ppe.patch as text) as patch, " +
+                    "  ppe.version as version, " +
+                    "  ppe.created_at as createdAt, " +
+                    "  latest.version as latestVersion, " +
+                    "  total.patients as total " +
+                    "FROM " +
+                    "  patients_with_patches " +
+                    "  JOIN patient_patch_entity ppe ON patient_entity_id = ppe.patient_id " +
+                    "  CROSS JOIN LATERAL ( " +
+                    "    SELECT MAX(l.version) AS version " +
+                    "    FROM patient_patch_entity l " +
+                    "    WHERE l.patient_id = patient_entity_id " +
+                    "      AND l.snapshot_id IS NULL " +
+                    "  ) latest " +
+                    "  CROSS JOIN ( " +
+                    "    SELECT COUNT(*) AS patients " +
+                    "    FROM patient_patch_entity f " +
+                    "    WHERE f.version = 1 " +
+                    "      AND f.snapshot_id IS NULL " +
+                    "      AND f.created_at <= :localDateTime " +
+                    "  ) total " +
+                    "WHERE " +
+                    "  ppe.created_at <= :localDateTime " +
+                    "    AND ppe.snapshot_id IS NULL " +
+                    "ORDER BY " +
+                    "  ppe.created_at ASC")
+    List<PatientPagePatch> findPatchesAsOfDateTime(int pageSize, LocalDateTime cursorCreatedAt,
+                                                   UUID cursorPatientId, LocalDateTime localDateTime);
+
+    @Query(nativeQuery = true,
+            value = "WITH patients_with_patches AS ( " +
+                    "  SELECT ppe.patient_id AS patient_entity_id " +
+                    "  FROM " +
+                    "    patient_patch_entity ppe " +
+                    "  WHERE " +
+                    "    ppe.created_at <= :localDateTime " +
+                    "      AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
+                    "    OR ppe.snapshot_id = :snapshotId) " +
+                    "      AND ppe.created_at <= :cursorCreatedAt " +
+                    "      AND (ppe.created_at, ppe.patient_id) < (:cursorCreatedAt, :cursorPatientId) " +
+                    "      AND NOT EXISTS ( " +
+                    "        SELECT 1 " +
+                    "        FROM patient_patch_entity later " +
+                    "        WHERE later.patient_id = ppe.patient_id " +
+                    "          AND ((later.snapshot_id IS NULL AND later.created_at <= :snapshotDateTime) " +
+                    "        OR later.snapshot_id = :snapshotId) " +
+                    "          AND later.version > ppe.version " +
+                    "          AND later.created_at <= :localDateTime " +
+                    "      ) " +
+                    "  ORDER BY ppe.created_at DESC, ppe.patient_id DESC " +
+                    "  LIMIT :pageSize " +
+                    ") " +
+                    "SELECT " +
+                    "  Cast(ppe.id as varchar) as id, " +
+                    "  Cast(ppe.patient_id as varchar) as patientId, " +
+                    "  Cast(ppe.patch as text) as patch, " +
+                    "  ppe.version as version, " +
+                    "  ppe.created_at as createdAt, " +
+                    "  latest.version as latestVersion, " +
+                    "  total.patients as total " +
+                    "FROM " +
+                    "  patients_with_patches " +
+                    "  JOIN patient_patch_entity ppe ON patient_entity_id = ppe.patient_id " +
+                    "  CROSS JOIN LATERAL ( " +
+                    "    SELECT COALESCE(MAX(l.version) FILTER (WHERE l.snapshot_id = :snapshotId), " +
+                    "      MAX(l.version) FILTER (WHERE l.snapshot_id IS NULL)) AS version " +
+                    "    FROM patient_patch_entity l " +
+                    "    WHERE l.patient_id = patient_entity_id " +
+                    "      AND ((l.snapshot_id IS NULL AND l.created_at <= :snapshotDateTime) " +
+                    "        OR l.snapshot_id = :snapshotId) " +
+                    "  ) latest " +
+                    "  CROSS JOIN ( " +
+                    "    SELECT COUNT(*) AS patients " +
+                    "    FROM patient_patch_entity f " +
+                    "    WHERE f.version = 1 " +
+                    "      AND f.created_at <= :localDateTime " +
+                    "      AND ((f.snapshot_id IS NULL AND f.created_at <= :snapshotDateTime) " +
+                    "        OR f.snapshot_id = :snapshotId) " +
+                    "  ) total " +
+                    "WHERE " +
+                    "  ppe.created_at <= :localDateTime " +
+                    "    AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
                     "  OR ppe.snapshot_id = :snapshotId) " +
                     "ORDER BY " +
                     "  ppe.created_at ASC")
-    List<PatientPatchEntity> findPatchesAsOfDateTime(int pageSize, int pageNumber,
-                                                     LocalDateTime localDateTime, UUID snapshotId);
+    List<PatientPagePatch> findPatchesAsOfDateTime(int pageSize, LocalDateTime cursorCreatedAt,
+                                                   UUID cursorPatientId, LocalDateTime localDateTime,
+                                                   UUID snapshotId, LocalDateTime snapshotDateTime);
+
+    public static interface PatientDocument {
+        String getPatientId();
+        Long getVersion();
+        LocalDateTime getCreatedAt();
+        String getDocument();
+    }
+
+    // same pages as findPatchesAsOfDateTime, with the patches already folded into one document per patient by
+    // jsonb_patch_agg (schema.sql)
+    @Query(nativeQuery = true,
+            value = "WITH patients_with_patches AS ( " +
+                    "  SELECT patient_entity_id FROM ( " +
+                    "    SELECT " +
+                    "      DISTINCT ON (ppe.patient_id) ppe.patient_id AS patient_entity_id, ppe.created_at " +
+                    "    FROM " +
+                    "      patient_patch_entity ppe " +
+                    "    WHERE " +
+                    "      ppe.created_at <= :localDateTime " +
+                    "        AND ppe.snapshot_id IS NULL " +
+                    "    ORDER BY " +
+                    "      ppe.patient_id, " +
+                    "      ppe.created_at DESC " +
+                    "  ) distinct_patients " +
+                    "  ORDER BY distinct_patients.created_at DESC, distinct_patients.patient_entity_id DESC " +
+                    "  LIMIT :pageSize OFFSET :pageNumber * :pageSize " +
+                    ") " +
+                    "SELECT " +
+                    "  Cast(ppe.patient_id as varchar) AS patientId, " +
+                    "  MAX(ppe.version) AS version, " +
+                    "  MAX(ppe.created_at) AS createdAt, " +
+                    "  Cast(jsonb_patch_agg(ppe.patch ORDER BY ppe.version) as text) AS document " +
+                    "FROM " +
+                    "  patients_with_patches " +
+                    "  JOIN patient_patch_entity ppe ON patient_entity_id = ppe.patient_id " +
+                    "WHERE " +
+                    "  ppe.created_at <= :localDateTime " +
+                    "    AND ppe.snapshot_id IS NULL " +
+                    "GROUP BY " +
+                    "  ppe.patient_id " +
+                    "ORDER BY " +
+                    "  MIN(ppe.created_at) ASC")
+    List<PatientDocument> findDocumentsAsOfDateTime(int pageSize, int pageNumber, LocalDateTime localDateTime);
+
+    @Query(nativeQuery = true,
+            value = "WITH patients_with_patches AS ( " +
+                    "  SELECT patient_entity_id FROM ( " +
+                    "    SELECT " +
+                    "      DISTINCT ON (ppe.patient_id) ppe.patient_id AS patient_entity_id, ppe.created_at " +
+                    "    FROM " +
+                    "      patient_patch_entity ppe " +
+                    "    WHERE " +
+                    "      ppe.created_at <= :localDateTime " +
+                    "        AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
+                    "      OR ppe.snapshot_id = :snapshotId)" +
+                    "    ORDER BY " +
+                    "      ppe.patient_id, " +
+                    "      ppe.created_at DESC " +
+                    "  ) distinct_patients " +
+                    "  ORDER BY distinct_patients.created_at DESC, distinct_patients.patient_entity_id DESC " +
+                    "  LIMIT :pageSize OFFSET :pageNumber * :pageSize" +
+                    ") " +
+                    "SELECT " +
+                    "  Cast(ppe.patient_id as varchar) AS patientId, " +
+                    "  MAX(ppe.version) AS version, " +
+                    "  MAX(ppe.created_at) AS createdAt, " +
+                    "  Cast(jsonb_patch_agg(ppe.patch ORDER BY ppe.version) as text) AS document " +
+                    "FROM " +
+                    "  patients_with_patches " +
+                    "  JOIN patient_patch_entity ppe ON patient_entity_id = ppe.patient_id " +
+                    "WHERE " +
+                    "  ppe.created_at <= :localDateTime " +
+                    "    AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
+                    "  OR ppe.snapshot_id = :snapshotId) " +
+                    "GROUP BY " +
+                    "  ppe.patient_id " +
+                    "ORDER BY " +
+                    "  MIN(ppe.created_at) ASC")
+    List<PatientDocument> findDocumentsAsOfDateTime(int pageSize, int pageNumber, LocalDateTime localDateTime,
+                                                    UUID snapshotId, LocalDateTime snapshotDateTime);
+
+    @Query(nativeQuery = true,
+            value = "WITH patients_with_patches AS ( " +
+                    "  SELECT ppe.patient_id AS patient_entity_id " +
+                    "  FROM " +
+                    "    patient_patch_entity ppe " +
+                    "  WHERE " +
+                    "    ppe.created_at <= :localDateTime " +
+                    "      AND ppe.snapshot_id IS NULL " +
+                    "      AND ppe.created_at <= :cursorCreatedAt " +
+                    "      AND (ppe.created_at, ppe.patient_id) < (:cursorCreatedAt, :cursorPatientId) " +
+                    "      AND NOT EXISTS ( " +
+                    "        SELECT 1 " +
+                    "        FROM patient_patch_entity later " +
+                    "        WHERE later.patient_id = ppe.patient_id " +
+                    "          AND later.snapshot_id IS NULL " +
+                    "          AND later.version > ppe.version " +
+                    "          AND later.created_at <= :localDateTime " +
+                    "      ) " +
+                    "  ORDER BY ppe.created_at DESC, ppe.patient_id DESC " +
+                    "  LIMIT :pageSize " +
+                    ") " +
+                    "SELECT " +
+                    "  Cast(ppe.patient_id as varchar) AS patientId, " +
+                    "  MAX(ppe.version) AS version, " +
+                    "  MAX(ppe.created_at) AS createdAt, " +
+                    "  Cast(jsonb_patch_agg(ppe.patch ORDER BY ppe.version) as text) AS document " +
+                    "FROM " +
+                    "  patients_with_patches " +
+                    "  JOIN patient_patch_entity ppe ON patient_entity_id = ppe.patient_id " +
+                    "WHERE " +
+                    "  ppe.created_at <= :localDateTime " +
+                    "    AND ppe.snapshot_id IS NULL " +
+                    "GROUP BY " +
+                    "  ppe.patient_id " +
+                    "ORDER BY " +
+                    "  MIN(ppe.created_at) ASC")
+    List<PatientDocument> findDocumentsAsOfDateTime(int pageSize, LocalDateTime cursorCreatedAt,
+                                                    UUID cursorPatientId, LocalDateTime localDateTime);
+
+    @Query(nativeQuery = true,
+            value = "WITH patients_with_patches AS ( " +
+                    "  SELECT ppe.patient_id AS patient_entity_id " +
+                    "  FROM " +
+                    "    patient_patch_entity ppe " +
+                    "  WHERE " +
+                    "    ppe.created_at <= :localDateTime " +
+                    "      AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
+                    "    OR ppe.snapshot_id = :snapshotId) " +
+                    "      AND ppe.created_at <= :cursorCreatedAt " +
+                    "      AND (ppe.created_at, ppe.patient_id) < (:cursorCreatedAt, :cursorPatientId) " +
+                    "      AND NOT EXISTS ( " +
+                    "        SELECT 1 " +
+                    "        FROM patient_patch_entity later " +
+                    "        WHERE later.patient_id = ppe.patient_id " +
+                    "          AND ((later.snapshot_id IS NULL AND later.created_at <= :snapshotDateTime) " +
+                    "        OR later.snapshot_id = :snapshotId) " +
+                    "          AND later.version > ppe.version " +
+                    "          AND later.created_at <= :localDateTime " +
+                    "      ) " +
+                    "  ORDER BY ppe.created_at DESC, ppe.patient_id DESC " +
+                    "  LIMIT :pageSize " +
+                    ") " +
+                    "SELECT " +
+                    "  Cast(ppe.patient_id as varchar) AS patientId, " +
+                    "  MAX(ppe.version) AS version, " +
+                    "  MAX(ppe.created_at) AS createdAt, " +
+                    "  Cast(jsonb_patch_agg(ppe.patch ORDER BY ppe.version) as text) AS document " +
+                    "FROM " +
+                    "  patients_with_patches " +
+                    "  JOIN patient_patch_entity ppe ON patient_entity_id = ppe.patient_id " +
+                    "WHERE " +
+                    "  ppe.created_at <= :localDateTime " +
+                    "    AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
+                    "  OR ppe.snapshot_id = :snapshotId) " +
+                    "GROUP BY " +
+                    "  ppe.patient_id " +
+                    "ORDER BY " +
+                    "  MIN(ppe.created_at) ASC")
+    List<PatientDocument> findDocumentsAsOfDateTime(int pageSize, LocalDateTime cursorCreatedAt,
+                                                    UUID cursorPatientId, LocalDateTime localDateTime,
+                                                    UUID snapshotId, LocalDateTime snapshotDateTime);
+
+    // patient_history (schema.sql) has the document of every version with the period it was current for, so these
+    // answer as-of reads with a range lookup instead of replaying patches. the pages match findPatchesAsOfDateTime
+    @Query(nativeQuery = true,
+            value = "SELECT " +
+                    "  Cast(h.patient_id as varchar) AS patientId, " +
+                    "  h.version AS version, " +
+                    "  lower(h.valid) AS createdAt, " +
+                    "  Cast(h.patient as text) AS document " +
+                    "FROM patient_history h " +
+                    "WHERE h.patient_id = :patientId " +
+                    "  AND h.snapshot_id IS NULL " +
+                    "  AND lower(h.valid) <= :localDateTime " +
+                    "  AND h.valid @> Cast(:localDateTime as timestamp) " +
+                    "ORDER BY lower(h.valid) DESC " +
+                    "LIMIT 1")
+    PatientDocument findHistoryAsOfDateTime(UUID patientId, LocalDateTime localDateTime);
+
+    @Query(nativeQuery = true,
+            value = "SELECT " +
+                    "  Cast(h.patient_id as varchar) AS patientId, " +
+                    "  h.version AS version, " +
+                    "  lower(h.valid) AS createdAt, " +
+                    "  Cast(h.patient as text) AS document " +
+                    "FROM patient_history h " +
+                    "WHERE h.patient_id = :patientId " +
+                    "  AND ((h.snapshot_id = :snapshotId " +
+                    "      AND h.valid @> Cast(:localDateTime as timestamp)) " +
+                    "    OR (h.snapshot_id IS NULL " +
+                    "      AND h.valid @> LEAST(Cast(:localDateTime as timestamp), Cast(:snapshotDateTime as timestamp)))) " +
+                    "ORDER BY h.snapshot_id NULLS LAST " +
+                    "LIMIT 1")
+    PatientDocument findHistoryAsOfDateTime(UUID patientId, LocalDateTime localDateTime,
+                                            UUID snapshotId, LocalDateTime snapshotDateTime);
+
+    @Query(nativeQuery = true,
+            value = "SELECT " +
+                    "  Cast(h.patient_id as varchar) AS patientId, " +
+                    "  h.version AS version, " +
+                    "  lower(h.valid) AS createdAt, " +
+                    "  Cast(h.patient as text) AS document " +
+                    "FROM ( " +
+                    "  SELECT h.* " +
+                    "  FROM patient_history h " +
+                    "  WHERE h.snapshot_id IS NULL " +
+                    "    AND h.valid @> Cast(:localDateTime as timestamp) " +
+                    "  ORDER BY lower(h.valid) DESC, h.patient_id DESC " +
+                    "  LIMIT :pageSize OFFSET :pageNumber * :pageSize " +
+                    ") h " +
+                    "  JOIN patient_entity pe ON pe.id = h.patient_id " +
+                    "ORDER BY pe.created_at ASC")
+    List<PatientDocument> findHistoryAsOfDateTime(int pageSize, int pageNumber, LocalDateTime localDateTime);
+
+    @Query(nativeQuery = true,
+            value = "WITH snapshot_history AS ( " +
+                    "  SELECT DISTINCT ON (h.patient_id) h.* " +
+                    "  FROM patient_history h " +
+                    "  WHERE (h.snapshot_id = :snapshotId AND h.valid @> Cast(:localDateTime as timestamp)) " +
+                    "    OR (h.snapshot_id IS NULL " +
+                    "      AND h.valid @> LEAST(Cast(:localDateTime as timestamp), Cast(:snapshotDateTime as timestamp))) " +
+                    "  ORDER BY h.patient_id, h.snapshot_id NULLS LAST " +
+                    ") " +
+                    "SELECT " +
+                    "  Cast(h.patient_id as varchar) AS patientId, " +
+                    "  h.version AS version, " +
+                    "  lower(h.valid) AS createdAt, " +
+                    "  Cast(h.patient as text) AS document " +
+                    "FROM ( " +
+                    "  SELECT h.* " +
+                    "  FROM snapshot_history h " +
+                    "  ORDER BY lower(h.valid) DESC, h.patient_id DESC " +
+                    "  LIMIT :pageSize OFFSET :pageNumber * :pageSize " +
+                    ") h " +
+                    "  JOIN patient_entity pe ON pe.id = h.patient_id " +
+                    "ORDER BY pe.created_at ASC")
+    List<PatientDocument> findHistoryAsOfDateTime(int pageSize, int pageNumber, LocalDateTime localDateTime,
+                                                  UUID snapshotId, LocalDateTime snapshotDateTime);
+
+    @Query(nativeQuery = true,
+            value = "SELECT " +
+                    "  Cast(h.patient_id as varchar) AS patientId, " +
+                    "  h.version AS version, " +
+                    "  lower(h.valid) AS createdAt, " +
+                    "  Cast(h.patient as text) AS document " +
+                    "FROM ( " +
+                    "  SELECT h.* " +
+                    "  FROM patient_history h " +
+                    "  WHERE h.snapshot_id IS NULL " +
+                    "    AND h.valid @> Cast(:localDateTime as timestamp) " +
+                    "    AND (lower(h.valid), h.patient_id) < (Cast(:cursorCreatedAt as timestamp), :cursorPatientId) " +
+                    "  ORDER BY lower(h.valid) DESC, h.patient_id DESC " +
+                    "  LIMIT :pageSize " +
+                    ") h " +
+                    "  JOIN patient_entity pe ON pe.id = h.patient_id " +
+                    "ORDER BY pe.created_at ASC")
+    List<PatientDocument> findHistoryAsOfDateTime(int pageSize, LocalDateTime cursorCreatedAt,
+                                                  UUID cursorPatientId, LocalDateTime localDateTime);
+
+    @Query(nativeQuery = true,
+            value = "WITH snapshot_history AS ( " +
+                    "  SELECT DISTINCT ON (h.patient_id) h.* " +
+                    "  FROM patient_history h " +
+                    "  WHERE (h.snapshot_id = :snapshotId AND h.valid @> Cast(:localDateTime as timestamp)) " +
+                    "    OR (h.snapshot_id IS NULL " +
+                    "      AND h.valid @> LEAST(Cast(:localDateTime as timestamp), Cast(:snapshotDateTime as timestamp))) " +
+                    "  ORDER BY h.patient_id, h.snapshot_id NULLS LAST " +
+                    ") " +
+                    "SELECT " +
+                    "  Cast(h.patient_id as varchar) AS patientId, " +
+                    "  h.version AS version, " +
+                    "  lower(h.valid) AS createdAt, " +
+                    "  Cast(h.patient as text) AS document " +
+                    "FROM ( " +
+                    "  SELECT h.* " +
+                    "  FROM snapshot_history h " +
+                    "  WHERE (lower(h.valid), h.patient_id) < (Cast(:cursorCreatedAt as timestamp), :cursorPatientId) " +
+                    "  ORDER BY lower(h.valid) DESC, h.patient_id DESC " +
+                    "  LIMIT :pageSize " +
+                    ") h " +
+                    "  JOIN patient_entity pe ON pe.id = h.patient_id " +
+                    "ORDER BY pe.created_at ASC")
+    List<PatientDocument> findHistoryAsOfDateTime(int pageSize, LocalDateTime cursorCreatedAt,
+                                                  UUID cursorPatientId, LocalDateTime localDateTime,
+                                                  UUID snapshotId, LocalDateTime snapshotDateTime);
 
     @Query(nativeQuery = true,
             value = "SELECT ppe.* " +
@@ -113,19 +564,22 @@ public interface PatientPatchEntityRepository extends JpaRepository<PatientPatch
     List<PatientPatchEntity> findSnapshotPatches(Collection<UUID> patientIds, UUID snapshotId);
 
     @Query(nativeQuery = true,
-            value = "SELECT COUNT(DISTINCT ppe.patient_id) " +
+            value = "SELECT COUNT(*) " +
                     "FROM patient_patch_entity ppe " +
-                    "WHERE ppe.created_at <= :localDateTime " +
+                    "WHERE ppe.version = 1 " +
+                    "  AND ppe.created_at <= :localDateTime " +
                     "  AND ppe.snapshot_id IS NULL")
     Long countPatientsWithPatchesAsOfDateTime(LocalDateTime localDateTime);
 
     @Query(nativeQuery = true,
-            value = "SELECT COUNT(DISTINCT ppe.patient_id) " +
+            value = "SELECT COUNT(*) " +
                     "FROM patient_patch_entity ppe " +
-                    "WHERE ppe.created_at <= :localDateTime " +
-                    "  AND (ppe.snapshot_id IS NULL " +
+                    "WHERE ppe.version = 1 " +
+                    "  AND ppe.created_at <= :localDateTime " +
+                    "  AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
                     "  OR ppe.snapshot_id = :snapshotId)")
-    Long countSnapshotPatientsWithPatchesAsOfDateTime(LocalDateTime localDateTime, UUID snapshotId);
+    Long countSnapshotPatientsWithPatchesAsOfDateTime(LocalDateTime localDateTime,
+                                                      UUID snapshotId, LocalDateTime snapshotDateTime);
 
     @Query(nativeQuery = true,
             value = "SELECT ppe.* " +
@@ -150,10 +604,11 @@ public interface PatientPatchEntityRepository extends JpaRepository<PatientPatch
                     "FROM patient_patch_entity ppe " +
                     "WHERE ppe.patient_id = :patientId " +
                     "  AND ppe.created_at <= :localDateTime " +
-                    "    AND (ppe.snapshot_id IS NULL " +
-                    "  OR ppe.snapshot_id = :snapshotId)" +
-                    "ORDER BY ppe.created_at ASC")
-    List<PatientPatchEntity> findPatchesAsOfDateTime(UUID patientId, LocalDateTime localDateTime, UUID snapshotId);
+                    "    AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
+                    "  OR ppe.snapshot_id = :snapshotId) " +
+                    "ORDER BY ppe.version ASC")
+    List<PatientPatchEntity> findPatchesAsOfDateTime(UUID patientId, LocalDateTime localDateTime,
+                                                     UUID snapshotId, LocalDateTime snapshotDateTime);
 
     @Query(nativeQuery = true,
             value = "SELECT ppe.* " +
@@ -171,117 +626,423 @@ public interface PatientPatchEntityRepository extends JpaRepository<PatientPatch
                     "FROM patient_patch_entity ppe " +
                     "WHERE ppe.patient_id = :patientId " +
                     "  AND ppe.snapshot_id IS NULL " +
-                    "ORDER BY ppe.created_at ASC " +
-                    "LIMIT :numPatches")
-    List<PatientPatchEntity> findFirstPatches(UUID patientId, long numPatches);
+                    "  AND ppe.version <= :version " +
+                    "ORDER BY ppe.version ASC")
+    List<PatientPatchEntity> findPatchesToVersion(UUID patientId, long version);
+
+    @Query(nativeQuery = true,
+            value = "SELECT ppe.* " +
+                    "FROM patient_patch_entity ppe " +
+                    "WHERE ppe.patient_id = :patientId " +
+                    "  AND ppe.snapshot_id IS NULL " +
+                    "  AND ppe.version > :afterVersion " +
+                    "  AND ppe.version <= :version " +
+                    "ORDER BY ppe.version ASC")
+    List<PatientPatchEntity> findPatchesToVersion(UUID patientId, long afterVersion, long version);
 
     @Query(nativeQuery = true,
             value = "SELECT ppe.* " +
                     "FROM patient_patch_entity ppe " +
                     "WHERE ppe.patient_id = :patientId " +
-                    "  AND (ppe.created_at <= :localDateTime " +
-                    "    AND ppe.snapshot_id IS NULL) " +
-                    "  OR ppe.snapshot_id = :snapshotId " +
-                    "ORDER BY ppe.created_at ASC " +
-                    "LIMIT :numPatches")
-    List<PatientPatchEntity> findFirstSnapshotPatches(
-            UUID patientId, UUID snapshotId, LocalDateTime localDateTime, long numPatches);
+                    "  AND ppe.snapshot_id IS NULL " +
+                    "  AND ppe.version >= :version " +
+                    "  AND ppe.version <= :latestVersion " +
+                    "ORDER BY ppe.version DESC")
+    List<PatientPatchEntity> findPatchesFromVersion(UUID patientId, long version, long latestVersion);
+
+    @Query(nativeQuery = true,
+            value = "SELECT ppe.* " +
+                    "FROM patient_patch_entity ppe " +
+                    "WHERE ppe.patient_id = :patientId " +
+                    "  AND ppe.version <= :version " +
+                    "  AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
+                    "    OR ppe.snapshot_id = :snapshotId) " +
+                    "ORDER BY ppe.version ASC")
+    List<PatientPatchEntity> findSnapshotPatchesToVersion(
+            UUID patientId, UUID snapshotId, LocalDateTime snapshotDateTime, long version);
+
+    @Query(nativeQuery = true,
+            value = "SELECT ppe.* " +
+                    "FROM patient_patch_entity ppe " +
+                    "WHERE ppe.patient_id = :patientId " +
+                    "  AND ppe.version > :afterVersion " +
+                    "  AND ppe.version <= :version " +
+                    "  AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
+                    "    OR ppe.snapshot_id = :snapshotId) " +
+                    "ORDER BY ppe.version ASC")
+    List<PatientPatchEntity> findSnapshotPatchesToVersion(
+            UUID patientId, UUID snapshotId, LocalDateTime snapshotDateTime, long afterVersion, long version);
+
+    // what the version listings show without replaying anything
+    public static interface PatchMetadata {
+        Long getVersion();
+        LocalDateTime getCreatedAt();
+        String getSnapshotId();
+        Long getPatchSize();
+    }
+
+    @Query(nativeQuery = true,
+            value = "SELECT ppe.version as version, " +
+                    "    ppe.created_at as createdAt, " +
+                    "    Cast(ppe.snapshot_id as varchar) as snapshotId, " +
+                    "    octet_length(Cast(ppe.patch as text)) as patchSize " +
+                    "FROM patient_patch_entity ppe " +
+                    "WHERE ppe.patient_id = :patientId " +
+                    "  AND ppe.snapshot_id IS NULL " +
+                    "ORDER BY ppe.version ASC",
+            countQuery = "SELECT COUNT(*) " +
+                    "FROM patient_patch_entity ppe " +
+                    "WHERE ppe.patient_id = :patientId " +
+                    "  AND ppe.snapshot_id IS NULL")
+    Page<PatchMetadata> findPatchMetadata(Pageable pageable, UUID patientId);
+
+    @Query(nativeQuery = true,
+            value = "SELECT ppe.version as version, " +
+                    "    ppe.created_at as createdAt, " +
+                    "    Cast(ppe.snapshot_id as varchar) as snapshotId, " +
+                    "    octet_length(Cast(ppe.patch as text)) as patchSize " +
+                    "FROM patient_patch_entity ppe " +
+                    "WHERE ppe.patient_id = :patientId " +
+                    "  AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
+                    "    OR ppe.snapshot_id = :snapshotId) " +
+                    "ORDER BY ppe.version ASC",
+            countQuery = "SELECT COUNT(*) " +
+                    "FROM patient_patch_entity ppe " +
+                    "WHERE ppe.patient_id = :patientId " +
+                    "  AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
+                    "    OR ppe.snapshot_id = :snapshotId)")
+    Page<PatchMetadata> findSnapshotPatchMetadata(Pageable pageable, UUID patientId, UUID snapshotId,
+                                                  LocalDateTime snapshotDateTime);
 
     public static interface PatientIdPatchTuple {
+        String getId();
         String getPatientId();
         String getPatch();
+        Long getVersion();
 
         LocalDateTime getCreatedAt();
     }
 
     @Query(nativeQuery = true,
-            value = "SELECT Cast(ppe.patient_id as varchar) as patientId, " +
+            value = "SELECT Cast(ppe.id as varchar) as id, " +
+                    "    Cast(ppe.patient_id as varchar) as patientId, " +
                     "    Cast(ppe.patch as text) as patch, " +
+                    "    ppe.version as version, " +
                     "    ppe.created_at as createdAt " +
                     "FROM patient_patch_entity ppe " +
                     "WHERE ppe.patient_id IN (:patientIds) " +
                     "  AND ppe.snapshot_id IS NULL " +
-                    "GROUP BY ppe.id, ppe.patient_id " +
-                    "ORDER BY ppe.patient_id, ppe.created_at ASC")
+                    "ORDER BY ppe.patient_id, ppe.version ASC")
     List<PatientIdPatchTuple> findPatches(List<UUID> patientIds);
 
+    // one operation of a stored patch, from patient_patch_operation (schema.sql)
+    public static interface PatchOperation {
+        String getPatientId();
+        Long getVersion();
+        LocalDateTime getCreatedAt();
+        String getOp();
+        String getPath();
+        String getFromPath();
+        String getValue();
+    }
+
+    // operations at one of the paths (the field and its ancestors) or below the prefix, mainline only. one branch per
+    // column and predicate so that each is an index range even in the driver's generic plan (an OR over both columns,
+    // or LIKE with a bound pattern, leaves only patient_id). ~>=~ and ~<~ are the text_pattern_ops comparisons, the
+    // from_path branches skip operations the path branches already returned
+    @Query(nativeQuery = true,
+            value = "SELECT Cast(ppo.patient_id as varchar) as patientId, " +
+                    "    ppo.version as version, " +
+                    "    ppo.created_at as createdAt, " +
+                    "    ppo.op as op, " +
+                    "    ppo.path as path, " +
+                    "    ppo.from_path as fromPath, " +
+                    "    Cast(ppo.value as text) as value " +
+                    "FROM ( " +
+                    "  SELECT ppo.* FROM patient_patch_operation ppo " +
+                    "  WHERE ppo.patient_id = :patientId AND ppo.snapshot_id IS NULL " +
+                    "    AND ppo.path IN (:paths) " +
+                    "  UNION ALL " +
+                    "  SELECT ppo.* FROM patient_patch_operation ppo " +
+                    "  WHERE ppo.patient_id = :patientId AND ppo.snapshot_id IS NULL " +
+                    "    AND ppo.path ~>=~ :pathPrefix AND ppo.path ~<~ :pathUpperBound " +
+                    "  UNION ALL " +
+                    "  SELECT ppo.* FROM patient_patch_operation ppo " +
+                    "  WHERE ppo.patient_id = :patientId AND ppo.snapshot_id IS NULL " +
+                    "    AND ppo.from_path IN (:paths) " +
+                    "    AND NOT (ppo.path IN (:paths) " +
+                    "      OR (ppo.path ~>=~ :pathPrefix AND ppo.path ~<~ :pathUpperBound)) " +
+                    "  UNION ALL " +
+                    "  SELECT ppo.* FROM patient_patch_operation ppo " +
+                    "  WHERE ppo.patient_id = :patientId AND ppo.snapshot_id IS NULL " +
+                    "    AND ppo.from_path ~>=~ :pathPrefix AND ppo.from_path ~<~ :pathUpperBound " +
+                    "    AND NOT (ppo.path IN (:paths) " +
+                    "      OR (ppo.path ~>=~ :pathPrefix AND ppo.path ~<~ :pathUpperBound)) " +
+                    ") ppo " +
+                    "ORDER BY ppo.version ASC, ppo.ordinal ASC",
+            countQuery = "SELECT COUNT(*) " +
+                    "FROM ( " +
+                    "  SELECT ppo.* FROM patient_patch_operation ppo " +
+                    "  WHERE ppo.patient_id = :patientId AND ppo.snapshot_id IS NULL " +
+                    "    AND ppo.path IN (:paths) " +
+                    "  UNION ALL " +
+                    "  SELECT ppo.* FROM patient_patch_operation ppo " +
+                    "  WHERE ppo.patient_id = :patientId AND ppo.snapshot_id IS NULL " +
+                    "    AND ppo.path ~>=~ :pathPrefix AND ppo.path ~<~ :pathUpperBound " +
+                    "  UNION ALL " +
+                    "  SELECT ppo.* FROM patient_patch_operation ppo " +
+                    "  WHERE ppo.patient_id = :patientId AND ppo.snapshot_id IS NULL " +
+                    "    AND ppo.from_path IN (:paths) " +
+                    "    AND NOT (ppo.path IN (:paths) " +
+                    "      OR (ppo.path ~>=~ :pathPrefix AND ppo.path ~<~ :pathUpperBound)) " +
+                    "  UNION ALL " +
+                    "  SELECT ppo.* FROM patient_patch_operation ppo " +
+                    "  WHERE ppo.patient_id = :patientId AND ppo.snapshot_id IS NULL " +
+                    "    AND ppo.from_path ~>=~ :pathPrefix AND ppo.from_path ~<~ :pathUpperBound " +
+                    "    AND NOT (ppo.path IN (:paths) " +
+                    "      OR (ppo.path ~>=~ :pathPrefix AND ppo.path ~<~ :pathUpperBound)) " +
+                    ") ppo")
+    Page<PatchOperation> findPatchOperations(Pageable pageable, UUID patientId, Collection<String> paths,
+                                             String pathPrefix, String pathUpperBound);
+
+    public static interface VersionTime {
+        Long getVersion();
+        LocalDateTime getCreatedAt();
+    }
+
+    @Query(nativeQuery = true,
+            value = "SELECT ppe.version as version, " +
+                    "    ppe.created_at as createdAt " +
+                    "FROM patient_patch_entity ppe " +
+                    "WHERE ppe.patient_id = :patientId " +
+                    "  AND ppe.snapshot_id IS NULL " +
+                    "ORDER BY ppe.version ASC")
+    List<VersionTime> findVersionTimes(UUID patientId);
+
+    // forward only, the driver only uses a cursor (and fetches in batches) inside a transaction
+    @QueryHints(@QueryHint(name = org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE, value = "500"))
+    @Query(nativeQuery = true,
+            value = "SELECT Cast(ppe.id as varchar) as id, " +
+                    "    Cast(ppe.patient_id as varchar) as patientId, " +
+                    "    Cast(ppe.patch as text) as patch, " +
+                    "    ppe.version as version, " +
+                    "    ppe.created_at as createdAt " +
+                    "FROM patient_patch_entity ppe " +
+                    "WHERE ppe.patient_id IN (:patientIds) " +
+                    "  AND ppe.snapshot_id IS NULL " +
+                    "ORDER BY ppe.patient_id, ppe.version ASC")
+    Stream<PatientIdPatchTuple> streamPatches(Collection<UUID> patientIds);
+
     @Query(nativeQuery = true,
-            value = "SELECT Cast(ppe.patient_id as varchar) as patientId, " +
+            value = "SELECT Cast(ppe.id as varchar) as id, " +
+                    "    Cast(ppe.patient_id as varchar) as patientId, " +
                     "    Cast(ppe.patch as text) as patch, " +
+                    "    ppe.version as version, " +
                     "    ppe.created_at as createdAt " +
                     "FROM patient_patch_entity ppe " +
                     "WHERE ppe.patient_id IN (:patientIds) " +
                     "  AND ppe.created_at <= :localDateTime " +
-                    "  AND (ppe.snapshot_id IS NULL " +
+                    "  AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
                     "    OR ppe.snapshot_id = :snapshotId) " +
-                    "GROUP BY ppe.id, ppe.patient_id " +
-                    "ORDER BY ppe.patient_id, ppe.created_at ASC")
-    List<PatientIdPatchTuple> findPatches(List<UUID> patientIds, UUID snapshotId, LocalDateTime localDateTime);
+                    "ORDER BY ppe.patient_id, ppe.version ASC")
+    List<PatientIdPatchTuple> findPatches(List<UUID> patientIds, UUID snapshotId,
+                                          LocalDateTime snapshotDateTime, LocalDateTime localDateTime);
 
     @Query(nativeQuery = true,
-            value = "SELECT COUNT(ppe.id) " +
+            value = "SELECT COALESCE(MAX(ppe.version), 0) " +
                     "FROM patient_patch_entity ppe " +
                     "WHERE ppe.patient_id = :patientId " +
                     "  AND ppe.snapshot_id IS NULL")
-    Long countPatches(UUID patientId);
+    long findLatestVersion(UUID patientId);
 
-    public static interface PatchCount {
-        String getPatientId();
-        Long getCount();
-    }
+    // a snapshot continues the mainline version sequence as of the snapshot
+    @Query(nativeQuery = true,
+            value = "SELECT COALESCE( " +
+                    "  (SELECT MAX(ppe.version) " +
+                    "   FROM patient_patch_entity ppe " +
+                    "   WHERE ppe.patient_id = :patientId " +
+                    "     AND ppe.snapshot_id = :snapshotId), " +
+                    "  (SELECT MAX(ppe.version) " +
+                    "   FROM patient_patch_entity ppe " +
+                    "   WHERE ppe.patient_id = :patientId " +
+                    "     AND ppe.snapshot_id IS NULL " +
+                    "     AND ppe.created_at <= :snapshotDateTime), " +
+                    "  0)")
+    long findLatestSnapshotVersion(UUID patientId, UUID snapshotId, LocalDateTime snapshotDateTime);
 
     @Query(nativeQuery = true,
-            value = "SELECT Cast(ppe.patient_id as varchar) AS patientId, COUNT(ppe.id) AS count " +
+            value = "SELECT ppe.version " +
                     "FROM patient_patch_entity ppe " +
-                    "WHERE ppe.patient_id IN (:patientIds) " +
+                    "WHERE ppe.patient_id = :patientId " +
                     "  AND ppe.snapshot_id IS NULL " +
-                    "GROUP BY ppe.patient_id")
-    List<PatchCount> countPatches(List<UUID> patientIds);
+                    "  AND ppe.created_at <= :localDateTime " +
+                    "ORDER BY ppe.created_at DESC " +
+                    "LIMIT 1")
+    Long findVersionAsOfDateTime(UUID patientId, LocalDateTime localDateTime);
 
     @Query(nativeQuery = true,
-            value = "SELECT Cast(ppe.patient_id as varchar) AS patientId, COUNT(ppe.id) AS count " +
+            value = "SELECT COALESCE( " +
+                    "  (SELECT ppe.version " +
+                    "   FROM patient_patch_entity ppe " +
+                    "   WHERE ppe.patient_id = :patientId " +
+                    "     AND ppe.snapshot_id = :snapshotId " +
+                    "     AND ppe.created_at <= :localDateTime " +
+                    "   ORDER BY ppe.created_at DESC " +
+                    "   LIMIT 1), " +
+                    "  (SELECT ppe.version " +
+                    "   FROM patient_patch_entity ppe " +
+                    "   WHERE ppe.patient_id = :patientId " +
+                    "     AND ppe.snapshot_id IS NULL " +
+                    "     AND ppe.created_at <= :localDateTime " +
+                    "     AND ppe.created_at <= :snapshotDateTime " +
+                    "   ORDER BY ppe.created_at DESC " +
+                    "   LIMIT 1))")
+    Long findSnapshotVersionAsOfDateTime(UUID patientId, UUID snapshotId,
+                                         LocalDateTime snapshotDateTime, LocalDateTime localDateTime);
+
+    public static interface PatchVersion {
+        String getPatientId();
+        Long getVersion();
+    }
+
+    @Query(nativeQuery = true,
+            value = "SELECT Cast(pe.id as varchar) AS patientId, latest.version AS version " +
+                    "FROM patient_entity pe " +
+                    "  CROSS JOIN LATERAL ( " +
+                    "    SELECT ppe.version " +
+                    "    FROM patient_patch_entity ppe " +
+                    "    WHERE ppe.patient_id = pe.id " +
+                    "      AND ppe.snapshot_id IS NULL " +
+                    "    ORDER BY ppe.version DESC " +
+                    "    LIMIT 1 " +
+                    "  ) latest " +
+                    "WHERE pe.id IN (:patientIds)")
+    List<PatchVersion> findLatestVersions(List<UUID> patientIds);
+
+    @Query(nativeQuery = true,
+            value = "SELECT Cast(ppe.patient_id as varchar) AS patientId, " +
+                    "    COALESCE(MAX(ppe.version) FILTER (WHERE ppe.snapshot_id = :snapshotId), " +
+                    "      MAX(ppe.version) FILTER (WHERE ppe.snapshot_id IS NULL)) AS version " +
                     "FROM patient_patch_entity ppe " +
                     "WHERE ppe.patient_id IN (:patientIds) " +
-                    "  AND (ppe.snapshot_id IS NULL " +
-                    "    OR ppe.snapshot_id = :snapshotId)" +
+                    "  AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
+                    "    OR ppe.snapshot_id = :snapshotId) " +
                     "GROUP BY ppe.patient_id")
-    List<PatchCount> countPatches(List<UUID> patientIds, UUID snapshotId);
+    List<PatchVersion> findLatestVersions(List<UUID> patientIds, UUID snapshotId, LocalDateTime snapshotDateTime);
+
+    @Query(nativeQuery = true,
+            value = "SELECT Cast(pe.id as varchar) AS patientId, latest.version AS version " +
+                    "FROM patient_entity pe " +
+                    "  CROSS JOIN LATERAL ( " +
+                    "    SELECT ppe.version " +
+                    "    FROM patient_patch_entity ppe " +
+                    "    WHERE ppe.patient_id = pe.id " +
+                    "      AND ppe.snapshot_id IS NULL " +
+                    "      AND ppe.created_at <= :localDateTime " +
+                    "    ORDER BY ppe.created_at DESC " +
+                    "    LIMIT 1 " +
+                    "  ) latest " +
+                    "WHERE pe.id IN (:patientIds)")
+    List<PatchVersion> findVersionsAsOfDateTime(List<UUID> patientIds, LocalDateTime localDateTime);
 
     @Query(nativeQuery = true,
-            value = "SELECT COUNT(ppe.id) " +
+            value = "SELECT Cast(ppe.patient_id as varchar) AS patientId, " +
+                    "    COALESCE(MAX(ppe.version) FILTER (WHERE ppe.snapshot_id = :snapshotId), " +
+                    "      MAX(ppe.version) FILTER (WHERE ppe.snapshot_id IS NULL)) AS version " +
                     "FROM patient_patch_entity ppe " +
-                    "WHERE ppe.patient_id = :patientId " +
+                    "WHERE ppe.patient_id IN (:patientIds) " +
                     "  AND ppe.created_at <= :localDateTime " +
-                    "  AND ppe.snapshot_id IS NULL")
-    long countPatchesAsOfDateTime(UUID patientId, LocalDateTime localDateTime);
+                    "  AND ((ppe.snapshot_id IS NULL AND ppe.created_at <= :snapshotDateTime) " +
+                    "    OR ppe.snapshot_id = :snapshotId) " +
+                    "GROUP BY ppe.patient_id")
+    List<PatchVersion> findVersionsAsOfDateTime(List<UUID> patientIds, LocalDateTime localDateTime,
+                                                UUID snapshotId, LocalDateTime snapshotDateTime);
 
     @Query(nativeQuery = true,
-            value = "SELECT COUNT(ppe.id) " +
+            value = "SELECT DISTINCT Cast(ppe.patient_id as varchar) " +
                     "FROM patient_patch_entity ppe " +
-                    "WHERE ppe.patient_id = :patientId " +
-                    "  AND ( " +
-                    "    (ppe.created_at <= :localDateTime AND ppe.snapshot_id IS NULL) " +
-                    "    OR ppe.snapshot_id = :snapshotId " +
-                    "  )")
-    long countSnapshotPatches(UUID patientId, LocalDateTime localDateTime, UUID snapshotId);
+                    "WHERE ppe.snapshot_id IS NULL " +
+                    "  AND ppe.created_at > :localDateTime")
+    List<String> findPatientIdsChangedAfter(LocalDateTime localDateTime);
 
+    public static interface InversePatch {
+        String getPatientId();
+        Long getVersion();
+        String getInversePatch();
+    }
+
+    // the inverse patches of several patients written after the time, newest first for each patient
     @Query(nativeQuery = true,
-            value = "SELECT Cast(ppe.patient_id as varchar) AS patientId, COUNT(ppe.id) AS count " +
+            value = "SELECT Cast(ppe.patient_id as varchar) AS patientId, ppe.version AS version, " +
+                    "    Cast(ppe.inverse_patch as text) AS inversePatch " +
                     "FROM patient_patch_entity ppe " +
-                    "WHERE ppe.patient_id in (:patientIds) " +
-                    "  AND ppe.created_at <= :localDateTime " +
+                    "WHERE ppe.patient_id IN (:patientIds) " +
                     "  AND ppe.snapshot_id IS NULL " +
-                    "GROUP BY ppe.patient_id")
-    List<PatchCount> countPatchesAsOfDateTime(List<UUID> patientIds, LocalDateTime localDateTime);
+                    "  AND ppe.created_at > :localDateTime " +
+                    "ORDER BY ppe.patient_id, ppe.version DESC")
+    List<InversePatch> findInversePatchesAfter(Collection<UUID> patientIds, LocalDateTime localDateTime);
+
+    // a row per patch to replay for each request, the request's checkpoint (if any) only on its first row. a request
+    // its checkpoint already covers comes back as a single row without a patch
+    public static interface RequestedPatch {
+        Integer getOrdinal();
+        String getPatientId();
+        Long getVersion();
+        Long getLatestVersion();
+        LocalDateTime getCreatedAt();
+        String getCheckpoint();
+        String getId();
+        String getPatch();
+    }
 
+    // the patches of many (patient, time / version) requests in one round trip. requests are a jsonb array of
+    // {ordinal, patient_id, as_of, version}, each replays from its latest checkpoint at or before the target version
     @Query(nativeQuery = true,
-            value = "SELECT Cast(ppe.patient_id as varchar) AS patientId, COUNT(ppe.id) AS count " +
-                    "FROM patient_patch_entity ppe " +
-                    "WHERE ppe.patient_id in (:patientIds) " +
-                    "  AND ( " +
-                    "    (ppe.created_at <= :localDateTime AND ppe.snapshot_id IS NULL) " +
-                    "    OR ppe.snapshot_id = :snapshotId " +
-                    "  ) " +
-                    "GROUP BY ppe.patient_id")
-    List<PatchCount> countPatchesAsOfDateTime(List<UUID> patientIds, LocalDateTime localDateTime, UUID snapshotId);
+            value = "WITH requests AS ( " +
+                    "  SELECT r.ordinal, r.patient_id, r.as_of, r.version " +
+                    "  FROM jsonb_to_recordset(Cast(:requests as jsonb)) " +
+                    "    AS r(ordinal int, patient_id uuid, as_of timestamp, version bigint) " +
+                    "), targets AS ( " +
+                    "  SELECT q.ordinal, q.patient_id, target.version, target.created_at, latest.version AS latest_version " +
+                    "  FROM requests q " +
+                    "    CROSS JOIN LATERAL ( " +
+                    "      SELECT ppe.version " +
+                    "      FROM patient_patch_entity ppe " +
+                    "      WHERE ppe.patient_id = q.patient_id " +
+                    "        AND ppe.snapshot_id IS NULL " +
+                    "      ORDER BY ppe.version DESC " +
+                    "      LIMIT 1 " +
+                    "    ) latest " +
+                    "    CROSS JOIN LATERAL ( " +
+                    "      SELECT ppe.version, ppe.created_at " +
+                    "      FROM patient_patch_entity ppe " +
+                    "      WHERE ppe.patient_id = q.patient_id " +
+                    "        AND ppe.snapshot_id IS NULL " +
+                    "        AND (q.as_of IS NULL OR ppe.created_at <= q.as_of) " +
+                    "        AND (q.version IS NULL OR ppe.version <= GREATEST(q.version, 1)) " +
+                    "      ORDER BY ppe.version DESC " +
+                    "      LIMIT 1 " +
+                    "    ) target " +
+                    ") " +
+                    "SELECT t.ordinal AS ordinal, Cast(t.patient_id as varchar) AS patientId, t.version AS version, " +
+                    "    t.latest_version AS latestVersion, t.created_at AS createdAt, " +
+                    "    CASE WHEN ppe.version IS NULL OR ppe.version = pce.version + 1 " +
+                    "      THEN Cast(pce.document as text) END AS checkpoint, " +
+                    "    Cast(ppe.id as varchar) AS id, Cast(ppe.patch as text) AS patch " +
+                    "FROM targets t " +
+                    "  LEFT JOIN LATERAL ( " +
+                    "    SELECT c.version, c.document " +
+                    "    FROM patient_checkpoint_entity c " +
+                    "    WHERE c.patient_id = t.patient_id " +
+                    "      AND c.version <= t.version " +
+                    "    ORDER BY c.version DESC " +
+                    "    LIMIT 1 " +
+                    "  ) pce ON true " +
+                    "  LEFT JOIN patient_patch_entity ppe " +
+                    "    ON ppe.patient_id = t.patient_id " +
+                    "      AND ppe.snapshot_id IS NULL " +
+                    "      AND ppe.version > COALESCE(pce.version, 0) " +
+                    "      AND ppe.version <= t.version " +
+                    "ORDER BY t.ordinal, ppe.version")
+    List<RequestedPatch> findRequestedPatches(String requests);
 }
@@ -0,0 +1,82 @@
+package com.ethanaa.crudstar.repository.specification;
+
+import com.ethanaa.crudstar.model.api.ApiFilter;
+import com.ethanaa.crudstar.model.persist.patient.patch.PatientHistoryEntity;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.domain.Specification;
+
+import javax.persistence.criteria.*;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+public class PatientHistoryEntitySpecification implements Specification<PatientHistoryEntity> {
+
+    private String searchQuery;
+    private List<ApiFilter> filters;
+    private Pageable pageable;
+    private LocalDateTime dateTime;
+    private UUID snapshotId;
+    private LocalDateTime snapshotDateTime;
+
+    public PatientHistoryEntitySpecification(String searchQuery, List<ApiFilter> filters, Pageable pageable,
+                                             LocalDateTime dateTime) {
+
+        this(searchQuery, filters, pageable, dateTime, null, null);
+    }
+
+    public PatientHistoryEntitySpecification(String searchQuery, List<ApiFilter> filters, Pageable pageable,
+                                             LocalDateTime dateTime, UUID snapshotId, LocalDateTime snapshotDateTime) {
+
+        this.searchQuery = searchQuery;
+        this.filters = filters;
+        this.pageable = pageable;
+        this.dateTime = dateTime;
+        this.snapshotId = snapshotId;
+        this.snapshotDateTime = snapshotDateTime;
+    }
+
+    @Override
+    public Predicate toPredicate(Root<PatientHistoryEntity> root, CriteriaQuery<?> query, CriteriaBuilder builder) {
+
+        List<Predicate> predicates = PatientPredicates.toPredicates(root.get("patient"), searchQuery, filters, builder);
+
+        if (snapshotId != null) {
+            // the snapshot's own version if it has one by then, otherwise the mainline as of the snapshot
+            Subquery<Integer> snapshotVersion = query.subquery(Integer.class);
+            Root<PatientHistoryEntity> snapshotRoot = snapshotVersion.from(PatientHistoryEntity.class);
+            snapshotVersion.select(builder.literal(1)).where(
+                    builder.equal(snapshotRoot.get("patientId"), root.get("patientId")),
+                    builder.equal(snapshotRoot.get("snapshotId"), snapshotId),
+                    contains(snapshotRoot, dateTime, builder));
+
+            predicates.add(builder.or(
+                    builder.and(
+                            builder.equal(root.get("snapshotId"), snapshotId),
+                            contains(root, dateTime, builder)),
+                    builder.and(
+                            root.get("snapshotId").isNull(),
+                            contains(root, dateTime.isBefore(snapshotDateTime) ? dateTime : snapshotDateTime, builder),
+                            builder.not(builder.exists(snapshotVersion)))));
+        } else {
+            predicates.add(root.get("snapshotId").isNull());
+            predicates.add(contains(root, dateTime, builder));
+        }
+
+        // same order as the unfiltered as-of listing once the requested sort runs out
+        List<Order> orders = PatientPredicates.toOrders(root.get("patient"), pageable.getSort(), builder);
+        orders.add(builder.desc(root.get("validFrom")));
+        orders.add(builder.desc(root.get("patientId")));
+
+        query.orderBy(orders);
+
+        return builder.and(predicates.toArray(new Predicate[0]));
+    }
+
+    private Predicate contains(Root<PatientHistoryEntity> root, LocalDateTime dateTime, CriteriaBuilder builder) {
+
+        return builder.equal(
+                builder.function("range_contains", Boolean.class, root.get("valid"), builder.literal(dateTime)),
+                true);
+    }
+}
@@ -0,0 +1,120 @@
+package com.ethanaa.crudstar.repository.specification;
+
+import com.ethanaa.crudstar.model.api.ApiFilter;
+import com.ethanaa.crudstar.model.api.FilterConstraint;
+import org.springframework.data.domain.Sort;
+import org.springframework.util.StringUtils;
+
+import javax.persistence.criteria.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Search, filter and sort predicates over a patient jsonb document, shared by the specifications for the latest
+ * patients and for their history.
+ */
+public class PatientPredicates {
+
+    private PatientPredicates() {
+
+    }
+
+    public static List<Predicate> toPredicates(Expression<?> patient, String searchQuery, List<ApiFilter> filters,
+                                               CriteriaBuilder builder) {
+
+        List<Predicate> predicates = new ArrayList<>();
+
+        if (StringUtils.hasText(searchQuery)) {
+            predicates.add(builder.equal(
+                    builder.function("json_search_function", Boolean.class,
+                            patient, builder.literal(searchQuery)),
+                    true));
+        }
+
+        for (ApiFilter filter : filters) {
+            if (!StringUtils.hasText(filter.getKey())) {
+                continue;
+            }
+            if (!StringUtils.hasText(filter.getOperator())) {
+                continue;
+            }
+            Expression<String> value = builder.function("jsonb_extract_path_text",
+                    String.class,
+                    patient,
+                    builder.literal(filter.getKey()));
+            List<Predicate> constraintPredicates = new ArrayList<>();
+            for (FilterConstraint constraint : filter.getConstraints()) {
+                switch(constraint.getMatchMode()) {
+                    case "startsWith":
+                        constraintPredicates.add(builder.like(builder.lower(value),
+                                constraint.getValue().toLowerCase() + "%"));
+                        break;
+                    case "endsWith":
+                        constraintPredicates.add(builder.like(builder.lower(value),
+                                "%" + constraint.getValue().toLowerCase()));
+                        break;
+                    case "contains":
+                        constraintPredicates.add(builder.like(builder.lower(value),
+                                "%" + constraint.getValue().toLowerCase() + "%"));
+                        break;
+                    case "equals":
+                        constraintPredicates.add(builder.equal(builder.lower(value),
+                                constraint.getValue().toLowerCase()));
+                        break;
+                    case "dateIs":
+                        LocalDateTime isValue = LocalDateTime.parse(constraint.getValue(), DateTimeFormatter.ISO_DATE_TIME);
+                        constraintPredicates.add(builder.equal(
+                                builder.function("date", LocalDateTime.class, value), isValue));
+                        break;
+                    case "dateIsNot":
+                        LocalDateTime isNotValue = LocalDateTime.parse(constraint.getValue(), DateTimeFormatter.ISO_DATE_TIME);
+                        constraintPredicates.add(builder.notEqual(
+                                builder.function("date", LocalDateTime.class, value), isNotValue));
+                        break;
+                    case "dateBefore":
+                        LocalDateTime beforeValue = LocalDateTime.parse(constraint.getValue(), DateTimeFormatter.ISO_DATE_TIME);
+                        constraintPredicates.add(builder.lessThan(
+                                builder.function("date", LocalDateTime.class, value), beforeValue));
+                        break;
+                    case "dateAfter":
+                        LocalDateTime afterValue = LocalDateTime.parse(constraint.getValue(), DateTimeFormatter.ISO_DATE_TIME);
+                        constraintPredicates.add(builder.greaterThan(
+                                builder.function("date", LocalDateTime.class, value), afterValue));
+                        break;
+                    default:
+                }
+            }
+
+            if (filter.getOperator().equalsIgnoreCase("or")) {
+                predicates.add(builder.or(constraintPredicates.toArray(new Predicate[0])));
+            } else {
+                predicates.add(builder.and(constraintPredicates.toArray(new Predicate[0])));
+            }
+        }
+
+        return predicates;
+    }
+
+    public static List<Order> toOrders(Expression<?> patient, Sort sort, CriteriaBuilder builder) {
+
+        List<Order> orders = new ArrayList<>();
+        for (Sort.Order order : sort) {
+            Expression sortExpression = builder.function("jsonb_extract_path_text",
+                    String.class,
+                    patient,
+                    builder.literal(order.getProperty()));
+            switch (order.getDirection()) {
+                case ASC:
+                    orders.add(builder.asc(sortExpression));
+                    break;
+                case DESC:
+                    orders.add(builder.desc(sortExpression));
+                    break;
+            }
+        }
+
+        return orders;
+    }
+}
@@ -9,5 +9,6 @@ public class SQLFunctionContributor implements MetadataBuilderContributor {
     public void contribute(MetadataBuilder metadataBuilder) {
 
         metadataBuilder.applySqlFunction("json_search_function", new JsonSearchFunction());
+        metadataBuilder.applySqlFunction("range_contains", new RangeContainsFunction());
     }
 }
@@ -0,0 +1,236 @@
+package com.ethanaa.crudstar.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.flipkart.zjsonpatch.JsonPatch;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Folds a run of JSON Patches into one patch with the same effect, dropping operations a later one overwrites and
+ * merging operations into values an earlier add / replace wrote. Numeric path tokens are taken to be array indices,
+ * anything that shifts an array (or a move, copy or test) is left in place and stops the folding of whatever
+ * touches that array after it.
+ */
+@Component
+public class JsonPatchComposer {
+
+    public ArrayNode compose(List<JsonNode> patches) {
+
+        List<Operation> operations = new ArrayList<>();
+        for (JsonNode patch : patches) {
+            for (JsonNode operation : patch) {
+                push(operations, new Operation((ObjectNode) operation.deepCopy()));
+            }
+        }
+
+        ArrayNode composed = JsonNodeFactory.instance.arrayNode();
+        for (Operation operation : operations) {
+            composed.add(operation.node);
+        }
+
+        return composed;
+    }
+
+    private void push(List<Operation> operations, Operation next) {
+
+        switch (next.op) {
+            case "replace":
+            case "remove":
+                if (overwrite(operations, next)) {
+                    return;
+                }
+                break;
+            case "add":
+                if (add(operations, next)) {
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+
+        operations.add(next);
+    }
+
+    // replace / remove at a path, true if the operation was absorbed by an earlier one
+    private boolean overwrite(List<Operation> operations, Operation next) {
+
+        for (int i = operations.size() - 1; i >= 0; i--) {
+            Operation previous = operations.get(i);
+            if (previous.isBarrier()) {
+                return false;
+            }
+
+            if (isPrefix(next.path, previous.path) && previous.path.size() > next.path.size()) {
+                // whatever was written below the path is overwritten
+                operations.remove(i);
+                continue;
+            }
+
+            if (previous.path.equals(next.path)) {
+                if (previous.op.equals("replace")) {
+                    operations.remove(i);
+                    continue;
+                }
+                if (previous.op.equals("add")) {
+                    if (next.op.equals("replace")) {
+                        previous.setValue(next.node.get("value"));
+                        return true;
+                    }
+                    if (next.isIndexed()) {
+                        // an element inserted and removed again, unless something in between went through the
+                        // array at an index the insert had shifted
+                        if (touchesArray(operations.subList(i + 1, operations.size()), next)) {
+                            return false;
+                        }
+                        operations.remove(i);
+                        return true;
+                    }
+                    // the member may have existed before the add, keep the add / remove pair but not the value
+                    previous.setValue(JsonNodeFactory.instance.nullNode());
+                }
+                return false;
+            }
+
+            if (isPrefix(previous.path, next.path)) {
+                return fold(previous, next);
+            }
+
+            if (previous.shifts(next.path)) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    // add at a path, true if the operation was absorbed by an earlier one
+    private boolean add(List<Operation> operations, Operation next) {
+
+        for (int i = operations.size() - 1; i >= 0; i--) {
+            Operation previous = operations.get(i);
+            if (previous.isBarrier()) {
+                return false;
+            }
+
+            if (previous.path.equals(next.path)) {
+                if (previous.op.equals("remove") && !next.isIndexed()) {
+                    // the member existed before the remove, so the pair is a replace
+                    operations.remove(i);
+                    ObjectNode replace = next.node.deepCopy();
+                    replace.put("op", "replace");
+                    push(operations, new Operation(replace));
+                    return true;
+                }
+                return false;
+            }
+
+            if (isPrefix(previous.path, next.path)) {
+                return fold(previous, next);
+            }
+
+            if (isPrefix(next.path, previous.path) || previous.shifts(next.path)) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean touchesArray(List<Operation> operations, Operation element) {
+
+        List<String> array = element.path.subList(0, element.path.size() - 1);
+        for (Operation operation : operations) {
+            if (operation.path.size() > array.size() && isPrefix(array, operation.path)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // apply an operation to the value an earlier add / replace wrote at one of its ancestors
+    private boolean fold(Operation previous, Operation next) {
+
+        if (!previous.op.equals("add") && !previous.op.equals("replace")) {
+            return false;
+        }
+
+        ObjectNode relative = next.node.deepCopy();
+        relative.put("path", pointer(next.path.subList(previous.path.size(), next.path.size())));
+
+        try {
+            previous.setValue(JsonPatch.apply(JsonNodeFactory.instance.arrayNode().add(relative),
+                    previous.node.get("value")));
+        } catch (RuntimeException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    private static boolean isPrefix(List<String> prefix, List<String> path) {
+        return prefix.size() <= path.size() && path.subList(0, prefix.size()).equals(prefix);
+    }
+
+    private static boolean isIndex(String token) {
+        return token.equals("-") || (!token.isEmpty() && token.chars().allMatch(Character::isDigit));
+    }
+
+    private static String pointer(List<String> tokens) {
+
+        StringBuilder sb = new StringBuilder();
+        for (String token : tokens) {
+            sb.append('/').append(token);
+        }
+
+        return sb.toString();
+    }
+
+    private static List<String> tokens(String path) {
+
+        if (path == null || path.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        return Arrays.asList(path.substring(1).split("/", -1));
+    }
+
+    private static class Operation {
+
+        private final ObjectNode node;
+        private final String op;
+        private final List<String> path;
+
+        private Operation(ObjectNode node) {
+
+            this.node = node;
+            this.op = node.path("op").asText();
+            this.path = tokens(node.path("path").asText());
+        }
+
+        private boolean isBarrier() {
+            return !op.equals("add") && !op.equals("replace") && !op.equals("remove");
+        }
+
+        private boolean isIndexed() {
+            return !path.isEmpty() && isIndex(path.get(path.size() - 1));
+        }
+
+        // an insert or remove in an array that the other path goes through
+        private boolean shifts(List<String> otherPath) {
+            return !op.equals("replace") && isIndexed() && isPrefix(path.subList(0, path.size() - 1), otherPath);
+        }
+
+        private void setValue(JsonNode value) {
+            node.set("value", value);
+        }
+    }
+}
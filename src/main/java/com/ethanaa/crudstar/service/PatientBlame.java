@@ -0,0 +1,97 @@
+package com.ethanaa.crudstar.service;
+
+import com.ethanaa.crudstar.model.persist.patient.FieldBlame;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Keeps the per-patient map from json pointer to the version that last wrote it. A patch only touches the entries at
+ * and below the paths its operations name, so recording costs the changed paths and not the document. An insert or
+ * remove in an array is blamed on the array, the indices of the elements after it no longer mean what they did.
+ */
+@Component
+public class PatientBlame {
+
+    public void record(SortedMap<String, FieldBlame> blame, JsonNode patch, long version, LocalDateTime changedAt) {
+
+        FieldBlame fieldBlame = new FieldBlame(version, changedAt);
+        for (JsonNode operation : patch) {
+            String path = operation.path("path").asText();
+            switch (operation.path("op").asText()) {
+                case "add":
+                case "copy":
+                    write(blame, isIndexed(path) ? parent(path) : path, fieldBlame);
+                    break;
+                case "replace":
+                    write(blame, path, fieldBlame);
+                    break;
+                case "remove":
+                    remove(blame, path, fieldBlame);
+                    break;
+                case "move":
+                    remove(blame, operation.path("from").asText(), fieldBlame);
+                    write(blame, isIndexed(path) ? parent(path) : path, fieldBlame);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    // the write that last changed the path: its own entry, the nearest ancestor's or the latest one below it
+    public FieldBlame resolve(SortedMap<String, FieldBlame> blame, String path) {
+
+        FieldBlame resolved = null;
+        for (String ancestor = path; ancestor != null; ancestor = ancestor.isEmpty() ? null : parent(ancestor)) {
+            resolved = blame.get(ancestor);
+            if (resolved != null) {
+                break;
+            }
+        }
+
+        for (FieldBlame below : below(blame, path).values()) {
+            if (resolved == null || below.getVersion() > resolved.getVersion()) {
+                resolved = below;
+            }
+        }
+
+        return resolved;
+    }
+
+    private void write(SortedMap<String, FieldBlame> blame, String path, FieldBlame fieldBlame) {
+
+        below(blame, path).clear();
+        blame.put(path, fieldBlame);
+    }
+
+    private void remove(SortedMap<String, FieldBlame> blame, String path, FieldBlame fieldBlame) {
+
+        if (isIndexed(path)) {
+            write(blame, parent(path), fieldBlame);
+            return;
+        }
+
+        below(blame, path).clear();
+        blame.remove(path);
+    }
+
+    // entries strictly below the path, '0' sorts right after '/'
+    private Map<String, FieldBlame> below(SortedMap<String, FieldBlame> blame, String path) {
+        return blame.subMap(path + "/", path + "0");
+    }
+
+    private static boolean isIndexed(String path) {
+
+        String token = path.substring(path.lastIndexOf('/') + 1);
+
+        return !path.isEmpty() && (token.equals("-") || (!token.isEmpty() && token.chars().allMatch(Character::isDigit)));
+    }
+
+    private static String parent(String path) {
+        return path.substring(0, Math.max(0, path.lastIndexOf('/')));
+    }
+}
@@ -0,0 +1,128 @@
+package com.ethanaa.crudstar.service;
+
+import com.ethanaa.crudstar.model.api.IngestReport;
+import com.ethanaa.crudstar.model.persist.patient.Patient;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.flipkart.zjsonpatch.JsonDiff;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads new patients with two COPYs, the patient documents and then their create patches, streamed as csv over the
+ * connection of the surrounding transaction. Ids are generated here and nothing goes through the persistence context,
+ * the patch triggers (history, patch operations) still run for every row.
+ */
+@Component
+public class PatientBulkLoader {
+
+    private static final int COPY_BUFFER_SIZE = 1 << 16;
+
+    private DataSource dataSource;
+
+    private ObjectMapper objectMapper;
+    private ObjectWriter objectWriter;
+
+    @Autowired
+    public PatientBulkLoader(DataSource dataSource, ObjectMapper objectMapper) {
+
+        this.dataSource = dataSource;
+        this.objectMapper = objectMapper;
+        this.objectWriter = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
+    }
+
+    public IngestReport load(List<Patient> patients) {
+
+        long start = System.nanoTime();
+        LocalDateTime createdAt = LocalDateTime.now();
+
+        List<UUID> patientIds = new ArrayList<>(patients.size());
+        for (int i = 0; i < patients.size(); i++) {
+            patientIds.add(UUID.randomUUID());
+        }
+
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try {
+            PGConnection pgConnection = connection.unwrap(PGConnection.class);
+
+            copy(pgConnection, "COPY patient_entity (id, created_at, updated_at, patient, version, blame) " +
+                    "FROM STDIN WITH (FORMAT csv)", writer -> {
+                for (int i = 0; i < patients.size(); i++) {
+                    writeRow(writer, patientIds.get(i), createdAt, createdAt,
+                            objectWriter.writeValueAsString(patients.get(i)), 1, "{}");
+                }
+            });
+
+            // the create patch is worked out again rather than kept from the first copy
+            copy(pgConnection, "COPY patient_patch_entity (id, created_at, updated_at, patch, patient_id, version) " +
+                    "FROM STDIN WITH (FORMAT csv)", writer -> {
+                for (int i = 0; i < patients.size(); i++) {
+                    JsonNode createPatch = JsonDiff.asJson(objectMapper.createObjectNode(),
+                            objectMapper.valueToTree(patients.get(i)));
+                    writeRow(writer, UUID.randomUUID(), createdAt, createdAt,
+                            objectWriter.writeValueAsString(createPatch), patientIds.get(i), 1);
+                }
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+
+        return new IngestReport(patients.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void copy(PGConnection pgConnection, String sql, CopyRows rows) throws SQLException, IOException {
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new PGCopyOutputStream(pgConnection, sql, COPY_BUFFER_SIZE), StandardCharsets.UTF_8))) {
+            rows.write(writer);
+        }
+    }
+
+    private void writeRow(Writer writer, Object... values) throws IOException {
+
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeValue(writer, values[i].toString());
+        }
+        writer.write('\n');
+    }
+
+    // every value quoted, so json with commas, quotes or newlines in it stays one field
+    private void writeValue(Writer writer, String value) throws IOException {
+
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    @FunctionalInterface
+    private interface CopyRows {
+        void write(Writer writer) throws IOException;
+    }
+}
@@ -0,0 +1,88 @@
+package com.ethanaa.crudstar.service;
+
+import com.ethanaa.crudstar.model.persist.patient.PatientEntity;
+import com.ethanaa.crudstar.model.persist.patient.patch.PatientCheckpointEntity;
+import com.ethanaa.crudstar.model.persist.patient.patch.PatientPatchEntity;
+import com.ethanaa.crudstar.repository.PatientCheckpointEntityRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Keeps a full patient document every so many patches (or bytes of patches) of a patient's mainline history,
+ * which bounds as-of reconstruction to replaying the tail after the nearest checkpoint.
+ */
+@Service
+@Transactional
+public class PatientCheckpointService {
+
+    private PatientCheckpointEntityRepository patientCheckpointEntityRepository;
+
+    private long checkpointInterval;
+    private long checkpointBytes;
+
+    @Autowired
+    public PatientCheckpointService(PatientCheckpointEntityRepository patientCheckpointEntityRepository,
+                                    @Value("${crudstar.checkpoint.interval:100}") long checkpointInterval,
+                                    @Value("${crudstar.checkpoint.bytes:65536}") long checkpointBytes) {
+
+        this.patientCheckpointEntityRepository = patientCheckpointEntityRepository;
+        this.checkpointInterval = checkpointInterval;
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    /**
+     * Called after a mainline patch has been saved, with the patient's materialized document already patched.
+     */
+    public void checkpoint(PatientEntity patientEntity, PatientPatchEntity patch, long version) {
+
+        if (checkpointInterval <= 0 && checkpointBytes <= 0) {
+            // not kept up to date while disabled, counted again on the first write once enabled
+            patientEntity.setCheckpointTailBytes(null);
+            return;
+        }
+        if (patch.getSnapshot() != null) {
+            return;
+        }
+
+        // the tail is tracked on the patient row, only rows without it yet count their patches in the database
+        long tailBytes;
+        if (patientEntity.getCheckpointTailBytes() == null || patientEntity.getCheckpointVersion() == null) {
+            PatientCheckpointEntityRepository.CheckpointTail tail =
+                    patientCheckpointEntityRepository.findCheckpointTail(patientEntity.getId());
+            patientEntity.setCheckpointVersion(version - tail.getPatches());
+            tailBytes = tail.getBytes();
+        } else {
+            tailBytes = patientEntity.getCheckpointTailBytes() +
+                    patch.getPatch().getBytes(StandardCharsets.UTF_8).length;
+        }
+        long tailPatches = version - patientEntity.getCheckpointVersion();
+
+        boolean intervalReached = checkpointInterval > 0 && tailPatches >= checkpointInterval;
+        boolean bytesReached = checkpointBytes > 0 && tailBytes >= checkpointBytes;
+        if (!intervalReached && !bytesReached) {
+            patientEntity.setCheckpointTailBytes(tailBytes);
+            return;
+        }
+
+        PatientCheckpointEntity checkpoint = new PatientCheckpointEntity(
+                patientEntity.getPatient(), version, patch.getCreatedAt());
+        checkpoint.setPatient(patientEntity);
+
+        patientCheckpointEntityRepository.save(checkpoint);
+
+        patientEntity.setCheckpointVersion(version);
+        patientEntity.setCheckpointTailBytes(0L);
+    }
+
+    @Transactional(readOnly = true)
+    public Optional<PatientCheckpointEntity> getCheckpoint(UUID patientId, long version) {
+
+        return patientCheckpointEntityRepository.findLatestCheckpoint(patientId, version);
+    }
+}
@@ -0,0 +1,199 @@
+package com.ethanaa.crudstar.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs concurrent writes on one committer thread, as many as queue up behind the first (up to max-writes, or for up to
+ * max-delay-millis) in one transaction, so a burst of writes shares one commit. A caller gets its result only once
+ * that transaction has committed. Writes run in the order they were queued, so writes to the same patient keep their
+ * order. Each write runs behind its own savepoint, a bad write is rolled back to it and only fails its own caller. If
+ * the shared transaction fails anyway (the persistence context can't go on after a failed flush) the writes that
+ * succeeded are run again one transaction each. Disabled, a write just runs on the calling thread.
+ */
+@Component
+public class PatientGroupCommitter implements DisposableBean {
+
+    private TransactionTemplate transactionTemplate;
+    private TransactionTemplate savepointTemplate;
+    private DistributionSummary groupSizes;
+
+    private boolean enabled;
+    private int maxWrites;
+    private long maxDelayNanos;
+
+    private BlockingQueue<PendingWrite<?>> queue = new LinkedBlockingQueue<>();
+    private ExecutorService committer;
+
+    @Autowired
+    public PatientGroupCommitter(PlatformTransactionManager transactionManager,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${crudstar.group-commit.enabled:false}") boolean enabled,
+                                 @Value("${crudstar.group-commit.max-writes:100}") int maxWrites,
+                                 @Value("${crudstar.group-commit.max-delay-millis:5}") long maxDelayMillis) {
+
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.savepointTemplate = new TransactionTemplate(transactionManager);
+        this.savepointTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_NESTED);
+        this.groupSizes = DistributionSummary.builder("patient.group-commit.writes")
+                .description("writes committed together")
+                .register(meterRegistry);
+        this.enabled = enabled;
+        this.maxWrites = Math.max(1, maxWrites);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+
+        if (enabled) {
+            this.committer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("patient-group-commit-%d")
+                    .setDaemon(true)
+                    .build());
+            this.committer.execute(this::commitGroups);
+        }
+    }
+
+    public <T> T write(Supplier<T> write) {
+
+        if (!enabled) {
+            return write.get();
+        }
+
+        PendingWrite<T> pendingWrite = new PendingWrite<>(write);
+        queue.add(pendingWrite);
+
+        try {
+            return pendingWrite.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void commitGroups() {
+
+        while (!Thread.currentThread().isInterrupted()) {
+            List<PendingWrite<?>> group = new ArrayList<>();
+            try {
+                group.add(queue.take());
+
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (group.size() < maxWrites) {
+                    PendingWrite<?> next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                group.forEach(pendingWrite -> pendingWrite.result.completeExceptionally(e));
+                break;
+            }
+
+            commit(group);
+        }
+
+        // shutting down, nothing will pick these up
+        for (PendingWrite<?> pendingWrite = queue.poll(); pendingWrite != null; pendingWrite = queue.poll()) {
+            pendingWrite.result.completeExceptionally(new IllegalStateException("Group committer stopped"));
+        }
+    }
+
+    private void commit(List<PendingWrite<?>> group) {
+
+        groupSizes.record(group.size());
+
+        List<Object> results = new ArrayList<>(group.size());
+        Map<Integer, RuntimeException> failures = new HashMap<>();
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                for (int i = 0; i < group.size(); i++) {
+                    PendingWrite<?> pendingWrite = group.get(i);
+                    try {
+                        // flushed inside the savepoint so a write's own sql fails it there, not the group's commit
+                        results.add(savepointTemplate.execute(savepoint -> {
+                            Object result = pendingWrite.write.get();
+                            savepoint.flush();
+                            return result;
+                        }));
+                    } catch (RuntimeException e) {
+                        results.add(null);
+                        failures.put(i, e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            for (int i = 0; i < group.size(); i++) {
+                if (failures.containsKey(i)) {
+                    group.get(i).result.completeExceptionally(failures.get(i));
+                } else if (group.size() == 1) {
+                    group.get(i).result.completeExceptionally(e);
+                } else {
+                    commitAlone(group.get(i));
+                }
+            }
+            return;
+        }
+
+        for (int i = 0; i < group.size(); i++) {
+            if (failures.containsKey(i)) {
+                group.get(i).result.completeExceptionally(failures.get(i));
+            } else {
+                group.get(i).complete(results.get(i));
+            }
+        }
+    }
+
+    private <T> void commitAlone(PendingWrite<T> pendingWrite) {
+
+        try {
+            pendingWrite.result.complete(transactionTemplate.execute(status -> pendingWrite.write.get()));
+        } catch (RuntimeException e) {
+            pendingWrite.result.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+
+        if (committer != null) {
+            committer.shutdownNow();
+        }
+    }
+
+    private static class PendingWrite<T> {
+
+        private final Supplier<T> write;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private PendingWrite(Supplier<T> write) {
+            this.write = write;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void complete(Object value) {
+            result.complete((T) value);
+        }
+    }
+}
@@ -0,0 +1,511 @@
+package com.ethanaa.crudstar.service;
+
+import com.ethanaa.crudstar.model.persist.patient.FollowUp;
+import com.ethanaa.crudstar.model.persist.patient.Medication;
+import com.ethanaa.crudstar.model.persist.patient.Patient;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.flipkart.zjsonpatch.JsonPatch;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Turns a stored JSON Patch into setter calls and list inserts / removes against {@link Patient}, {@link Medication}
+ * and {@link FollowUp}, so replay can patch a mutable patient without going through a json tree. A patch with any
+ * operation or path the compiler doesn't know is applied through zjsonpatch instead.
+ */
+@Component
+public class PatientPatchCompiler {
+
+    private static final Map<String, Property<Patient>> PATIENT_PROPERTIES = new HashMap<>();
+    private static final Map<String, Property<Medication>> MEDICATION_PROPERTIES = new HashMap<>();
+    private static final Map<String, Property<FollowUp>> FOLLOW_UP_PROPERTIES = new HashMap<>();
+
+    static {
+        PATIENT_PROPERTIES.put("firstName", new Property<>(Patient.class,
+                Patient::getFirstName, (p, v) -> p.setFirstName((String) v), UnaryOperator.identity()));
+        PATIENT_PROPERTIES.put("lastName", new Property<>(Patient.class,
+                Patient::getLastName, (p, v) -> p.setLastName((String) v), UnaryOperator.identity()));
+        PATIENT_PROPERTIES.put("dateOfBirth", new Property<>(Patient.class,
+                Patient::getDateOfBirth, (p, v) -> p.setDateOfBirth((LocalDate) v), UnaryOperator.identity()));
+        PATIENT_PROPERTIES.put("medicalRecordNumber", new Property<>(Patient.class,
+                Patient::getMedicalRecordNumber, (p, v) -> p.setMedicalRecordNumber((String) v), UnaryOperator.identity()));
+        PATIENT_PROPERTIES.put("address", new Property<>(Patient.class,
+                Patient::getAddress, (p, v) -> p.setAddress((String) v), UnaryOperator.identity()));
+        PATIENT_PROPERTIES.put("phoneNumber", new Property<>(Patient.class,
+                Patient::getPhoneNumber, (p, v) -> p.setPhoneNumber((String) v), UnaryOperator.identity()));
+        PATIENT_PROPERTIES.put("medications", new Property<>(Patient.class,
+                Patient::getMedications, (p, v) -> p.setMedications(cast(v)),
+                v -> copyMedications(cast(v))));
+        PATIENT_PROPERTIES.put("followUps", new Property<>(Patient.class,
+                Patient::getFollowUps, (p, v) -> p.setFollowUps(cast(v)),
+                v -> copyFollowUps(cast(v))));
+
+        MEDICATION_PROPERTIES.put("name", new Property<>(Medication.class,
+                Medication::getName, (m, v) -> m.setName((String) v), UnaryOperator.identity()));
+        MEDICATION_PROPERTIES.put("dosage", new Property<>(Medication.class,
+                Medication::getDosage, (m, v) -> m.setDosage((String) v), UnaryOperator.identity()));
+        MEDICATION_PROPERTIES.put("startDate", new Property<>(Medication.class,
+                Medication::getStartDate, (m, v) -> m.setStartDate((LocalDate) v), UnaryOperator.identity()));
+        MEDICATION_PROPERTIES.put("endDate", new Property<>(Medication.class,
+                Medication::getEndDate, (m, v) -> m.setEndDate((LocalDate) v), UnaryOperator.identity()));
+
+        FOLLOW_UP_PROPERTIES.put("date", new Property<>(FollowUp.class,
+                FollowUp::getDate, (f, v) -> f.setDate((LocalDateTime) v), UnaryOperator.identity()));
+        FOLLOW_UP_PROPERTIES.put("type", new Property<>(FollowUp.class,
+                FollowUp::getType, (f, v) -> f.setType((FollowUp.Type) v), UnaryOperator.identity()));
+        FOLLOW_UP_PROPERTIES.put("natures", new Property<>(FollowUp.class,
+                FollowUp::getNatures, (f, v) -> f.setNatures(cast(v)),
+                v -> v == null ? null : new ArrayList<>((List<?>) v)));
+        FOLLOW_UP_PROPERTIES.put("medications", new Property<>(FollowUp.class,
+                FollowUp::getMedications, (f, v) -> f.setMedications(cast(v)),
+                v -> copyMedications(cast(v))));
+    }
+
+    private ObjectMapper objectMapper;
+
+    private Cache<UUID, CompiledPatch> cache;
+
+    @Autowired
+    public PatientPatchCompiler(ObjectMapper objectMapper,
+                                MeterRegistry meterRegistry,
+                                @Value("${crudstar.patch-compiler.cache-size:100000}") long cacheSize) {
+
+        this.objectMapper = objectMapper;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .recordStats()
+                .build();
+
+        GuavaCacheMetrics.monitor(meterRegistry, cache, "patient.patches.compiled");
+    }
+
+    public CompiledPatch compile(UUID patchId, String patch) {
+
+        try {
+            return cache.get(patchId, () -> compile(patch));
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public CompiledPatch compile(String patch) {
+
+        JsonNode patchJson;
+        try {
+            patchJson = objectMapper.readTree(patch);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+
+        List<PatientOp> ops = new ArrayList<>();
+        for (JsonNode operation : patchJson) {
+            PatientOp op = compileOperation(operation);
+            if (op == null) {
+                return new FallbackPatch(patchJson);
+            }
+            ops.add(op);
+        }
+
+        return new TypedPatch(ops);
+    }
+
+    public Patient copy(Patient patient) {
+
+        Patient copy = new Patient();
+        for (Property<Patient> property : PATIENT_PROPERTIES.values()) {
+            property.setter.accept(copy, property.copier.apply(property.getter.apply(patient)));
+        }
+
+        return copy;
+    }
+
+    private PatientOp compileOperation(JsonNode operation) {
+
+        String op = operation.path("op").asText();
+        Location location = locate(operation.path("path").asText(), op.equals("add") || op.equals("copy")
+                || op.equals("move"));
+        if (location == null) {
+            return null;
+        }
+
+        switch (op) {
+            case "add":
+            case "replace": {
+                JsonNode value = operation.get("value");
+                if (value == null) {
+                    return null;
+                }
+                Object prototype = location.read.apply(value);
+                if (op.equals("add")) {
+                    return patient -> location.add.accept(patient, location.copier.apply(prototype));
+                }
+                return patient -> location.replace.accept(patient, location.copier.apply(prototype));
+            }
+            case "remove":
+                return location.remove::accept;
+            case "copy":
+            case "move": {
+                Location from = locate(operation.path("from").asText(), false);
+                if (from == null || !from.type.equals(location.type)) {
+                    return null;
+                }
+                if (op.equals("copy")) {
+                    return patient -> location.add.accept(patient, location.copier.apply(from.get.apply(patient)));
+                }
+                return patient -> {
+                    Object value = from.get.apply(patient);
+                    from.remove.accept(patient);
+                    location.add.accept(patient, value);
+                };
+            }
+            default:
+                return null;
+        }
+    }
+
+    // null for paths outside of the patient model, "-" (end of a list) only when appending
+    private Location locate(String pointer, boolean append) {
+
+        List<String> path = parsePath(pointer);
+        if (path == null) {
+            return null;
+        }
+
+        // /{patient property}
+        if (path.size() == 1) {
+            return field(Function.identity(), PATIENT_PROPERTIES, path.get(0));
+        }
+
+        Integer index = parseIndex(path.get(1), append);
+        if (index == null) {
+            return null;
+        }
+
+        if (path.get(0).equals("medications")) {
+            Function<Patient, List<Medication>> medications = Patient::getMedications;
+            // /medications/{i}
+            if (path.size() == 2) {
+                return element(medications, Patient::setMedications, index,
+                        Medication.class, PatientPatchCompiler::copyMedication);
+            }
+            // /medications/{i}/{medication property}
+            if (path.size() == 3 && index >= 0) {
+                return field(get(medications, index), MEDICATION_PROPERTIES, path.get(2));
+            }
+            return null;
+        }
+
+        if (!path.get(0).equals("followUps")) {
+            return null;
+        }
+
+        Function<Patient, List<FollowUp>> followUps = Patient::getFollowUps;
+        // /followUps/{i}
+        if (path.size() == 2) {
+            return element(followUps, Patient::setFollowUps, index,
+                    FollowUp.class, PatientPatchCompiler::copyFollowUp);
+        }
+        if (index < 0) {
+            return null;
+        }
+
+        Function<Patient, FollowUp> followUp = get(followUps, index);
+        // /followUps/{i}/{follow up property}
+        if (path.size() == 3) {
+            return field(followUp, FOLLOW_UP_PROPERTIES, path.get(2));
+        }
+
+        Integer innerIndex = parseIndex(path.get(3), append);
+        if (innerIndex == null) {
+            return null;
+        }
+
+        if (path.get(2).equals("natures") && path.size() == 4) {
+            // /followUps/{i}/natures/{j}
+            return element(followUp.andThen(FollowUp::getNatures),
+                    (p, natures) -> followUp.apply(p).setNatures(natures), innerIndex,
+                    FollowUp.Nature.class, UnaryOperator.identity());
+        }
+
+        if (!path.get(2).equals("medications")) {
+            return null;
+        }
+
+        Function<Patient, List<Medication>> followUpMedications = followUp.andThen(FollowUp::getMedications);
+        // /followUps/{i}/medications/{j}
+        if (path.size() == 4) {
+            return element(followUpMedications,
+                    (p, medications) -> followUp.apply(p).setMedications(medications), innerIndex,
+                    Medication.class, PatientPatchCompiler::copyMedication);
+        }
+        // /followUps/{i}/medications/{j}/{medication property}
+        if (path.size() == 5 && innerIndex >= 0) {
+            return field(get(followUpMedications, innerIndex), MEDICATION_PROPERTIES, path.get(4));
+        }
+
+        return null;
+    }
+
+    private <T> Location field(Function<Patient, T> target, Map<String, Property<T>> properties, String name) {
+
+        Property<T> property = properties.get(name);
+        if (property == null) {
+            return null;
+        }
+
+        Location location = new Location();
+        location.type = property.owner.getSimpleName() + "." + name;
+        location.get = patient -> property.getter.apply(target.apply(patient));
+        location.add = (patient, value) -> property.setter.accept(target.apply(patient), value);
+        location.replace = location.add;
+        location.remove = patient -> property.setter.accept(target.apply(patient), null);
+        location.copier = property.copier;
+        // read the value through its owner so field level formats (e.g. @JsonFormat) apply
+        location.read = value -> {
+            ObjectNode owner = objectMapper.createObjectNode();
+            owner.set(name, value);
+            return property.getter.apply(objectMapper.convertValue(owner, property.owner));
+        };
+
+        return location;
+    }
+
+    private <E> Location element(Function<Patient, List<E>> list, BiConsumer<Patient, List<E>> setList,
+                                 int index, Class<E> elementClass, UnaryOperator<E> copier) {
+
+        Location location = new Location();
+        location.type = elementClass.getName();
+        location.get = patient -> list.apply(patient).get(index);
+        location.add = (patient, value) -> {
+            List<E> elements = list.apply(patient);
+            if (elements == null) {
+                elements = new ArrayList<>();
+                setList.accept(patient, elements);
+            }
+            if (index < 0) {
+                elements.add(elementClass.cast(value));
+            } else {
+                elements.add(index, elementClass.cast(value));
+            }
+        };
+        location.replace = (patient, value) -> list.apply(patient).set(index, elementClass.cast(value));
+        location.remove = patient -> list.apply(patient).remove(index);
+        location.copier = value -> copier.apply(elementClass.cast(value));
+        location.read = value -> objectMapper.convertValue(value, elementClass);
+
+        return location;
+    }
+
+    private static <E> Function<Patient, E> get(Function<Patient, List<E>> list, int index) {
+
+        return patient -> list.apply(patient).get(index);
+    }
+
+    // null for anything but a plain json pointer below the root
+    private static List<String> parsePath(String path) {
+
+        if (!path.startsWith("/")) {
+            return null;
+        }
+
+        List<String> tokens = new ArrayList<>();
+        for (String token : path.substring(1).split("/", -1)) {
+            tokens.add(token.replace("~1", "/").replace("~0", "~"));
+        }
+
+        return tokens;
+    }
+
+    // -1 for the end of the list ("-"), null if the token isn't an index
+    private static Integer parseIndex(String token, boolean append) {
+
+        if (token.equals("-")) {
+            return append ? -1 : null;
+        }
+        if (token.isEmpty() || (token.length() > 1 && token.startsWith("0"))) {
+            return null;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if (!Character.isDigit(token.charAt(i))) {
+                return null;
+            }
+        }
+
+        try {
+            return Integer.parseInt(token);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static List<Medication> copyMedications(List<Medication> medications) {
+
+        if (medications == null) {
+            return null;
+        }
+
+        List<Medication> copy = new ArrayList<>(medications.size());
+        for (Medication medication : medications) {
+            copy.add(copyMedication(medication));
+        }
+
+        return copy;
+    }
+
+    private static Medication copyMedication(Medication medication) {
+
+        if (medication == null) {
+            return null;
+        }
+
+        Medication copy = new Medication();
+        copy.setName(medication.getName());
+        copy.setDosage(medication.getDosage());
+        copy.setStartDate(medication.getStartDate());
+        copy.setEndDate(medication.getEndDate());
+
+        return copy;
+    }
+
+    private static List<FollowUp> copyFollowUps(List<FollowUp> followUps) {
+
+        if (followUps == null) {
+            return null;
+        }
+
+        List<FollowUp> copy = new ArrayList<>(followUps.size());
+        for (FollowUp followUp : followUps) {
+            copy.add(copyFollowUp(followUp));
+        }
+
+        return copy;
+    }
+
+    private static FollowUp copyFollowUp(FollowUp followUp) {
+
+        if (followUp == null) {
+            return null;
+        }
+
+        FollowUp copy = new FollowUp();
+        copy.setDate(followUp.getDate());
+        copy.setType(followUp.getType());
+        copy.setNatures(followUp.getNatures() == null ? null : new ArrayList<>(followUp.getNatures()));
+        copy.setMedications(copyMedications(followUp.getMedications()));
+
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object value) {
+        return (T) value;
+    }
+
+    public interface CompiledPatch {
+
+        void apply(Patient patient);
+
+        boolean isTyped();
+    }
+
+    private interface PatientOp {
+
+        void apply(Patient patient);
+    }
+
+    private static class TypedPatch implements CompiledPatch {
+
+        private final List<PatientOp> ops;
+
+        private TypedPatch(List<PatientOp> ops) {
+            this.ops = Collections.unmodifiableList(ops);
+        }
+
+        @Override
+        public void apply(Patient patient) {
+            for (PatientOp op : ops) {
+                op.apply(patient);
+            }
+        }
+
+        @Override
+        public boolean isTyped() {
+            return true;
+        }
+    }
+
+    private class FallbackPatch implements CompiledPatch {
+
+        private final JsonNode patch;
+
+        private FallbackPatch(JsonNode patch) {
+            this.patch = patch;
+        }
+
+        @Override
+        public void apply(Patient patient) {
+
+            JsonNode patientJson = objectMapper.valueToTree(patient);
+            JsonPatch.applyInPlace(patch, patientJson);
+
+            BeanUtils.copyProperties(objectMapper.convertValue(patientJson, Patient.class), patient);
+        }
+
+        @Override
+        public boolean isTyped() {
+            return false;
+        }
+    }
+
+    // somewhere in the patient a json pointer can point at
+    private static class Location {
+
+        // what lives here, a copy / move is only compiled between locations of the same type
+        private String type;
+        private Function<Patient, Object> get;
+        private BiConsumer<Patient, Object> add;
+        private BiConsumer<Patient, Object> replace;
+        private Consumer<Patient> remove;
+        private UnaryOperator<Object> copier;
+        private Function<JsonNode, Object> read;
+    }
+
+    private static class Property<T> {
+
+        private final Class<T> owner;
+        private final Function<T, Object> getter;
+        private final BiConsumer<T, Object> setter;
+        private final UnaryOperator<Object> copier;
+
+        private Property(Class<T> owner, Function<T, ?> getter, BiConsumer<T, Object> setter,
+                         UnaryOperator<Object> copier) {
+            this.owner = owner;
+            this.getter = cast(getter);
+            this.setter = setter;
+            this.copier = copier;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.ethanaa.crudstar.service;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Replays independent patients on a dedicated pool. A request's patients are split into at most parallelism chunks,
+ * the calling thread replays the last chunk itself and the results come back in the order the patients went in.
+ * Whatever is replayed here must not touch the persistence context, it belongs to the calling thread.
+ */
+@Component
+public class PatientReplayExecutor implements DisposableBean {
+
+    private ExecutorService executorService;
+
+    private int parallelism;
+
+    @Autowired
+    public PatientReplayExecutor(MeterRegistry meterRegistry,
+                                 @Value("${crudstar.replay-pool.size:0}") int poolSize,
+                                 @Value("${crudstar.replay-pool.parallelism:8}") int parallelism) {
+
+        if (poolSize <= 0) {
+            poolSize = Runtime.getRuntime().availableProcessors();
+        }
+
+        this.parallelism = Math.max(1, parallelism);
+        this.executorService = ExecutorServiceMetrics.monitor(meterRegistry,
+                Executors.newFixedThreadPool(poolSize, new ThreadFactoryBuilder()
+                        .setNameFormat("patient-replay-%d")
+                        .setDaemon(true)
+                        .build()),
+                "patient.replay");
+    }
+
+    public <T, R> List<R> map(List<T> patients, Function<T, R> replay) {
+
+        int chunks = Math.min(parallelism, patients.size());
+        if (chunks <= 1) {
+            return sequential(patients, replay);
+        }
+
+        List<List<T>> partitions = Lists.partition(patients, (patients.size() + chunks - 1) / chunks);
+
+        List<CompletableFuture<List<R>>> forked = new ArrayList<>();
+        for (List<T> partition : partitions.subList(0, partitions.size() - 1)) {
+            forked.add(CompletableFuture.supplyAsync(() -> sequential(partition, replay), executorService));
+        }
+        List<R> last = sequential(partitions.get(partitions.size() - 1), replay);
+
+        List<R> results = new ArrayList<>(patients.size());
+        try {
+            for (CompletableFuture<List<R>> future : forked) {
+                results.addAll(future.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        results.addAll(last);
+
+        return results;
+    }
+
+    private <T, R> List<R> sequential(List<T> patients, Function<T, R> replay) {
+
+        List<R> results = new ArrayList<>(patients.size());
+        for (T patient : patients) {
+            results.add(replay.apply(patient));
+        }
+
+        return results;
+    }
+
+    @Override
+    public void destroy() {
+
+        executorService.shutdownNow();
+    }
+}
@@ -1,57 +1,142 @@
 package com.ethanaa.crudstar.service;
 
 import com.ethanaa.crudstar.model.api.ApiFilter;
+import com.ethanaa.crudstar.model.api.CursorPage;
+import com.ethanaa.crudstar.model.api.IngestReport;
 import com.ethanaa.crudstar.model.api.LatestVersion;
+import com.ethanaa.crudstar.model.api.PageCursor;
+import com.ethanaa.crudstar.model.api.RollbackProgress;
 import com.ethanaa.crudstar.model.api.Snapshot;
+import com.ethanaa.crudstar.model.api.SquashedPatch;
 import com.ethanaa.crudstar.model.api.Version;
+import com.ethanaa.crudstar.model.api.VersionRequest;
+import com.ethanaa.crudstar.model.api.VersionRecord;
+import com.ethanaa.crudstar.model.api.VersionSummary;
+import com.ethanaa.crudstar.model.api.exception.InvalidJsonPointerException;
 import com.ethanaa.crudstar.model.api.exception.PatientNotFoundException;
+import com.ethanaa.crudstar.model.api.exception.PatientVersionConflictException;
 import com.ethanaa.crudstar.model.api.exception.SnapshotNotFoundException;
 import com.ethanaa.crudstar.model.persist.UUIDEntity;
+import com.ethanaa.crudstar.model.persist.patient.FieldBlame;
 import com.ethanaa.crudstar.model.persist.patient.Patient;
 import com.ethanaa.crudstar.model.persist.patient.PatientEntity;
 import com.ethanaa.crudstar.model.persist.patient.PatientSnapshotEntity;
+import com.ethanaa.crudstar.model.persist.patient.patch.PatientCheckpointEntity;
+import com.ethanaa.crudstar.model.persist.patient.patch.PatientHistoryEntity;
 import com.ethanaa.crudstar.model.persist.patient.patch.PatientPatchEntity;
 import com.ethanaa.crudstar.repository.PatientEntityRepository;
+import com.ethanaa.crudstar.repository.PatientHistoryEntityRepository;
 import com.ethanaa.crudstar.repository.PatientSnapshotEntityRepository;
 import com.ethanaa.crudstar.repository.PatientPatchEntityRepository;
 import com.ethanaa.crudstar.repository.specification.PatientEntitySpecification;
+import com.ethanaa.crudstar.repository.specification.PatientHistoryEntitySpecification;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.flipkart.zjsonpatch.JsonDiff;
 import com.flipkart.zjsonpatch.JsonPatch;
+import com.google.common.collect.Iterables;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StringUtils;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 @Transactional
 public class PatientService {
 
+    private static final int EXPORT_CHUNK_SIZE = 1000;
+
+    // where as-of reads get patient documents from: patches folded in the jvm, patches folded in postgres (paged
+    // listings only) or the patient_history table
+    public enum ReplayMode {
+        JVM,
+        DATABASE,
+        HISTORY
+    }
+
+    // how a timeline spreads its points: evenly over the version numbers or one per equal slice of time (the last
+    // version in each slice, empty slices are skipped)
+    public enum TimelineSampling {
+        COUNT,
+        TIME
+    }
+
     private PatientEntityRepository patientEntityRepository;
     private PatientPatchEntityRepository patientPatchEntityRepository;
     private PatientSnapshotEntityRepository patientSnapshotEntityRepository;
+    private PatientHistoryEntityRepository patientHistoryEntityRepository;
+
+    private PatientCheckpointService patientCheckpointService;
+    private PatientVersionCache patientVersionCache;
+    private PatientSquashCache patientSquashCache;
+    private PatientPatchCompiler patientPatchCompiler;
+    private JsonPatchComposer jsonPatchComposer;
+    private PatientBlame patientBlame;
+    private PatientReplayExecutor patientReplayExecutor;
+    private PatientBulkLoader patientBulkLoader;
 
     private ObjectMapper objectMapper;
+    private TransactionTemplate transactionTemplate;
+
+    private ReplayMode replayMode;
+    private int maxVersionBodies;
+    private int rollbackChunkSize;
 
     @Autowired
     public PatientService(PatientEntityRepository patientEntityRepository,
                           PatientPatchEntityRepository patientPatchEntityRepository,
                           PatientSnapshotEntityRepository patientSnapshotEntityRepository,
-                          ObjectMapper objectMapper) {
+                          PatientHistoryEntityRepository patientHistoryEntityRepository,
+                          PatientCheckpointService patientCheckpointService,
+                          PatientVersionCache patientVersionCache,
+                          PatientSquashCache patientSquashCache,
+                          PatientPatchCompiler patientPatchCompiler,
+                          JsonPatchComposer jsonPatchComposer,
+                          PatientBlame patientBlame,
+                          PatientReplayExecutor patientReplayExecutor,
+                          PatientBulkLoader patientBulkLoader,
+                          ObjectMapper objectMapper,
+                          PlatformTransactionManager transactionManager,
+                          @Value("${crudstar.replay:jvm}") ReplayMode replayMode,
+                          @Value("${crudstar.versions.max-bodies:100}") int maxVersionBodies,
+                          @Value("${crudstar.rollback.chunk-size:500}") int rollbackChunkSize) {
 
         this.patientEntityRepository = patientEntityRepository;
         this.patientPatchEntityRepository = patientPatchEntityRepository;
         this.patientSnapshotEntityRepository = patientSnapshotEntityRepository;
+        this.patientHistoryEntityRepository = patientHistoryEntityRepository;
+        this.patientCheckpointService = patientCheckpointService;
+        this.patientVersionCache = patientVersionCache;
+        this.patientSquashCache = patientSquashCache;
+        this.patientPatchCompiler = patientPatchCompiler;
+        this.jsonPatchComposer = jsonPatchComposer;
+        this.patientBlame = patientBlame;
+        this.patientReplayExecutor = patientReplayExecutor;
+        this.patientBulkLoader = patientBulkLoader;
         this.objectMapper = objectMapper;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.replayMode = replayMode;
+        this.maxVersionBodies = maxVersionBodies;
+        this.rollbackChunkSize = rollbackChunkSize;
     }
 
     public LatestVersion<PatientEntity> create(Patient patient) {
@@ -77,7 +162,10 @@ public class PatientService {
         JsonNode patientJson = objectMapper.valueToTree(patientEntity.getPatient());
         JsonNode createPatch = JsonDiff.asJson(objectMapper.createObjectNode(), patientJson);
         try {
-            patientEntity.addPatch(new PatientPatchEntity(objectMapper.writeValueAsString(createPatch), snapshot));
+            PatientPatchEntity patientPatchEntity =
+                    new PatientPatchEntity(objectMapper.writeValueAsString(createPatch), snapshot);
+            patientPatchEntity.setVersion(1L);
+            patientEntity.addPatch(patientPatchEntity);
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
@@ -103,48 +191,85 @@ public class PatientService {
         patientEntityRepository.saveAll(patientEntities);
     }
 
+    // same patients and create patches as create, loaded with COPY instead of an entity and an insert per patient
+    public IngestReport ingest(List<Patient> patients) {
+
+        return patientBulkLoader.load(patients);
+    }
+
     @Transactional(readOnly = true)
-    public Page<Version<PatientEntity>> getAsOfDateTime(Pageable pageable, LocalDateTime dateTime) {
+    public CursorPage<Version<PatientEntity>> getAsOfDateTime(Pageable pageable, LocalDateTime dateTime) {
 
-        return getAsOfDateTime(pageable, dateTime, null);
+        return getAsOfDateTime(pageable, dateTime, null, null);
     }
 
     @Transactional(readOnly = true)
-    public Page<Version<PatientEntity>> getAsOfDateTime(Pageable pageable, LocalDateTime dateTime, UUID snapshotId) {
+    public CursorPage<Version<PatientEntity>> getAsOfDateTime(Pageable pageable, LocalDateTime dateTime,
+                                                              PageCursor cursor) {
 
-        List<PatientPatchEntity> patches;
+        return getAsOfDateTime(pageable, dateTime, null, cursor);
+    }
+
+    // with a cursor the page seeks past it instead of skipping pageNumber * pageSize patients, the page number is
+    // only used for the page metadata
+    @Transactional(readOnly = true)
+    public CursorPage<Version<PatientEntity>> getAsOfDateTime(Pageable pageable, LocalDateTime dateTime,
+                                                              UUID snapshotId, PageCursor cursor) {
+
+        PatientSnapshotEntity snapshot = null;
         if (snapshotId != null) {
-            patches = patientPatchEntityRepository.findPatchesAsOfDateTime(
-                    pageable.getPageSize(), pageable.getPageNumber(), dateTime, snapshotId);
-        } else {
-            patches = patientPatchEntityRepository.findPatchesAsOfDateTime(
-                    pageable.getPageSize(), pageable.getPageNumber(), dateTime);
-        }
-        if (patches.isEmpty()) {
-            return new PageImpl<>(new ArrayList<>());
+            snapshot = patientSnapshotEntityRepository.findById(snapshotId)
+                    .orElseThrow(() -> new SnapshotNotFoundException(snapshotId));
         }
 
         Map<UUID, Patient> patientMap = new LinkedHashMap<>();
         Map<UUID, Long> versionsAsOfDateTime = new HashMap<>();
-        long version = 1;
-        for (PatientPatchEntity patch : patches) {
-            UUID patientId = patch.getPatient().getId();
-            Patient patient = patientMap.get(patientId);
-            if (patient == null) {
-                patient = new Patient();
-                version = 1;
+        Map<UUID, LocalDateTime> createdAtAsOfDateTime = new HashMap<>();
+        Map<String, Long> latestVersions = null;
+        Long total = null;
+        if (replayMode == ReplayMode.DATABASE || replayMode == ReplayMode.HISTORY) {
+            List<PatientPatchEntityRepository.PatientDocument> documents = replayMode == ReplayMode.DATABASE ?
+                    getDocumentsAsOfDateTime(pageable, dateTime, snapshot, cursor) :
+                    getHistoryAsOfDateTime(pageable, dateTime, snapshot, cursor);
+            for (PatientPatchEntityRepository.PatientDocument document : documents) {
+                UUID patientId = UUID.fromString(document.getPatientId());
+                patientMap.put(patientId, readPatient(document.getDocument()));
+                versionsAsOfDateTime.put(patientId, document.getVersion());
+                createdAtAsOfDateTime.put(patientId, document.getCreatedAt());
             }
-            JsonNode patientJson = objectMapper.valueToTree(patient);
-            try {
-                patientJson = JsonPatch.apply(objectMapper.readTree(patch.getPatch()), patientJson);
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
+        } else {
+            // latest versions and the total come back with the patches
+            latestVersions = new HashMap<>();
+            Map<UUID, List<PatientPatchEntityRepository.PatientPagePatch>> patchesByPatient = new LinkedHashMap<>();
+            for (PatientPatchEntityRepository.PatientPagePatch patch :
+                    getPatchesAsOfDateTime(pageable, dateTime, snapshot, cursor)) {
+                UUID patientId = UUID.fromString(patch.getPatientId());
+                patchesByPatient.computeIfAbsent(patientId, id -> new ArrayList<>()).add(patch);
+                versionsAsOfDateTime.put(patientId, patch.getVersion());
+                createdAtAsOfDateTime.put(patientId, patch.getCreatedAt());
+                latestVersions.put(patch.getPatientId(), patch.getLatestVersion());
+                total = patch.getTotal();
             }
 
-            Patient patchedPatient = objectMapper.convertValue(patientJson, Patient.class);
-            patientMap.put(patientId, patchedPatient);
-            versionsAsOfDateTime.put(patientId, version);
-            version++;
+            // one mutable patient per patient id, patched in place, patients replayed side by side
+            List<UUID> patientIds = new ArrayList<>(patchesByPatient.keySet());
+            List<Patient> patients = patientReplayExecutor.map(patientIds,
+                    patientId -> replay(patchesByPatient.get(patientId)));
+            for (int i = 0; i < patientIds.size(); i++) {
+                patientMap.put(patientIds.get(i), patients.get(i));
+            }
+        }
+        if (patientMap.isEmpty()) {
+            return new CursorPage<>(new ArrayList<>(), Pageable.unpaged(), 0, null);
+        }
+
+        // the page was cut at the patient whose latest patch comes last, the next one picks up right after it
+        PageCursor nextCursor = null;
+        if (patientMap.size() == pageable.getPageSize()) {
+            nextCursor = createdAtAsOfDateTime.entrySet().stream()
+                    .map(entry -> new PageCursor(entry.getValue(), entry.getKey()))
+                    .min(PageCursor.ORDER)
+                    .orElse(null);
         }
 
         List<PatientEntity> patientEntities = new ArrayList<>();
@@ -159,31 +284,87 @@ public class PatientService {
         // applied patches in asc order, but need to return patients in desc order
         Collections.reverse(patientEntities);
 
-        List<Version<PatientEntity>> patientEntityVersions;
-        if (snapshotId != null) {
-            Map<String, Long> latestVersions = getLatestVersions(patientEntityIds, snapshotId);
-            patientEntityVersions = patientEntities.stream().map(
-                            patientEntity -> new Version<>(patientEntity,
-                                    versionsAsOfDateTime.get(patientEntity.getId()),
-                                    latestVersions.get(patientEntity.getId().toString()),
-                                    dateTime))
-                    .collect(Collectors.toList());
+        // the documents don't carry the latest versions or the total, look them up separately
+        if (latestVersions == null) {
+            latestVersions = snapshot != null ?
+                    getLatestVersions(patientEntityIds, snapshot) : getLatestVersions(patientEntityIds);
+        }
+        if (total == null) {
+            total = snapshot != null ?
+                    patientPatchEntityRepository.countSnapshotPatientsWithPatchesAsOfDateTime(
+                            dateTime, snapshotId, snapshot.getAsOf()) :
+                    patientPatchEntityRepository.countPatientsWithPatchesAsOfDateTime(dateTime);
+        }
+
+        Map<String, Long> patientLatestVersions = latestVersions;
+        List<Version<PatientEntity>> patientEntityVersions = patientEntities.stream().map(
+                        patientEntity -> new Version<>(patientEntity,
+                                versionsAsOfDateTime.get(patientEntity.getId()),
+                                patientLatestVersions.get(patientEntity.getId().toString()),
+                                dateTime))
+                .collect(Collectors.toList());
 
-            return new PageImpl<>(patientEntityVersions, pageable,
-                    patientPatchEntityRepository.countSnapshotPatientsWithPatchesAsOfDateTime(dateTime, snapshotId));
+        return new CursorPage<>(patientEntityVersions, pageable, total, nextCursor);
+    }
 
-        } else {
-            Map<String, Long> latestVersions = getLatestVersions(patientEntityIds);
-            patientEntityVersions = patientEntities.stream().map(
-                            patientEntity -> new Version<>(patientEntity,
-                                    versionsAsOfDateTime.get(patientEntity.getId()),
-                                    latestVersions.get(patientEntity.getId().toString()),
-                                    dateTime))
-                    .collect(Collectors.toList());
+    private List<PatientPatchEntityRepository.PatientPagePatch> getPatchesAsOfDateTime(
+            Pageable pageable, LocalDateTime dateTime, PatientSnapshotEntity snapshot, PageCursor cursor) {
+
+        if (snapshot != null) {
+            if (cursor != null) {
+                return patientPatchEntityRepository.findPatchesAsOfDateTime(
+                        pageable.getPageSize(), cursor.getCreatedAt(), cursor.getPatientId(), dateTime,
+                        snapshot.getId(), snapshot.getAsOf());
+            }
+            return patientPatchEntityRepository.findPatchesAsOfDateTime(
+                    pageable.getPageSize(), pageable.getPageNumber(), dateTime, snapshot.getId(), snapshot.getAsOf());
+        }
+        if (cursor != null) {
+            return patientPatchEntityRepository.findPatchesAsOfDateTime(
+                    pageable.getPageSize(), cursor.getCreatedAt(), cursor.getPatientId(), dateTime);
+        }
+        return patientPatchEntityRepository.findPatchesAsOfDateTime(
+                pageable.getPageSize(), pageable.getPageNumber(), dateTime);
+    }
+
+    private List<PatientPatchEntityRepository.PatientDocument> getDocumentsAsOfDateTime(
+            Pageable pageable, LocalDateTime dateTime, PatientSnapshotEntity snapshot, PageCursor cursor) {
 
-            return new PageImpl<>(patientEntityVersions, pageable,
-                    patientPatchEntityRepository.countPatientsWithPatchesAsOfDateTime(dateTime));
+        if (snapshot != null) {
+            if (cursor != null) {
+                return patientPatchEntityRepository.findDocumentsAsOfDateTime(
+                        pageable.getPageSize(), cursor.getCreatedAt(), cursor.getPatientId(), dateTime,
+                        snapshot.getId(), snapshot.getAsOf());
+            }
+            return patientPatchEntityRepository.findDocumentsAsOfDateTime(
+                    pageable.getPageSize(), pageable.getPageNumber(), dateTime, snapshot.getId(), snapshot.getAsOf());
+        }
+        if (cursor != null) {
+            return patientPatchEntityRepository.findDocumentsAsOfDateTime(
+                    pageable.getPageSize(), cursor.getCreatedAt(), cursor.getPatientId(), dateTime);
         }
+        return patientPatchEntityRepository.findDocumentsAsOfDateTime(
+                pageable.getPageSize(), pageable.getPageNumber(), dateTime);
+    }
+
+    private List<PatientPatchEntityRepository.PatientDocument> getHistoryAsOfDateTime(
+            Pageable pageable, LocalDateTime dateTime, PatientSnapshotEntity snapshot, PageCursor cursor) {
+
+        if (snapshot != null) {
+            if (cursor != null) {
+                return patientPatchEntityRepository.findHistoryAsOfDateTime(
+                        pageable.getPageSize(), cursor.getCreatedAt(), cursor.getPatientId(), dateTime,
+                        snapshot.getId(), snapshot.getAsOf());
+            }
+            return patientPatchEntityRepository.findHistoryAsOfDateTime(
+                    pageable.getPageSize(), pageable.getPageNumber(), dateTime, snapshot.getId(), snapshot.getAsOf());
+        }
+        if (cursor != null) {
+            return patientPatchEntityRepository.findHistoryAsOfDateTime(
+                    pageable.getPageSize(), cursor.getCreatedAt(), cursor.getPatientId(), dateTime);
+        }
+        return patientPatchEntityRepository.findHistoryAsOfDateTime(
+                pageable.getPageSize(), pageable.getPageNumber(), dateTime);
     }
 
     @Transactional(readOnly = true)
@@ -195,35 +376,67 @@ public class PatientService {
     @Transactional(readOnly = true)
     public Version<PatientEntity> getAsOfDateTime(UUID patientId, LocalDateTime dateTime, UUID snapshotId) {
 
-        List<PatientPatchEntity> patches;
+        PatientSnapshotEntity snapshot = null;
         if (snapshotId != null) {
-            patches = patientPatchEntityRepository.findPatchesAsOfDateTime(patientId, dateTime, snapshotId);
+            snapshot = patientSnapshotEntityRepository.findById(snapshotId)
+                    .orElseThrow(() -> new SnapshotNotFoundException(snapshotId));
+        }
+
+        if (replayMode == ReplayMode.HISTORY) {
+            return getHistoryAsOfDateTime(patientId, dateTime, snapshot);
+        }
+
+        Long version;
+        if (snapshot != null) {
+            version = patientPatchEntityRepository.findSnapshotVersionAsOfDateTime(
+                    patientId, snapshotId, snapshot.getAsOf(), dateTime);
         } else {
-            patches = patientPatchEntityRepository.findPatchesAsOfDateTime(patientId, dateTime);
+            version = patientPatchEntityRepository.findVersionAsOfDateTime(patientId, dateTime);
         }
-        if (patches.isEmpty()) {
+        if (version == null) {
             throw new PatientNotFoundException(patientId);
         }
 
-        JsonNode patientJson = objectMapper.createObjectNode();
-        for (PatientPatchEntity patch : patches) {
-            try {
-                patientJson = JsonPatch.apply(objectMapper.readTree(patch.getPatch()), patientJson);
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
-            }
+        long latestVersion = snapshot != null ? getLatestVersion(patientId, snapshot) : getLatestVersion(patientId);
+
+        PatientVersionCache.CachedVersion cachedVersion = getVersion(
+                patientId, snapshotId, snapshot != null ? snapshot.getAsOf() : null, version, latestVersion);
+
+        PatientEntity patientEntity = new PatientEntity(cachedVersion.getPatient());
+        patientEntity.setId(patientId);
+
+        if (snapshot != null) {
+            return new Snapshot<>(patientEntity, version, latestVersion, dateTime, snapshotId);
         }
 
-        Patient patient = objectMapper.convertValue(patientJson, Patient.class);
-        PatientEntity patientEntity = new PatientEntity(patient);
+        return new Version<>(patientEntity, version, latestVersion, dateTime);
+    }
+
+    private Version<PatientEntity> getHistoryAsOfDateTime(UUID patientId, LocalDateTime dateTime,
+                                                          PatientSnapshotEntity snapshot) {
+
+        PatientPatchEntityRepository.PatientDocument document;
+        long latestVersion;
+        if (snapshot != null) {
+            document = patientPatchEntityRepository.findHistoryAsOfDateTime(
+                    patientId, dateTime, snapshot.getId(), snapshot.getAsOf());
+            latestVersion = getLatestVersion(patientId, snapshot);
+        } else {
+            document = patientPatchEntityRepository.findHistoryAsOfDateTime(patientId, dateTime);
+            latestVersion = getLatestVersion(patientId);
+        }
+        if (document == null) {
+            throw new PatientNotFoundException(patientId);
+        }
+
+        PatientEntity patientEntity = new PatientEntity(readPatient(document.getDocument()));
         patientEntity.setId(patientId);
 
-        if (snapshotId != null) {
-            return new Snapshot<>(patientEntity, patches.size(),
-                    getLatestVersion(patientId, snapshotId), dateTime, snapshotId);
+        if (snapshot != null) {
+            return new Snapshot<>(patientEntity, document.getVersion(), latestVersion, dateTime, snapshot.getId());
         }
 
-        return new Version<>(patientEntity, patches.size(), getLatestVersion(patientId), dateTime);
+        return new Version<>(patientEntity, document.getVersion(), latestVersion, dateTime);
     }
 
     public PatientSnapshotEntity createSnapshot(LocalDateTime dateTime) {
@@ -262,20 +475,47 @@ public class PatientService {
     }
 
     @Transactional(readOnly = true)
-    public Page<Snapshot<PatientEntity>> getSnapshot(Pageable pageable, UUID snapshotId, LocalDateTime dateTime) {
+    public CursorPage<Snapshot<PatientEntity>> getSnapshot(Pageable pageable, UUID snapshotId, LocalDateTime dateTime) {
+
+        return getSnapshot(pageable, snapshotId, dateTime, null);
+    }
+
+    @Transactional(readOnly = true)
+    public CursorPage<Snapshot<PatientEntity>> getSnapshot(Pageable pageable, UUID snapshotId, LocalDateTime dateTime,
+                                                           PageCursor cursor) {
 
         LocalDateTime asOf = dateTime;
         if (asOf == null) {
             asOf = LocalDateTime.now();
         }
-        Page<Version<PatientEntity>> patientEntityVersions = getAsOfDateTime(pageable, asOf, snapshotId);
+        CursorPage<Version<PatientEntity>> patientEntityVersions = getAsOfDateTime(pageable, asOf, snapshotId, cursor);
 
         List<Snapshot<PatientEntity>> patientEntitySnapshots = new ArrayList<>();
         for (Version<PatientEntity> patientEntityVersion : patientEntityVersions) {
             patientEntitySnapshots.add(new Snapshot<>(patientEntityVersion, snapshotId));
         }
 
-        return new PageImpl<>(patientEntitySnapshots, pageable, patientEntityVersions.getTotalElements());
+        return new CursorPage<>(patientEntitySnapshots, pageable, patientEntityVersions.getTotalElements(),
+                patientEntityVersions.getNextCursor());
+    }
+
+    @Transactional(readOnly = true)
+    public CursorPage<Snapshot<PatientEntity>> searchSnapshot(String query, Pageable pageable, List<ApiFilter> filters,
+                                                              UUID snapshotId, LocalDateTime dateTime) {
+
+        LocalDateTime asOf = dateTime;
+        if (asOf == null) {
+            asOf = LocalDateTime.now();
+        }
+        CursorPage<Version<PatientEntity>> patientEntityVersions =
+                searchAsOfDateTime(query, pageable, filters, asOf, snapshotId);
+
+        List<Snapshot<PatientEntity>> patientEntitySnapshots = new ArrayList<>();
+        for (Version<PatientEntity> patientEntityVersion : patientEntityVersions) {
+            patientEntitySnapshots.add(new Snapshot<>(patientEntityVersion, snapshotId));
+        }
+
+        return new CursorPage<>(patientEntitySnapshots, pageable, patientEntityVersions.getTotalElements(), null);
     }
 
     @Transactional(readOnly = true)
@@ -295,7 +535,7 @@ public class PatientService {
         PatientSnapshotEntity snapshot = patientSnapshotEntityRepository.findById(snapshotId)
                 .orElseThrow(() -> new SnapshotNotFoundException(snapshotId));
 
-        return getVersions(Collections.singletonList(patientId), snapshotId, LocalDateTime.now())
+        return getVersions(Collections.singletonList(patientId), snapshot, LocalDateTime.now())
                 .get(patientId.toString())
                 .stream()
                 .map(patientEntityVersion -> new Snapshot<>(patientEntityVersion, snapshotId))
@@ -313,7 +553,7 @@ public class PatientService {
 
         long latestVersion;
         if (snapshotId != null) {
-            latestVersion = getLatestVersion(patientId, snapshotId);
+            latestVersion = patientPatchEntityRepository.findLatestSnapshotVersion(patientId, snapshotId, asOf);
         } else {
             latestVersion = getLatestVersion(patientId);
         }
@@ -325,32 +565,253 @@ public class PatientService {
             version = latestVersion;
         }
 
+        PatientVersionCache.CachedVersion cachedVersion = getVersion(patientId, snapshotId, asOf, version, latestVersion);
+
+        PatientEntity patientEntity = new PatientEntity(cachedVersion.getPatient());
+        patientEntity.setId(patientId);
+
+        return new Version<>(patientEntity, version, latestVersion, cachedVersion.getCreatedAt());
+    }
+
+    // many patients, each as of its own time and / or version, with one query for all of their patches. the requests
+    // are replayed side by side and come back in the order they went in. a patient that doesn't exist (or didn't yet)
+    // fails the batch like it fails a single read
+    @Transactional(readOnly = true)
+    public List<Version<PatientEntity>> getAsOf(List<VersionRequest> versionRequests) {
+
+        if (versionRequests.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        ArrayNode requests = objectMapper.createArrayNode();
+        for (int i = 0; i < versionRequests.size(); i++) {
+            VersionRequest versionRequest = versionRequests.get(i);
+            ObjectNode request = requests.addObject();
+            request.put("ordinal", i);
+            request.put("patient_id", versionRequest.getPatientId().toString());
+            if (versionRequest.getAsOf() != null) {
+                request.put("as_of", versionRequest.getAsOf().toString());
+            }
+            if (versionRequest.getVersion() != null) {
+                request.put("version", versionRequest.getVersion());
+            }
+        }
+
+        Map<Integer, List<PatientPatchEntityRepository.RequestedPatch>> patchesByRequest = new HashMap<>();
+        try {
+            for (PatientPatchEntityRepository.RequestedPatch patch :
+                    patientPatchEntityRepository.findRequestedPatches(objectMapper.writeValueAsString(requests))) {
+                patchesByRequest.computeIfAbsent(patch.getOrdinal(), ordinal -> new ArrayList<>()).add(patch);
+            }
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+
+        List<Integer> ordinals = new ArrayList<>();
+        for (int i = 0; i < versionRequests.size(); i++) {
+            if (!patchesByRequest.containsKey(i)) {
+                throw new PatientNotFoundException(versionRequests.get(i).getPatientId());
+            }
+            ordinals.add(i);
+        }
+
+        List<Patient> patients = patientReplayExecutor.map(ordinals,
+                ordinal -> replayRequested(patchesByRequest.get(ordinal)));
+
+        List<Version<PatientEntity>> versions = new ArrayList<>();
+        for (int i = 0; i < versionRequests.size(); i++) {
+            VersionRequest versionRequest = versionRequests.get(i);
+            PatientPatchEntityRepository.RequestedPatch target = patchesByRequest.get(i).get(0);
+
+            PatientEntity patientEntity = new PatientEntity(patients.get(i));
+            patientEntity.setId(versionRequest.getPatientId());
+
+            versions.add(new Version<>(patientEntity, target.getVersion(), target.getLatestVersion(),
+                    versionRequest.getAsOf() != null ? versionRequest.getAsOf() : target.getCreatedAt()));
+        }
+
+        return versions;
+    }
+
+    private Patient replayRequested(List<PatientPatchEntityRepository.RequestedPatch> patches) {
+
+        String checkpoint = patches.get(0).getCheckpoint();
+        Patient patient = checkpoint != null ? readPatient(checkpoint) : new Patient();
+        for (PatientPatchEntityRepository.RequestedPatch patch : patches) {
+            if (patch.getPatch() != null) {
+                patientPatchCompiler.compile(UUID.fromString(patch.getId()), patch.getPatch()).apply(patient);
+            }
+        }
+
+        return patient;
+    }
+
+    private PatientVersionCache.CachedVersion getVersion(UUID patientId, UUID snapshotId, LocalDateTime snapshotAsOf,
+                                                         long version, long latestVersion) {
+
+        PatientVersionCache.CachedVersion cachedVersion = patientVersionCache.get(patientId, snapshotId, version);
+        if (cachedVersion != null) {
+            return cachedVersion;
+        }
+
         List<PatientPatchEntity> patches;
+        PatientCheckpointEntity checkpoint = null;
         if (snapshotId != null) {
-            patches = patientPatchEntityRepository.findFirstSnapshotPatches(patientId, snapshotId, asOf, version);
+            patches = patientPatchEntityRepository.findSnapshotPatchesToVersion(
+                    patientId, snapshotId, snapshotAsOf, version);
         } else {
-            patches = patientPatchEntityRepository.findFirstPatches(patientId, version);
+            checkpoint = patientCheckpointService.getCheckpoint(patientId, version).orElse(null);
+
+            // walk back from the materialized patient when that takes fewer patches than replaying forward
+            long forwardPatches = version - (checkpoint != null ? checkpoint.getVersion() : 0);
+            if (latestVersion - version < forwardPatches) {
+                cachedVersion = getVersionBackward(patientId, version);
+                if (cachedVersion != null) {
+                    return cachedVersion;
+                }
+            }
+
+            if (checkpoint != null) {
+                patches = patientPatchEntityRepository.findPatchesToVersion(
+                        patientId, checkpoint.getVersion(), version);
+            } else {
+                patches = patientPatchEntityRepository.findPatchesToVersion(patientId, version);
+            }
         }
-        if (patches.isEmpty()) {
+        if (patches.isEmpty() && checkpoint == null) {
             throw new PatientNotFoundException(patientId);
         }
 
-        JsonNode patientJson = objectMapper.createObjectNode();
-        for (PatientPatchEntity patch : patches) {
+        Patient patient = replay(checkpoint, patches);
+
+        LocalDateTime latestPatchCreatedAt = patches.isEmpty()
+                ? checkpoint.getPatchCreatedAt()
+                : patches.get(patches.size() - 1).getCreatedAt();
+
+        return patientVersionCache.put(patientId, snapshotId, version, patient, latestPatchCreatedAt);
+    }
+
+    // null when a patch after the version has no inverse recorded, the caller then replays forward
+    private PatientVersionCache.CachedVersion getVersionBackward(UUID patientId, long version) {
+
+        PatientEntity patientEntity = patientEntityRepository.findById(patientId)
+                .orElseThrow(() -> new PatientNotFoundException(patientId));
+        if (patientEntity.getVersion() == null || patientEntity.getVersion() < version) {
+            return null;
+        }
+
+        // latest first, down to and including the patch that produced the version
+        List<PatientPatchEntity> patches = patientPatchEntityRepository.findPatchesFromVersion(
+                patientId, version, patientEntity.getVersion());
+        if (patches.size() != patientEntity.getVersion() - version + 1) {
+            return null;
+        }
+        for (PatientPatchEntity patch : patches.subList(0, patches.size() - 1)) {
+            if (patch.getInversePatch() == null) {
+                return null;
+            }
+        }
+
+        JsonNode patientJson = objectMapper.valueToTree(patientEntity.getPatient());
+        for (PatientPatchEntity patch : patches.subList(0, patches.size() - 1)) {
             try {
-                patientJson = JsonPatch.apply(objectMapper.readTree(patch.getPatch()), patientJson);
+                JsonPatch.applyInPlace(objectMapper.readTree(patch.getInversePatch()), patientJson);
             } catch (JsonProcessingException e) {
                 throw new RuntimeException(e);
             }
         }
 
         Patient patient = objectMapper.convertValue(patientJson, Patient.class);
-        PatientEntity patientEntity = new PatientEntity(patient);
-        patientEntity.setId(patientId);
 
-        LocalDateTime latestPatchCreatedAt = patches.get(patches.size() - 1).getCreatedAt();
+        return patientVersionCache.put(patientId, null, version, patient,
+                patches.get(patches.size() - 1).getCreatedAt());
+    }
+
+    @Transactional(readOnly = true)
+    public Page<VersionSummary> getVersionSummaries(Pageable pageable, UUID patientId, boolean includeBodies) {
 
-        return new Version<>(patientEntity, version, latestVersion, latestPatchCreatedAt);
+        return getVersionSummaries(pageable, patientId, null, includeBodies);
+    }
+
+    // versions straight from the patch table, with bodies only when asked for and then at most maxVersionBodies of
+    // them per page
+    @Transactional(readOnly = true)
+    public Page<VersionSummary> getVersionSummaries(Pageable pageable, UUID patientId, UUID snapshotId,
+                                                    boolean includeBodies) {
+
+        PatientSnapshotEntity snapshot = null;
+        if (snapshotId != null) {
+            snapshot = patientSnapshotEntityRepository.findById(snapshotId)
+                    .orElseThrow(() -> new SnapshotNotFoundException(snapshotId));
+        }
+
+        PageRequest pageRequest = PageRequest.of(pageable.getPageNumber(),
+                includeBodies ? Math.min(pageable.getPageSize(), maxVersionBodies) : pageable.getPageSize());
+
+        Page<PatientPatchEntityRepository.PatchMetadata> patchMetadata = snapshot != null ?
+                patientPatchEntityRepository.findSnapshotPatchMetadata(
+                        pageRequest, patientId, snapshotId, snapshot.getAsOf()) :
+                patientPatchEntityRepository.findPatchMetadata(pageRequest, patientId);
+        if (patchMetadata.getTotalElements() == 0) {
+            throw new PatientNotFoundException(patientId);
+        }
+
+        Page<VersionSummary> versionSummaries = patchMetadata.map(metadata -> new VersionSummary(
+                patientId,
+                snapshotId,
+                metadata.getVersion(),
+                metadata.getCreatedAt(),
+                metadata.getSnapshotId() != null ? UUID.fromString(metadata.getSnapshotId()) : null,
+                metadata.getPatchSize()));
+
+        if (includeBodies && versionSummaries.hasContent()) {
+            List<VersionSummary> content = versionSummaries.getContent();
+            Map<Long, Patient> bodies = getVersionBodies(patientId, snapshot,
+                    content.get(0).getVersion(), content.get(content.size() - 1).getVersion());
+            for (VersionSummary versionSummary : content) {
+                versionSummary.setPatient(bodies.get(versionSummary.getVersion()));
+            }
+        }
+
+        return versionSummaries;
+    }
+
+    // the first version from the cache / a checkpoint, every later one by applying the next patch to a copy
+    private Map<Long, Patient> getVersionBodies(UUID patientId, PatientSnapshotEntity snapshot,
+                                                long fromVersion, long toVersion) {
+
+        UUID snapshotId = snapshot != null ? snapshot.getId() : null;
+        LocalDateTime snapshotAsOf = snapshot != null ? snapshot.getAsOf() : null;
+        long latestVersion = snapshot != null ?
+                patientPatchEntityRepository.findLatestSnapshotVersion(patientId, snapshotId, snapshotAsOf) :
+                getLatestVersion(patientId);
+
+        Patient patient = getVersion(patientId, snapshotId, snapshotAsOf, fromVersion, latestVersion).getPatient();
+
+        Map<Long, Patient> bodies = new HashMap<>();
+        bodies.put(fromVersion, patient);
+        if (toVersion == fromVersion) {
+            return bodies;
+        }
+
+        List<PatientPatchEntity> patches = snapshot != null ?
+                patientPatchEntityRepository.findSnapshotPatchesToVersion(
+                        patientId, snapshotId, snapshotAsOf, fromVersion, toVersion) :
+                patientPatchEntityRepository.findPatchesToVersion(patientId, fromVersion, toVersion);
+
+        patient = patientPatchCompiler.copy(patient);
+        for (PatientPatchEntity patch : patches) {
+            if (patch.getVersion() <= fromVersion) {
+                continue;
+            }
+            patientPatchCompiler.compile(patch.getId(), patch.getPatch()).apply(patient);
+
+            Patient body = patientPatchCompiler.copy(patient);
+            patientVersionCache.put(patientId, snapshotId, patch.getVersion(), body, patch.getCreatedAt());
+            bodies.put(patch.getVersion(), body);
+        }
+
+        return bodies;
     }
 
     @Transactional(readOnly = true)
@@ -361,56 +822,168 @@ public class PatientService {
 
     @Transactional(readOnly = true)
     private Map<String, List<Version<PatientEntity>>> getVersions(List<UUID> patientIds,
-                                                                  UUID snapshotId, LocalDateTime dateTime) {
+                                                                  PatientSnapshotEntity snapshot,
+                                                                  LocalDateTime dateTime) {
 
         List<PatientPatchEntityRepository.PatientIdPatchTuple> patchTuples;
         Map<String, Long> latestVersions;
-        if (snapshotId != null) {
-            patchTuples = patientPatchEntityRepository.findPatches(patientIds, snapshotId, dateTime);
-            latestVersions = getLatestVersions(patientIds, snapshotId);
+        if (snapshot != null) {
+            patchTuples = patientPatchEntityRepository.findPatches(
+                    patientIds, snapshot.getId(), snapshot.getAsOf(), dateTime);
+            latestVersions = getLatestVersions(patientIds, snapshot);
         } else {
             patchTuples = patientPatchEntityRepository.findPatches(patientIds);
             latestVersions = getLatestVersions(patientIds);
         }
 
-        String patientId = null;
-        long currentVersion = 1;
-        JsonNode patientJson = null;
+        Map<String, List<PatientPatchEntityRepository.PatientIdPatchTuple>> patchTuplesByPatient = new LinkedHashMap<>();
+        for (PatientPatchEntityRepository.PatientIdPatchTuple patchTuple : patchTuples) {
+            patchTuplesByPatient.computeIfAbsent(patchTuple.getPatientId(), k -> new ArrayList<>()).add(patchTuple);
+        }
+
+        List<String> patientIdList = new ArrayList<>(patchTuplesByPatient.keySet());
+        List<List<Version<PatientEntity>>> versionLists = patientReplayExecutor.map(patientIdList, patientId -> {
+            Patient patient = new Patient();
+            List<Version<PatientEntity>> patientVersions = new ArrayList<>();
+            for (PatientPatchEntityRepository.PatientIdPatchTuple patchTuple : patchTuplesByPatient.get(patientId)) {
+                patientPatchCompiler.compile(UUID.fromString(patchTuple.getId()), patchTuple.getPatch()).apply(patient);
+
+                // every version keeps its own copy, the working patient moves on to the next patch
+                PatientEntity patientEntity = new PatientEntity(patientPatchCompiler.copy(patient));
+                patientEntity.setId(UUID.fromString(patientId));
+
+                patientVersions.add(new Version<>(patientEntity,
+                        patchTuple.getVersion(), latestVersions.get(patientId), patchTuple.getCreatedAt()));
+            }
+            return patientVersions;
+        });
+
         Map<String, List<Version<PatientEntity>>> patientEntityVersions = new HashMap<>();
+        for (int i = 0; i < patientIdList.size(); i++) {
+            patientEntityVersions.put(patientIdList.get(i), versionLists.get(i));
+        }
 
-        for (PatientPatchEntityRepository.PatientIdPatchTuple patchTuple : patchTuples) {
-            if (!patchTuple.getPatientId().equals(patientId)) {
-                patientId = patchTuple.getPatientId();
-                currentVersion = 1;
-                patientJson = objectMapper.createObjectNode();
+        return patientEntityVersions;
+    }
+
+    // every version of every patient, handed to the consumer as soon as it's replayed. patches are read forward only
+    // and one working patient is kept at a time, so memory doesn't grow with the history. patients come in id order,
+    // EXPORT_CHUNK_SIZE of them per query
+    @Transactional(readOnly = true)
+    public void exportVersions(Collection<UUID> patientIds, Consumer<VersionRecord> consumer) {
+
+        for (List<UUID> chunk : Iterables.partition(new TreeSet<>(patientIds), EXPORT_CHUNK_SIZE)) {
+            try (Stream<PatientPatchEntityRepository.PatientIdPatchTuple> patches =
+                         patientPatchEntityRepository.streamPatches(chunk)) {
+                String patientId = null;
+                Patient patient = null;
+                Iterator<PatientPatchEntityRepository.PatientIdPatchTuple> iterator = patches.iterator();
+                while (iterator.hasNext()) {
+                    PatientPatchEntityRepository.PatientIdPatchTuple patch = iterator.next();
+                    if (!patch.getPatientId().equals(patientId)) {
+                        patientId = patch.getPatientId();
+                        patient = new Patient();
+                    }
+
+                    // not cached, a full export would push everything else out of the compiled patch cache
+                    patientPatchCompiler.compile(patch.getPatch()).apply(patient);
+
+                    consumer.accept(new VersionRecord(UUID.fromString(patientId), patch.getVersion(),
+                            patch.getCreatedAt(), patient));
+                }
             }
+        }
+    }
 
-            try {
-                patientJson = JsonPatch.apply(
-                        objectMapper.readTree(patchTuple.getPatch()), patientJson);
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
+    // the sampled versions of a patient in one pass over its patches, each handed over as soon as the pass reaches it
+    @Transactional(readOnly = true)
+    public void timeline(UUID patientId, int points, TimelineSampling sampling, Consumer<VersionRecord> consumer) {
+
+        long latestVersion = getLatestVersion(patientId);
+        if (latestVersion == 0) {
+            throw new PatientNotFoundException(patientId);
+        }
+
+        NavigableSet<Long> sampled = sampling == TimelineSampling.TIME
+                ? sampleByTime(patientPatchEntityRepository.findVersionTimes(patientId), points)
+                : sampleByCount(latestVersion, points);
+
+        try (Stream<PatientPatchEntityRepository.PatientIdPatchTuple> patches =
+                     patientPatchEntityRepository.streamPatches(Collections.singletonList(patientId))) {
+            Patient patient = new Patient();
+            Iterator<PatientPatchEntityRepository.PatientIdPatchTuple> iterator = patches.iterator();
+            while (iterator.hasNext()) {
+                PatientPatchEntityRepository.PatientIdPatchTuple patch = iterator.next();
+                patientPatchCompiler.compile(UUID.fromString(patch.getId()), patch.getPatch()).apply(patient);
+
+                if (sampled.contains(patch.getVersion())) {
+                    consumer.accept(new VersionRecord(patientId, patch.getVersion(), patch.getCreatedAt(), patient));
+                }
+                if (patch.getVersion() >= sampled.last()) {
+                    break;
+                }
             }
+        }
+    }
 
-            Patient patient = objectMapper.convertValue(patientJson, Patient.class);
-            PatientEntity patientEntity = new PatientEntity(patient);
-            patientEntity.setId(UUID.fromString(patientId));
+    private NavigableSet<Long> sampleByCount(long latestVersion, int points) {
+
+        NavigableSet<Long> sampled = new TreeSet<>();
+        if (points <= 1) {
+            sampled.add(latestVersion);
+            return sampled;
+        }
+
+        for (int i = 0; i < points; i++) {
+            sampled.add(1 + Math.round(i * (latestVersion - 1) / (double) (points - 1)));
+        }
+
+        return sampled;
+    }
 
-            Version<PatientEntity> patientVersion = new Version<>(patientEntity,
-                    currentVersion, latestVersions.get(patientId), patchTuple.getCreatedAt());
+    private NavigableSet<Long> sampleByTime(List<PatientPatchEntityRepository.VersionTime> versionTimes, int points) {
 
-            patientEntityVersions.computeIfAbsent(patientId, k -> new ArrayList<>()).add(patientVersion);
+        points = Math.max(1, points);
+        LocalDateTime first = versionTimes.get(0).getCreatedAt();
+        long span = Duration.between(first, versionTimes.get(versionTimes.size() - 1).getCreatedAt()).toMillis();
 
-            currentVersion++;
+        Map<Long, Long> lastVersionBySlice = new HashMap<>();
+        for (PatientPatchEntityRepository.VersionTime versionTime : versionTimes) {
+            long slice = span == 0 ? 0 : Math.min(points - 1,
+                    Duration.between(first, versionTime.getCreatedAt()).toMillis() * points / span);
+            lastVersionBySlice.put(slice, versionTime.getVersion());
         }
 
-        return patientEntityVersions;
+        return new TreeSet<>(lastVersionBySlice.values());
+    }
+
+    // every operation that touched a field: at its path, at one of its ancestors (which replaced it whole) or below it
+    @Transactional(readOnly = true)
+    public Page<PatientPatchEntityRepository.PatchOperation> getFieldHistory(Pageable pageable, UUID patientId,
+                                                                               String path) {
+
+        if (!path.isEmpty() && !path.startsWith("/")) {
+            throw new InvalidJsonPointerException(path);
+        }
+        if (getLatestVersion(patientId) == 0) {
+            throw new PatientNotFoundException(patientId);
+        }
+
+        List<String> paths = new ArrayList<>();
+        paths.add("");
+        for (int i = path.indexOf('/', 1); i > 0; i = path.indexOf('/', i + 1)) {
+            paths.add(path.substring(0, i));
+        }
+        paths.add(path);
+
+        // everything below path sorts in [path + "/", path + "0"), '0' being the character after '/'
+        return patientPatchEntityRepository.findPatchOperations(pageable, patientId, paths, path + "/", path + "0");
     }
 
     @Transactional(readOnly = true)
     public long getLatestVersion(UUID patientId) {
 
-        return patientPatchEntityRepository.countPatches(patientId);
+        return patientPatchEntityRepository.findLatestVersion(patientId);
     }
 
     @Transactional(readOnly = true)
@@ -419,50 +992,58 @@ public class PatientService {
         PatientSnapshotEntity snapshot = patientSnapshotEntityRepository.findById(snapshotId)
                 .orElseThrow(() -> new SnapshotNotFoundException(snapshotId));
 
-        return patientPatchEntityRepository.countSnapshotPatches(patientId, snapshot.getAsOf(), snapshot.getId());
+        return getLatestVersion(patientId, snapshot);
+    }
+
+    private long getLatestVersion(UUID patientId, PatientSnapshotEntity snapshot) {
+
+        return patientPatchEntityRepository.findLatestSnapshotVersion(patientId, snapshot.getId(), snapshot.getAsOf());
     }
 
     @Transactional(readOnly = true)
     public Map<String, Long> getLatestVersions(List<UUID> patientIds) {
 
-        List<PatientPatchEntityRepository.PatchCount> latestVersions =
-                patientPatchEntityRepository.countPatches(patientIds);
-
-        return latestVersions.stream()
-                .collect(Collectors.toMap(
-                        PatientPatchEntityRepository.PatchCount::getPatientId,
-                        PatientPatchEntityRepository.PatchCount::getCount));
+        return toVersionMap(patientPatchEntityRepository.findLatestVersions(patientIds));
     }
 
     @Transactional(readOnly = true)
     public Map<String, Long> getLatestVersions(List<UUID> patientIds, UUID snapshotId) {
 
-        List<PatientPatchEntityRepository.PatchCount> latestVersions =
-                patientPatchEntityRepository.countPatches(patientIds, snapshotId);
+        PatientSnapshotEntity snapshot = patientSnapshotEntityRepository.findById(snapshotId)
+                .orElseThrow(() -> new SnapshotNotFoundException(snapshotId));
 
-        return latestVersions.stream()
-                .collect(Collectors.toMap(
-                        PatientPatchEntityRepository.PatchCount::getPatientId,
-                        PatientPatchEntityRepository.PatchCount::getCount));
+        return getLatestVersions(patientIds, snapshot);
+    }
+
+    private Map<String, Long> getLatestVersions(List<UUID> patientIds, PatientSnapshotEntity snapshot) {
+
+        return toVersionMap(patientPatchEntityRepository.findLatestVersions(
+                patientIds, snapshot.getId(), snapshot.getAsOf()));
     }
 
     @Transactional(readOnly = true)
     public Map<String, Long> getLatestVersionsAsOfDateTime(List<UUID> patientIds,
                                                            LocalDateTime dateTime, UUID snapshotId) {
 
-        List<PatientPatchEntityRepository.PatchCount> latestVersions;
+        List<PatientPatchEntityRepository.PatchVersion> latestVersions;
         if (snapshotId != null) {
-            latestVersions =
-                    patientPatchEntityRepository.countPatchesAsOfDateTime(patientIds, dateTime, snapshotId);
+            PatientSnapshotEntity snapshot = patientSnapshotEntityRepository.findById(snapshotId)
+                    .orElseThrow(() -> new SnapshotNotFoundException(snapshotId));
+            latestVersions = patientPatchEntityRepository.findVersionsAsOfDateTime(
+                    patientIds, dateTime, snapshotId, snapshot.getAsOf());
         } else {
-            latestVersions =
-                    patientPatchEntityRepository.countPatchesAsOfDateTime(patientIds, dateTime);
+            latestVersions = patientPatchEntityRepository.findVersionsAsOfDateTime(patientIds, dateTime);
         }
 
-        return latestVersions.stream()
+        return toVersionMap(latestVersions);
+    }
+
+    private Map<String, Long> toVersionMap(List<PatientPatchEntityRepository.PatchVersion> versions) {
+
+        return versions.stream()
                 .collect(Collectors.toMap(
-                        PatientPatchEntityRepository.PatchCount::getPatientId,
-                        PatientPatchEntityRepository.PatchCount::getCount));
+                        PatientPatchEntityRepository.PatchVersion::getPatientId,
+                        PatientPatchEntityRepository.PatchVersion::getVersion));
     }
 
     @Transactional(readOnly = true)
@@ -506,6 +1087,51 @@ public class PatientService {
         return patientPatchEntityRepository.findSnapshotPatches(pageable, patientId, snapshotId);
     }
 
+    @Transactional(readOnly = true)
+    public CursorPage<Version<PatientEntity>> searchAsOfDateTime(String query, Pageable pageable,
+                                                                 List<ApiFilter> filters, LocalDateTime dateTime) {
+
+        return searchAsOfDateTime(query, pageable, filters, dateTime, null);
+    }
+
+    // search and filters evaluated against patient_history in the database, pages are numbered only
+    @Transactional(readOnly = true)
+    public CursorPage<Version<PatientEntity>> searchAsOfDateTime(String query, Pageable pageable,
+                                                                 List<ApiFilter> filters, LocalDateTime dateTime,
+                                                                 UUID snapshotId) {
+
+        PatientSnapshotEntity snapshot = null;
+        PatientHistoryEntitySpecification specification;
+        if (snapshotId != null) {
+            snapshot = patientSnapshotEntityRepository.findById(snapshotId)
+                    .orElseThrow(() -> new SnapshotNotFoundException(snapshotId));
+            specification = new PatientHistoryEntitySpecification(
+                    query, filters, pageable, dateTime, snapshotId, snapshot.getAsOf());
+        } else {
+            specification = new PatientHistoryEntitySpecification(query, filters, pageable, dateTime);
+        }
+
+        // sorting is handled by the specification, create a dummy w/ just page info to send to repository
+        PageRequest pageRequest = PageRequest.of(pageable.getPageNumber(), pageable.getPageSize());
+
+        Page<PatientHistoryEntity> patientHistoryEntities =
+                patientHistoryEntityRepository.findAll(specification, pageRequest);
+        List<UUID> patientEntityIds = patientHistoryEntities.map(PatientHistoryEntity::getPatientId).getContent();
+        Map<String, Long> latestVersions = snapshot != null ?
+                getLatestVersions(patientEntityIds, snapshot) : getLatestVersions(patientEntityIds);
+
+        List<Version<PatientEntity>> patientEntityVersions = patientHistoryEntities.map(patientHistoryEntity -> {
+            PatientEntity patientEntity = new PatientEntity(patientHistoryEntity.getPatient());
+            patientEntity.setId(patientHistoryEntity.getPatientId());
+            return new Version<>(patientEntity,
+                    patientHistoryEntity.getVersion(),
+                    latestVersions.get(patientEntity.getId().toString()),
+                    dateTime);
+        }).getContent();
+
+        return new CursorPage<>(patientEntityVersions, pageable, patientHistoryEntities.getTotalElements(), null);
+    }
+
     @Transactional(readOnly = true)
     public Page<LatestVersion<PatientEntity>> search(String query, Pageable pageable, List<ApiFilter> filters) {
 
@@ -540,12 +1166,15 @@ public class PatientService {
 
         patientEntity.setPatient(patchedPatient);
         try {
-            patientEntity.addPatch(new PatientPatchEntity(objectMapper.writeValueAsString(updatePatch)));
+            PatientPatchEntity patientPatchEntity =
+                    new PatientPatchEntity(objectMapper.writeValueAsString(updatePatch));
+            patientPatchEntity.setInversePatch(inversePatch(patchedPatient, existingPatientJson));
+            patientEntity.addPatch(patientPatchEntity);
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
 
-        return new LatestVersion<>(patientEntityRepository.save(patientEntity), getLatestVersion(patientId));
+        return save(patientEntity);
     }
 
     public Snapshot<PatientEntity> update(UUID patientId, Patient patient, UUID snapshotId) {
@@ -553,6 +1182,11 @@ public class PatientService {
         PatientSnapshotEntity snapshot = patientSnapshotEntityRepository.findById(snapshotId)
                 .orElseThrow(() -> new SnapshotNotFoundException(snapshotId));
 
+        // the snapshot's next version is read from its patches, the patient row holds concurrent updates off until
+        // this one has taken it
+        patientEntityRepository.findAnyByIdWithLock(patientId)
+                .orElseThrow(() -> new PatientNotFoundException(patientId));
+
         Snapshot<PatientEntity> patientSnapshot = getSnapshot(patientId, snapshotId);
 
         JsonNode existingPatientJson = objectMapper.valueToTree(patientSnapshot.getEntity().getPatient());
@@ -564,12 +1198,17 @@ public class PatientService {
         }
 
         try {
-            patientPatchEntityRepository.save(new PatientPatchEntity(
+            PatientPatchEntity patientPatchEntity = new PatientPatchEntity(
                     objectMapper.writeValueAsString(updatePatch),
                     patientSnapshot.getEntity(),
-                    snapshot));
+                    snapshot);
+            patientPatchEntity.setVersion(patientSnapshot.getLatestVersion() + 1);
+            patientPatchEntityRepository.saveAndFlush(patientPatchEntity);
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
+        } catch (DataIntegrityViolationException e) {
+            // the version was taken anyway (a write that didn't go through the lock)
+            throw new PatientVersionConflictException(patientId, Long.toString(patientSnapshot.getLatestVersion()));
         }
 
         JsonNode patchedPatientJson = JsonPatch.apply(updatePatch, existingPatientJson);
@@ -599,12 +1238,467 @@ public class PatientService {
 
         patientEntity.setPatient(patchedPatient);
         try {
-            patientEntity.addPatch(new PatientPatchEntity(objectMapper.writeValueAsString(patientPatch)));
+            PatientPatchEntity patientPatchEntity =
+                    new PatientPatchEntity(objectMapper.writeValueAsString(patientPatch));
+            patientPatchEntity.setInversePatch(inversePatch(patchedPatient, patientJson));
+            patientEntity.addPatch(patientPatchEntity);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+
+        return save(patientEntity);
+    }
+
+    // update / patch of the version the client read. the diff is worked out against the unlocked row and the row is
+    // only locked for the append, which fails with a conflict if another write got in first
+    public LatestVersion<PatientEntity> updateAtVersion(UUID patientId, Patient patient, long expectedVersion) {
+
+        JsonNode existingPatientJson = readDocument(patientId, expectedVersion);
+        JsonNode updatedPatientJson = objectMapper.valueToTree(patient);
+        JsonNode updatePatch = JsonDiff.asJson(existingPatientJson, updatedPatientJson);
+
+        if (updatePatch.isEmpty()) {
+            return get(patientId);
+        }
+
+        JsonNode patchedPatientJson = JsonPatch.apply(updatePatch, existingPatientJson);
+        Patient patchedPatient = objectMapper.convertValue(patchedPatientJson, Patient.class);
+
+        PatientPatchEntity patientPatchEntity;
+        try {
+            patientPatchEntity = new PatientPatchEntity(objectMapper.writeValueAsString(updatePatch));
+            patientPatchEntity.setInversePatch(inversePatch(patchedPatient, existingPatientJson));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+
+        return append(patientId, expectedVersion, patchedPatient, patientPatchEntity);
+    }
+
+    public LatestVersion<PatientEntity> patchAtVersion(UUID patientId, JsonNode patientPatch, long expectedVersion) {
+
+        JsonNode patientJson = readDocument(patientId, expectedVersion);
+        JsonNode patchedPatientJson = JsonPatch.apply(patientPatch, patientJson);
+
+        if (patchedPatientJson.equals(patientJson)) {
+            return get(patientId);
+        }
+
+        Patient patchedPatient = objectMapper.convertValue(patchedPatientJson, Patient.class);
+
+        PatientPatchEntity patientPatchEntity;
+        try {
+            patientPatchEntity = new PatientPatchEntity(objectMapper.writeValueAsString(patientPatch));
+            patientPatchEntity.setInversePatch(inversePatch(patchedPatient, patientJson));
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
 
-        return new LatestVersion<>(patientEntityRepository.save(patientEntity), getLatestVersion(patientId));
+        return append(patientId, expectedVersion, patchedPatient, patientPatchEntity);
+    }
+
+    // the current document, without a lock, as long as it's still at the version
+    private JsonNode readDocument(UUID patientId, long expectedVersion) {
+
+        PatientEntityRepository.PatientDocument document = patientEntityRepository.findDocument(patientId)
+                .orElseThrow(() -> new PatientNotFoundException(patientId));
+        if (document.getVersion() != expectedVersion) {
+            throw new PatientVersionConflictException(patientId, Long.toString(expectedVersion));
+        }
+
+        try {
+            return objectMapper.readTree(document.getPatient());
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private LatestVersion<PatientEntity> append(UUID patientId, long expectedVersion, Patient patient,
+                                                PatientPatchEntity patientPatchEntity) {
+
+        PatientEntity patientEntity = patientEntityRepository.findByIdAndVersionWithLock(patientId, expectedVersion)
+                .orElseThrow(() -> new PatientVersionConflictException(patientId, Long.toString(expectedVersion)));
+
+        patientEntity.setPatient(patient);
+        patientEntity.addPatch(patientPatchEntity);
+
+        return save(patientEntity);
+    }
+
+    // back to an earlier version as one new patch, folded from the inverse patches since that version. everything is
+    // worked out against the unlocked row, the lock is only taken for the append and the work is redone (under the
+    // lock by then) if another write got in first
+    public LatestVersion<PatientEntity> revert(UUID patientId, long version) {
+
+        while (true) {
+            PatientEntityRepository.PatientDocument document = patientEntityRepository.findDocument(patientId)
+                    .orElseThrow(() -> new PatientNotFoundException(patientId));
+            long latestVersion = document.getVersion();
+            long targetVersion = Math.max(1, Math.min(version, latestVersion));
+
+            JsonNode patientJson;
+            try {
+                patientJson = objectMapper.readTree(document.getPatient());
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException(e);
+            }
+
+            // the target version is only replayed when a patch on the way back has no inverse
+            JsonNode revertPatch = composeDiff(patientId, latestVersion, targetVersion);
+            Patient revertedPatient = objectMapper.convertValue(revertPatch != null ?
+                    JsonPatch.apply(revertPatch, patientJson) : versionJson(patientId, targetVersion), Patient.class);
+
+            // the folded patch can rewrite values it leaves unchanged, store the plain diff like any other update
+            JsonNode patch = JsonDiff.asJson(patientJson, objectMapper.valueToTree(revertedPatient));
+
+            PatientPatchEntity patientPatchEntity;
+            try {
+                patientPatchEntity = new PatientPatchEntity(objectMapper.writeValueAsString(patch));
+                patientPatchEntity.setInversePatch(inversePatch(revertedPatient, patientJson));
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException(e);
+            }
+
+            PatientEntity patientEntity = patientEntityRepository.findByIdWithLock(patientId)
+                    .orElseThrow(() -> new PatientNotFoundException(patientId));
+            if (patientEntity.getVersion() != latestVersion) {
+                continue;
+            }
+
+            if (patch.isEmpty()) {
+                return new LatestVersion<>(patientEntity, latestVersion);
+            }
+
+            patientEntity.setPatient(revertedPatient);
+            patientEntity.addPatch(patientPatchEntity);
+
+            return save(patientEntity);
+        }
+    }
+
+    // the given patients, the ones matching the query / filters or else every patient changed since the time, back to
+    // their state as of it. patients go rollbackChunkSize at a time: a chunk's documents and inverse patches are read
+    // in one query each and its revert patches composed without any lock, then the chunk's rows are locked and the
+    // patches appended in one flush and committed. a patient written to in between is reverted again under the lock
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void rollback(LocalDateTime dateTime, Collection<UUID> patientIds, String query, List<ApiFilter> filters,
+                         Consumer<RollbackProgress> consumer) {
+
+        List<UUID> selectedPatientIds;
+        if (patientIds != null && !patientIds.isEmpty()) {
+            selectedPatientIds = new ArrayList<>(new TreeSet<>(patientIds));
+        } else if (StringUtils.hasText(query) || (filters != null && !filters.isEmpty())) {
+            selectedPatientIds = patientEntityRepository.findIds(
+                    new PatientEntitySpecification(query, filters, Pageable.unpaged()));
+        } else {
+            selectedPatientIds = patientPatchEntityRepository.findPatientIdsChangedAfter(dateTime).stream()
+                    .map(UUID::fromString)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        RollbackProgress progress = new RollbackProgress(dateTime, selectedPatientIds.size());
+        for (List<UUID> chunk : Iterables.partition(selectedPatientIds, rollbackChunkSize)) {
+            Map<UUID, RollbackPatch> rollbackPatches = composeRollbackPatches(chunk, dateTime);
+
+            int reverted = transactionTemplate.execute(status -> appendRollbackPatches(rollbackPatches));
+
+            progress.setProcessed(progress.getProcessed() + chunk.size());
+            progress.setReverted(progress.getReverted() + reverted);
+            progress.setSkipped(progress.getSkipped() + chunk.size() - reverted);
+            consumer.accept(progress);
+        }
+    }
+
+    private Map<UUID, RollbackPatch> composeRollbackPatches(List<UUID> patientIds, LocalDateTime dateTime) {
+
+        Map<UUID, List<PatientPatchEntityRepository.InversePatch>> inversePatchesByPatient = new HashMap<>();
+        for (PatientPatchEntityRepository.InversePatch inversePatch :
+                patientPatchEntityRepository.findInversePatchesAfter(patientIds, dateTime)) {
+            inversePatchesByPatient.computeIfAbsent(UUID.fromString(inversePatch.getPatientId()),
+                    id -> new ArrayList<>()).add(inversePatch);
+        }
+
+        List<PatientEntityRepository.PatientIdDocument> documents = new ArrayList<>();
+        List<VersionRequest> versionRequests = new ArrayList<>();
+        for (PatientEntityRepository.PatientIdDocument document :
+                patientEntityRepository.findDocuments(inversePatchesByPatient.keySet())) {
+            UUID patientId = UUID.fromString(document.getId());
+            List<PatientPatchEntityRepository.InversePatch> inversePatches = inversePatchesByPatient.get(patientId);
+
+            // created after the time, there's nothing to go back to
+            long targetVersion = inversePatches.get(inversePatches.size() - 1).getVersion() - 1;
+            if (targetVersion < 1) {
+                continue;
+            }
+
+            documents.add(document);
+            versionRequests.add(new VersionRequest(patientId, null, targetVersion));
+        }
+
+        // patients whose inverse patches are all there go back through them folded, the rest (a patch on the way has
+        // no inverse) have their target versions replayed, in one query for the chunk
+        Map<UUID, JsonNode> revertPatches = new HashMap<>();
+        List<VersionRequest> replayRequests = new ArrayList<>();
+        for (int i = 0; i < documents.size(); i++) {
+            PatientEntityRepository.PatientIdDocument document = documents.get(i);
+            VersionRequest versionRequest = versionRequests.get(i);
+            List<PatientPatchEntityRepository.InversePatch> inversePatches =
+                    inversePatchesByPatient.get(versionRequest.getPatientId());
+
+            if (inversePatches.get(0).getVersion().equals(document.getVersion())
+                    && inversePatches.size() == document.getVersion() - versionRequest.getVersion()
+                    && inversePatches.stream().allMatch(inversePatch -> inversePatch.getInversePatch() != null)) {
+                List<JsonNode> patches = new ArrayList<>();
+                try {
+                    for (PatientPatchEntityRepository.InversePatch inversePatch : inversePatches) {
+                        patches.add(objectMapper.readTree(inversePatch.getInversePatch()));
+                    }
+                } catch (JsonProcessingException e) {
+                    throw new RuntimeException(e);
+                }
+                revertPatches.put(versionRequest.getPatientId(), jsonPatchComposer.compose(patches));
+            } else {
+                replayRequests.add(versionRequest);
+            }
+        }
+
+        Map<UUID, Patient> replayed = new HashMap<>();
+        for (Version<PatientEntity> target : getAsOf(replayRequests)) {
+            replayed.put(target.getEntity().getId(), target.getEntity().getPatient());
+        }
+
+        Map<UUID, RollbackPatch> rollbackPatches = new LinkedHashMap<>();
+        for (int i = 0; i < documents.size(); i++) {
+            PatientEntityRepository.PatientIdDocument document = documents.get(i);
+            UUID patientId = versionRequests.get(i).getPatientId();
+            long targetVersion = versionRequests.get(i).getVersion();
+
+            try {
+                JsonNode patientJson = objectMapper.readTree(document.getPatient());
+
+                JsonNode revertPatch = revertPatches.get(patientId);
+                Patient revertedPatient = revertPatch != null ?
+                        objectMapper.convertValue(JsonPatch.apply(revertPatch, patientJson), Patient.class) :
+                        replayed.get(patientId);
+                JsonNode patch = JsonDiff.asJson(patientJson, objectMapper.valueToTree(revertedPatient));
+                if (patch.isEmpty()) {
+                    continue;
+                }
+
+                rollbackPatches.put(patientId, new RollbackPatch(document.getVersion(), targetVersion, revertedPatient,
+                        objectMapper.writeValueAsString(patch), inversePatch(revertedPatient, patientJson)));
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return rollbackPatches;
+    }
+
+    // the chunk's patches are all added before anything is flushed so their inserts go out as one batch
+    private int appendRollbackPatches(Map<UUID, RollbackPatch> rollbackPatches) {
+
+        if (rollbackPatches.isEmpty()) {
+            return 0;
+        }
+
+        int reverted = 0;
+        List<PatientEntity> appended = new ArrayList<>();
+        List<PatientEntity> moved = new ArrayList<>();
+        for (PatientEntity patientEntity : patientEntityRepository.findAllByIdWithLock(rollbackPatches.keySet())) {
+            RollbackPatch rollbackPatch = rollbackPatches.get(patientEntity.getId());
+            if (patientEntity.getVersion() != rollbackPatch.latestVersion) {
+                moved.add(patientEntity);
+                continue;
+            }
+
+            PatientPatchEntity patientPatchEntity = new PatientPatchEntity(rollbackPatch.patch);
+            patientPatchEntity.setInversePatch(rollbackPatch.inversePatch);
+            patientEntity.setPatient(rollbackPatch.patient);
+            patientEntity.addPatch(patientPatchEntity);
+            appended.add(patientEntity);
+        }
+
+        patientEntityRepository.saveAllAndFlush(appended);
+        for (PatientEntity patientEntity : appended) {
+            appended(patientEntity, patientEntity.getVersion());
+            reverted++;
+        }
+
+        // written to since the patches were composed, these go the single patient way once the batch is out. a revert
+        // that finds nothing left to undo doesn't count
+        for (PatientEntity patientEntity : moved) {
+            long latestVersion = patientEntity.getVersion();
+            if (revert(patientEntity.getId(), rollbackPatches.get(patientEntity.getId()).targetVersion)
+                    .getVersion() > latestVersion) {
+                reverted++;
+            }
+        }
+
+        return reverted;
+    }
+
+    private static class RollbackPatch {
+
+        private final long latestVersion;
+        private final long targetVersion;
+        private final Patient patient;
+        private final String patch;
+        private final String inversePatch;
+
+        private RollbackPatch(long latestVersion, long targetVersion, Patient patient, String patch,
+                              String inversePatch) {
+
+            this.latestVersion = latestVersion;
+            this.targetVersion = targetVersion;
+            this.patient = patient;
+            this.patch = patch;
+            this.inversePatch = inversePatch;
+        }
+    }
+
+    private LatestVersion<PatientEntity> save(PatientEntity patientEntity) {
+
+        PatientEntity savedPatientEntity = patientEntityRepository.save(patientEntity);
+        long latestVersion = savedPatientEntity.getVersion();
+
+        appended(savedPatientEntity, latestVersion);
+
+        return new LatestVersion<>(savedPatientEntity, latestVersion);
+    }
+
+    // checkpoint and blame for the patch just added to the patient
+    private void appended(PatientEntity patientEntity, long latestVersion) {
+
+        List<PatientPatchEntity> patches = patientEntity.getPatches();
+        PatientPatchEntity patch = patches.get(patches.size() - 1);
+        patientCheckpointService.checkpoint(patientEntity, patch, latestVersion);
+
+        // a patient without blame yet gets it built from all of its patches on the first read
+        if (patientEntity.getBlame() != null) {
+            try {
+                patientBlame.record(patientEntity.getBlame(), objectMapper.readTree(patch.getPatch()),
+                        latestVersion, patch.getCreatedAt());
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // which version last wrote each field of the current patient (or just the one at path) and when
+    public Map<String, FieldBlame> getBlame(UUID patientId, String path) {
+
+        PatientEntity patientEntity = patientEntityRepository.findById(patientId)
+                .filter(entity -> entity.getSnapshot() == null)
+                .orElseThrow(() -> new PatientNotFoundException(patientId));
+
+        SortedMap<String, FieldBlame> fieldBlames = patientEntity.getBlame();
+        if (fieldBlames == null) {
+            fieldBlames = buildBlame(patientId, patientEntity.getVersion());
+        }
+
+        List<String> paths = new ArrayList<>();
+        if (path != null) {
+            if (!path.isEmpty() && !path.startsWith("/")) {
+                throw new InvalidJsonPointerException(path);
+            }
+            paths.add(path);
+        } else {
+            collectPaths(objectMapper.valueToTree(patientEntity.getPatient()), "", paths);
+        }
+
+        // nothing recorded at or around a path means it is as the patient was created
+        FieldBlame created = null;
+        Map<String, FieldBlame> blame = new LinkedHashMap<>();
+        for (String fieldPath : paths) {
+            FieldBlame fieldBlame = patientBlame.resolve(fieldBlames, fieldPath);
+            if (fieldBlame == null) {
+                if (created == null) {
+                    PatientPatchEntity createPatch =
+                            patientPatchEntityRepository.findPatchesToVersion(patientId, 1).get(0);
+                    created = new FieldBlame(1, createPatch.getCreatedAt());
+                }
+                fieldBlame = created;
+            }
+            blame.put(fieldPath, fieldBlame);
+        }
+
+        return blame;
+    }
+
+    private SortedMap<String, FieldBlame> buildBlame(UUID patientId, long version) {
+
+        SortedMap<String, FieldBlame> blame = new TreeMap<>();
+        try {
+            for (PatientPatchEntity patch : patientPatchEntityRepository.findPatchesToVersion(patientId, 1, version)) {
+                patientBlame.record(blame, objectMapper.readTree(patch.getPatch()), patch.getVersion(),
+                        patch.getCreatedAt());
+            }
+            patientEntityRepository.updateBlame(patientId, version, objectMapper.writeValueAsString(blame));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+
+        return blame;
+    }
+
+    // json pointers of the leaves (and empty containers) of a document
+    private void collectPaths(JsonNode node, String path, List<String> paths) {
+
+        if (node.isObject() && node.size() > 0) {
+            node.fields().forEachRemaining(field -> collectPaths(field.getValue(),
+                    path + "/" + field.getKey().replace("~", "~0").replace("/", "~1"), paths));
+        } else if (node.isArray() && node.size() > 0) {
+            for (int i = 0; i < node.size(); i++) {
+                collectPaths(node.get(i), path + "/" + i, paths);
+            }
+        } else {
+            paths.add(path);
+        }
+    }
+
+    // diff from the patient as it will be materialized back to the previous document
+    private String inversePatch(Patient patchedPatient, JsonNode previousPatientJson) throws JsonProcessingException {
+
+        JsonNode patchedPatientJson = objectMapper.valueToTree(patchedPatient);
+
+        return objectMapper.writeValueAsString(JsonDiff.asJson(patchedPatientJson, previousPatientJson));
+    }
+
+    private Patient readPatient(String document) {
+
+        try {
+            return objectMapper.readValue(document, Patient.class);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Patient replay(List<? extends PatientPatchEntityRepository.PatientIdPatchTuple> patches) {
+
+        Patient patient = new Patient();
+        for (PatientPatchEntityRepository.PatientIdPatchTuple patch : patches) {
+            patientPatchCompiler.compile(UUID.fromString(patch.getId()), patch.getPatch()).apply(patient);
+        }
+
+        return patient;
+    }
+
+    private Patient replay(PatientCheckpointEntity checkpoint, List<PatientPatchEntity> patches) {
+
+        Patient patient;
+        if (checkpoint != null) {
+            patient = patientPatchCompiler.copy(checkpoint.getDocument());
+        } else {
+            patient = new Patient();
+        }
+
+        for (PatientPatchEntity patch : patches) {
+            patientPatchCompiler.compile(patch.getId(), patch.getPatch()).apply(patient);
+        }
+
+        return patient;
     }
 
     @Transactional(readOnly = true)
@@ -622,6 +1716,16 @@ public class PatientService {
     @Transactional(readOnly = true)
     private String diff(UUID patientId, UUID otherPatientId, LocalDateTime dateTime, Long version, Long otherVersion) {
 
+        if (otherPatientId.equals(patientId)) {
+            if (dateTime == null) {
+                return squash(patientId, Math.max(1, version), Math.max(1, otherVersion)).getPatch();
+            }
+            JsonNode composed = composeDiff(patientId, dateTime);
+            if (composed != null) {
+                return writeDiff(composed);
+            }
+        }
+
         PatientEntity patientEntity;
         PatientEntity otherPatientEntity;
         if (dateTime != null) {
@@ -638,7 +1742,95 @@ public class PatientService {
 
         JsonNode patientJson = objectMapper.valueToTree(patientEntity.getPatient());
         JsonNode otherPatientJson = objectMapper.valueToTree(otherPatientEntity.getPatient());
-        JsonNode diff = JsonDiff.asJson(patientJson, otherPatientJson);
+
+        return writeDiff(JsonDiff.asJson(patientJson, otherPatientJson));
+    }
+
+    // the latest version of a patient against itself as of a date time, null when there is no such version
+    private JsonNode composeDiff(UUID patientId, LocalDateTime dateTime) {
+
+        Long version = patientPatchEntityRepository.findVersionAsOfDateTime(patientId, dateTime);
+        if (version == null) {
+            return null;
+        }
+
+        return composeDiff(patientId, getLatestVersion(patientId), version);
+    }
+
+    // fold the patches between two versions of a patient instead of materializing both, going back through the
+    // inverse patches when the other version is the earlier one. null when a patch on the way has no inverse
+    private JsonNode composeDiff(UUID patientId, long version, long otherVersion) {
+
+        List<JsonNode> patches = new ArrayList<>();
+        try {
+            if (version < otherVersion) {
+                for (PatientPatchEntity patch :
+                        patientPatchEntityRepository.findPatchesToVersion(patientId, version, otherVersion)) {
+                    patches.add(objectMapper.readTree(patch.getPatch()));
+                }
+            } else if (version > otherVersion) {
+                for (PatientPatchEntity patch :
+                        patientPatchEntityRepository.findPatchesFromVersion(patientId, otherVersion + 1, version)) {
+                    if (patch.getInversePatch() == null) {
+                        return null;
+                    }
+                    patches.add(objectMapper.readTree(patch.getInversePatch()));
+                }
+            }
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (patches.size() != Math.abs(otherVersion - version)) {
+            return null;
+        }
+
+        return jsonPatchComposer.compose(patches);
+    }
+
+    @Transactional(readOnly = true)
+    public SquashedPatch squash(UUID patientId, LocalDateTime asOf, Long toVersion) {
+
+        Long fromVersion = patientPatchEntityRepository.findVersionAsOfDateTime(patientId, asOf);
+
+        return squash(patientId, fromVersion != null ? fromVersion : 0, toVersion);
+    }
+
+    // one patch from a version to another (latest when null) for clients catching up, version 0 is the empty document
+    @Transactional(readOnly = true)
+    public SquashedPatch squash(UUID patientId, long fromVersion, Long toVersion) {
+
+        long latestVersion = getLatestVersion(patientId);
+        if (latestVersion == 0) {
+            throw new PatientNotFoundException(patientId);
+        }
+
+        fromVersion = Math.max(0, Math.min(fromVersion, latestVersion));
+        long targetVersion = toVersion != null ? Math.max(0, Math.min(toVersion, latestVersion)) : latestVersion;
+
+        String patch = patientSquashCache.get(patientId, fromVersion, targetVersion);
+        if (patch == null) {
+            JsonNode composed = composeDiff(patientId, fromVersion, targetVersion);
+            if (composed == null) {
+                composed = JsonDiff.asJson(versionJson(patientId, fromVersion), versionJson(patientId, targetVersion));
+            }
+            patch = writeDiff(composed);
+            patientSquashCache.put(patientId, fromVersion, targetVersion, patch);
+        }
+
+        return new SquashedPatch(patientId, fromVersion, targetVersion, patch);
+    }
+
+    private JsonNode versionJson(UUID patientId, long version) {
+
+        if (version == 0) {
+            return objectMapper.createObjectNode();
+        }
+
+        return objectMapper.valueToTree(getAsOfVersion(patientId, version).getEntity().getPatient());
+    }
+
+    private String writeDiff(JsonNode diff) {
 
         try {
             return objectMapper.writeValueAsString(diff);
@@ -650,20 +1842,27 @@ public class PatientService {
     public void delete(UUID patientId) {
 
         patientEntityRepository.deleteById(patientId);
+        patientVersionCache.invalidatePatient(patientId);
+        patientSquashCache.invalidatePatient(patientId);
     }
 
     public void deleteSnapshot(UUID snapshotId) {
 
         patientSnapshotEntityRepository.deleteById(snapshotId);
+        patientVersionCache.invalidateSnapshot(snapshotId);
     }
 
     public void deleteAll() {
 
         patientEntityRepository.deleteAllInBatch();
+        patientVersionCache.invalidateAll();
+        patientSquashCache.invalidateAll();
     }
 
     public void deleteAllSnapshots() {
 
         patientSnapshotEntityRepository.deleteAllInBatch();
+        patientVersionCache.invalidateAll();
+        patientSquashCache.invalidateAll();
     }
 }
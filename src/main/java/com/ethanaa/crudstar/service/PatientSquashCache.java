@@ -0,0 +1,83 @@
+package com.ethanaa.crudstar.service;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+/**
+ * Squashed patches by (patient, from version, to version), serialized. The patches between two versions never change,
+ * so like {@link PatientVersionCache} entries only go away when the cache is full or the patient is deleted.
+ */
+@Component
+public class PatientSquashCache {
+
+    private Cache<Key, String> cache;
+
+    @Autowired
+    public PatientSquashCache(MeterRegistry meterRegistry,
+                              @Value("${crudstar.squash-cache.max-bytes:16777216}") long maxBytes) {
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, String patch) -> patch.length())
+                .recordStats()
+                .build();
+
+        GuavaCacheMetrics.monitor(meterRegistry, cache, "patient.squashes");
+    }
+
+    public String get(UUID patientId, long fromVersion, long toVersion) {
+
+        return cache.getIfPresent(new Key(patientId, fromVersion, toVersion));
+    }
+
+    public void put(UUID patientId, long fromVersion, long toVersion, String patch) {
+
+        cache.put(new Key(patientId, fromVersion, toVersion), patch);
+    }
+
+    public void invalidatePatient(UUID patientId) {
+
+        cache.asMap().keySet().removeIf(key -> key.patientId.equals(patientId));
+    }
+
+    public void invalidateAll() {
+
+        cache.invalidateAll();
+    }
+
+    private static class Key {
+
+        private final UUID patientId;
+        private final long fromVersion;
+        private final long toVersion;
+
+        private Key(UUID patientId, long fromVersion, long toVersion) {
+            this.patientId = patientId;
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return fromVersion == key.fromVersion
+                    && toVersion == key.toVersion
+                    && Objects.equal(patientId, key.patientId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(patientId, fromVersion, toVersion);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.ethanaa.crudstar.service;
+
+import com.ethanaa.crudstar.model.persist.patient.Patient;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Reconstructed patient documents by (patient, snapshot, version). A version never changes once written, so entries
+ * only go away when the cache is full or the patient / snapshot is deleted. Cached documents are shared between
+ * callers and must not be mutated.
+ */
+@Component
+public class PatientVersionCache {
+
+    private ObjectMapper objectMapper;
+
+    private Cache<Key, CachedVersion> cache;
+
+    @Autowired
+    public PatientVersionCache(ObjectMapper objectMapper,
+                               MeterRegistry meterRegistry,
+                               @Value("${crudstar.version-cache.max-bytes:67108864}") long maxBytes) {
+
+        this.objectMapper = objectMapper;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, CachedVersion cachedVersion) -> cachedVersion.getWeight())
+                .recordStats()
+                .build();
+
+        GuavaCacheMetrics.monitor(meterRegistry, cache, "patient.versions");
+    }
+
+    public CachedVersion get(UUID patientId, UUID snapshotId, long version) {
+
+        return cache.getIfPresent(new Key(patientId, snapshotId, version));
+    }
+
+    public CachedVersion put(UUID patientId, UUID snapshotId, long version, Patient patient, LocalDateTime createdAt) {
+
+        CachedVersion cachedVersion = new CachedVersion(patient, createdAt, weigh(patient));
+        cache.put(new Key(patientId, snapshotId, version), cachedVersion);
+
+        return cachedVersion;
+    }
+
+    public void invalidatePatient(UUID patientId) {
+
+        cache.asMap().keySet().removeIf(key -> key.patientId.equals(patientId));
+    }
+
+    public void invalidateSnapshot(UUID snapshotId) {
+
+        cache.asMap().keySet().removeIf(key -> snapshotId.equals(key.snapshotId));
+    }
+
+    public void invalidateAll() {
+
+        cache.invalidateAll();
+    }
+
+    // serialized size of the document, close enough to its footprint for bounding the cache
+    private int weigh(Patient patient) {
+
+        CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+        try {
+            objectMapper.writeValue(out, patient);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return (int) Math.min(out.getCount(), Integer.MAX_VALUE);
+    }
+
+    public static class CachedVersion {
+
+        private final Patient patient;
+        private final LocalDateTime createdAt;
+        private final int weight;
+
+        private CachedVersion(Patient patient, LocalDateTime createdAt, int weight) {
+            this.patient = patient;
+            this.createdAt = createdAt;
+            this.weight = weight;
+        }
+
+        public Patient getPatient() {
+            return patient;
+        }
+
+        // created_at of the patch that produced this version
+        public LocalDateTime getCreatedAt() {
+            return createdAt;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    private static class Key {
+
+        private final UUID patientId;
+        private final UUID snapshotId;
+        private final long version;
+
+        private Key(UUID patientId, UUID snapshotId, long version) {
+            this.patientId = patientId;
+            this.snapshotId = snapshotId;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return version == key.version
+                    && Objects.equal(patientId, key.patientId)
+                    && Objects.equal(snapshotId, key.snapshotId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(patientId, snapshotId, version);
+        }
+    }
+}
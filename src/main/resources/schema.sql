@@ -0,0 +1,241 @@
+-- runs after hibernate has updated the schema (spring.jpa.defer-datasource-initialization), must be idempotent
+
+-- number patches written before patient_patch_entity.version existed, a snapshot continues the mainline as of the snapshot
+UPDATE patient_patch_entity ppe
+SET version = numbered.version
+FROM (
+    SELECT p.id, ROW_NUMBER() OVER (PARTITION BY p.patient_id ORDER BY p.created_at, p.id) AS version
+    FROM patient_patch_entity p
+    WHERE p.snapshot_id IS NULL
+      AND p.patient_id IN (SELECT patient_id FROM patient_patch_entity WHERE version IS NULL AND snapshot_id IS NULL)
+) numbered
+WHERE ppe.id = numbered.id
+  AND ppe.version IS NULL;
+
+UPDATE patient_patch_entity ppe
+SET version = numbered.version
+FROM (
+    SELECT p.id,
+        (SELECT COUNT(m.id)
+         FROM patient_patch_entity m
+         WHERE m.patient_id = p.patient_id
+           AND m.snapshot_id IS NULL
+           AND m.created_at <= pse.as_of)
+        + ROW_NUMBER() OVER (PARTITION BY p.patient_id, p.snapshot_id ORDER BY p.created_at, p.id) AS version
+    FROM patient_patch_entity p
+        JOIN patient_snapshot_entity pse ON pse.id = p.snapshot_id
+    WHERE (p.patient_id, p.snapshot_id) IN (
+        SELECT patient_id, snapshot_id FROM patient_patch_entity WHERE version IS NULL AND snapshot_id IS NOT NULL)
+) numbered
+WHERE ppe.id = numbered.id
+  AND ppe.version IS NULL;
+
+UPDATE patient_entity pe
+SET version = (
+    SELECT MAX(ppe.version)
+    FROM patient_patch_entity ppe
+    WHERE ppe.patient_id = pe.id
+      AND ppe.snapshot_id IS NULL)
+WHERE pe.version IS NULL
+  AND pe.snapshot_id IS NULL;
+
+-- the (patient_id, snapshot_id, version) index treats every mainline row as distinct since snapshot_id is null
+CREATE UNIQUE INDEX IF NOT EXISTS patch_patient_mainline_version_index
+    ON patient_patch_entity (patient_id, version)
+    WHERE snapshot_id IS NULL;
+
+-- one row per patient (and per patient created in a snapshot), the as-of listings count patients with it
+CREATE INDEX IF NOT EXISTS patch_first_version_index
+    ON patient_patch_entity (snapshot_id, created_at)
+    WHERE version = 1;
+
+-- RFC 6902 replay inside the database, used by the paged as-of listings when crudstar.replay is database.
+-- jsonb_patch_agg(patch ORDER BY version) folds a patient's patches into its document the way PatientService does
+-- in the jvm. the script is sent to the driver in one piece (spring.sql.init.separator) so it can split the
+-- dollar quoted bodies itself
+CREATE OR REPLACE FUNCTION jsonb_patch_path(pointer text) RETURNS text[] AS $$
+    SELECT CASE WHEN pointer = '' THEN '{}'::text[] ELSE ARRAY(
+        SELECT replace(replace(part, '~1', '/'), '~0', '~')
+        FROM unnest(regexp_split_to_array(substr(pointer, 2), '/')) WITH ORDINALITY AS parts(part, ordinal)
+        ORDER BY ordinal)
+    END
+$$ LANGUAGE sql IMMUTABLE STRICT;
+
+CREATE OR REPLACE FUNCTION jsonb_patch_add(doc jsonb, path text[], value jsonb) RETURNS jsonb AS $$
+DECLARE
+    parent jsonb;
+BEGIN
+    IF cardinality(path) = 0 THEN
+        RETURN value;
+    END IF;
+    parent := doc #> path[1:cardinality(path) - 1];
+    IF jsonb_typeof(parent) = 'array' THEN
+        -- inserting at the length of the array appends, same as '-'
+        IF path[cardinality(path)] = '-' THEN
+            path[cardinality(path)] := jsonb_array_length(parent)::text;
+        END IF;
+        RETURN jsonb_insert(doc, path, value);
+    END IF;
+    RETURN jsonb_set(doc, path, value, true);
+END
+$$ LANGUAGE plpgsql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION jsonb_patch(doc jsonb, patch jsonb) RETURNS jsonb AS $$
+DECLARE
+    operation jsonb;
+    path text[];
+    from_path text[];
+    value jsonb;
+BEGIN
+    FOR operation IN SELECT jsonb_array_elements(patch) LOOP
+        path := jsonb_patch_path(operation ->> 'path');
+        value := COALESCE(operation -> 'value', 'null'::jsonb);
+        CASE operation ->> 'op'
+            WHEN 'add' THEN
+                doc := jsonb_patch_add(doc, path, value);
+            WHEN 'remove' THEN
+                doc := doc #- path;
+            WHEN 'replace' THEN
+                doc := CASE WHEN cardinality(path) = 0 THEN value ELSE jsonb_set(doc, path, value, false) END;
+            WHEN 'move' THEN
+                from_path := jsonb_patch_path(operation ->> 'from');
+                value := doc #> from_path;
+                doc := jsonb_patch_add(doc #- from_path, path, value);
+            WHEN 'copy' THEN
+                doc := jsonb_patch_add(doc, path, doc #> jsonb_patch_path(operation ->> 'from'));
+            WHEN 'test' THEN
+                IF (doc #> path) IS DISTINCT FROM value THEN
+                    RAISE EXCEPTION 'test failed for path %', operation ->> 'path';
+                END IF;
+            ELSE
+                RAISE EXCEPTION 'unknown json patch operation %', operation ->> 'op';
+        END CASE;
+    END LOOP;
+    RETURN doc;
+END
+$$ LANGUAGE plpgsql IMMUTABLE STRICT;
+
+CREATE OR REPLACE AGGREGATE jsonb_patch_agg(jsonb) (
+    SFUNC = jsonb_patch,
+    STYPE = jsonb,
+    INITCOND = '{}'
+);
+
+-- every version of every patient with the period it was current for, kept up to date by a trigger on
+-- patient_patch_entity. as-of reads look the document up here when crudstar.replay is history, the patches stay
+-- the audit trail. snapshot rows continue from the mainline document as of the snapshot. every patch insert then
+-- also runs jsonb_patch and writes a full document with its gist, btree and gin entries, so the trigger is only
+-- enabled when crudstar.replay is history or crudstar.history-table is set
+CREATE TABLE IF NOT EXISTS patient_history (
+    patch_id uuid PRIMARY KEY REFERENCES patient_patch_entity (id) ON DELETE CASCADE,
+    patient_id uuid NOT NULL REFERENCES patient_entity (id) ON DELETE CASCADE,
+    snapshot_id uuid REFERENCES patient_snapshot_entity (id) ON DELETE CASCADE,
+    version bigint,
+    valid tsrange NOT NULL,
+    patient jsonb NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS patient_history_valid_index
+    ON patient_history USING gist (valid);
+
+CREATE INDEX IF NOT EXISTS patient_history_patient_snapshot_valid_index
+    ON patient_history (patient_id, snapshot_id, lower(valid));
+
+-- same expression as JsonSearchFunction, for searching the as-of listings
+CREATE INDEX IF NOT EXISTS patient_history_search_index
+    ON patient_history USING gin (jsonb_to_tsvector('English', patient, '["String"]'));
+
+CREATE OR REPLACE FUNCTION patient_history_append() RETURNS trigger AS $$
+DECLARE
+    previous patient_history%ROWTYPE;
+    base jsonb;
+    valid_from timestamp := NEW.created_at;
+BEGIN
+    SELECT * INTO previous
+    FROM patient_history h
+    WHERE h.patient_id = NEW.patient_id
+      AND h.snapshot_id IS NOT DISTINCT FROM NEW.snapshot_id
+      AND upper_inf(h.valid)
+    FOR UPDATE;
+    IF FOUND THEN
+        -- created_at comes from the writer's clock, a skewed one can put the patch before the version it follows.
+        -- that version is closed (empty) where it starts instead of failing the insert
+        valid_from := GREATEST(lower(previous.valid), NEW.created_at);
+        UPDATE patient_history SET valid = tsrange(lower(valid), valid_from) WHERE patch_id = previous.patch_id;
+        base := previous.patient;
+    ELSIF NEW.snapshot_id IS NOT NULL THEN
+        SELECT h.patient INTO base
+        FROM patient_history h
+            JOIN patient_snapshot_entity pse ON pse.id = NEW.snapshot_id
+        WHERE h.patient_id = NEW.patient_id
+          AND h.snapshot_id IS NULL
+          AND h.valid @> pse.as_of;
+    END IF;
+    INSERT INTO patient_history (patch_id, patient_id, snapshot_id, version, valid, patient)
+    VALUES (NEW.id, NEW.patient_id, NEW.snapshot_id, NEW.version, tsrange(valid_from, NULL),
+            jsonb_patch(COALESCE(base, '{}'::jsonb), NEW.patch));
+    RETURN NEW;
+END
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS patient_history_trigger ON patient_patch_entity;
+
+CREATE TRIGGER patient_history_trigger
+    AFTER INSERT ON patient_patch_entity
+    FOR EACH ROW EXECUTE FUNCTION patient_history_append();
+
+-- created disabled, PatientHistoryInitializer enables it (and backfills the table) only when the history is read
+ALTER TABLE patient_patch_entity DISABLE TRIGGER patient_history_trigger;
+
+-- every operation of every stored patch as a row, kept up to date by a trigger on patient_patch_entity, so the
+-- history of one field (or everything under a path) is read from an index instead of parsing the patches
+CREATE TABLE IF NOT EXISTS patient_patch_operation (
+    patch_id uuid NOT NULL REFERENCES patient_patch_entity (id) ON DELETE CASCADE,
+    ordinal int NOT NULL,
+    patient_id uuid NOT NULL REFERENCES patient_entity (id) ON DELETE CASCADE,
+    snapshot_id uuid REFERENCES patient_snapshot_entity (id) ON DELETE CASCADE,
+    version bigint,
+    created_at timestamp NOT NULL,
+    op text NOT NULL,
+    path text NOT NULL,
+    from_path text,
+    value jsonb,
+    PRIMARY KEY (patch_id, ordinal)
+);
+
+-- text_pattern_ops so a path prefix (path LIKE '/medications/%') is a range scan as well
+CREATE INDEX IF NOT EXISTS patch_operation_patient_path_index
+    ON patient_patch_operation (patient_id, path text_pattern_ops, version);
+
+CREATE INDEX IF NOT EXISTS patch_operation_patient_from_path_index
+    ON patient_patch_operation (patient_id, from_path text_pattern_ops, version)
+    WHERE from_path IS NOT NULL;
+
+CREATE OR REPLACE FUNCTION patient_patch_operation_append() RETURNS trigger AS $$
+BEGIN
+    INSERT INTO patient_patch_operation (patch_id, ordinal, patient_id, snapshot_id, version, created_at, op, path,
+                                         from_path, value)
+    SELECT NEW.id, o.ordinal, NEW.patient_id, NEW.snapshot_id, NEW.version, NEW.created_at, o.operation ->> 'op',
+        o.operation ->> 'path', o.operation ->> 'from', o.operation -> 'value'
+    FROM jsonb_array_elements(CASE WHEN jsonb_typeof(NEW.patch) = 'array' THEN NEW.patch ELSE '[]'::jsonb END)
+        WITH ORDINALITY AS o(operation, ordinal);
+    RETURN NEW;
+END
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS patient_patch_operation_trigger ON patient_patch_entity;
+
+CREATE TRIGGER patient_patch_operation_trigger
+    AFTER INSERT ON patient_patch_entity
+    FOR EACH ROW EXECUTE FUNCTION patient_patch_operation_append();
+
+-- operations of patches written before the table existed
+INSERT INTO patient_patch_operation (patch_id, ordinal, patient_id, snapshot_id, version, created_at, op, path,
+                                     from_path, value)
+SELECT p.id, o.ordinal, p.patient_id, p.snapshot_id, p.version, p.created_at, o.operation ->> 'op',
+    o.operation ->> 'path', o.operation ->> 'from', o.operation -> 'value'
+FROM patient_patch_entity p
+    CROSS JOIN LATERAL jsonb_array_elements(CASE WHEN jsonb_typeof(p.patch) = 'array' THEN p.patch ELSE '[]'::jsonb END)
+        WITH ORDINALITY AS o(operation, ordinal)
+WHERE NOT EXISTS (SELECT 1 FROM patient_patch_operation ppo WHERE ppo.patch_id = p.id)
+ON CONFLICT (patch_id, ordinal) DO NOTHING;
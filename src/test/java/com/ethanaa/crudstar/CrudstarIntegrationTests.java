@@ -2,27 +2,45 @@ package com.ethanaa.crudstar;
 
 import com.ethanaa.crudstar.model.api.ApiFilter;
 import com.ethanaa.crudstar.model.api.FilterConstraint;
+import com.ethanaa.crudstar.controller.PatientController;
 import com.ethanaa.crudstar.model.api.PatientModel;
+import com.ethanaa.crudstar.service.PatientGroupCommitter;
+import com.ethanaa.crudstar.service.PatientService;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.*;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
@@ -31,7 +49,8 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
         classes = CrudstarApplication.class)
 @AutoConfigureMockMvc(printOnlyOnFailure = false)
 @TestPropertySource(
-        locations = "classpath:application-integrationtest.yml")
+        locations = "classpath:application-integrationtest.yml",
+        properties = {"crudstar.checkpoint.interval=3", "crudstar.history-table=true"})
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
 @TestClassOrder(ClassOrderer.OrderAnnotation.class)
 public class CrudstarIntegrationTests {
@@ -44,6 +63,12 @@ public class CrudstarIntegrationTests {
     private MockMvc mvc;
     @Autowired
     private ObjectMapper objectMapper;
+    @Autowired
+    private PatientService patientService;
+    @Autowired
+    private PatientController patientController;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
 
     private String existingPatientLink;
     private PatientModel existingPatientModel;
@@ -59,6 +84,27 @@ public class CrudstarIntegrationTests {
     private String nowSnapshotAsOf;
     private String startSnapshotId;
 
+    // the same request answered by replaying patches in the jvm and by the given replay mode
+    private void assertSameAsJvm(PatientService.ReplayMode replayMode,
+                                 MockHttpServletRequestBuilder request) throws Exception {
+
+        try {
+            ReflectionTestUtils.setField(patientService, "replayMode", PatientService.ReplayMode.JVM);
+            String jvmContent = mvc.perform(request)
+                    .andExpect(status().isOk())
+                    .andReturn().getResponse().getContentAsString();
+
+            ReflectionTestUtils.setField(patientService, "replayMode", replayMode);
+            String content = mvc.perform(request)
+                    .andExpect(status().isOk())
+                    .andReturn().getResponse().getContentAsString();
+
+            assertEquals(objectMapper.readTree(jvmContent), objectMapper.readTree(content));
+        } finally {
+            ReflectionTestUtils.setField(patientService, "replayMode", PatientService.ReplayMode.JVM);
+        }
+    }
+
     private static class TestStep {
         public static final int GET_PATIENTS = 1;
         public static final int GET_PATIENT = 2;
@@ -81,8 +127,13 @@ public class CrudstarIntegrationTests {
         public static final int GET_PATIENT_AGAIN = 19;
         public static final int GET_SNAPSHOT_PATIENTS_AGAIN = 20;
         public static final int GET_SNAPSHOT_PATIENT_AGAIN = 21;
-        public static final int DELETE_SNAPSHOT = 22;
-        public static final int DELETE_PATIENT = 23;
+        public static final int REVERT_PATIENT = 22;
+        public static final int ROLLBACK_PATIENTS = 23;
+        public static final int CONDITIONAL_UPDATE = 24;
+        public static final int GROUP_COMMIT = 25;
+        public static final int BULK_INGEST = 26;
+        public static final int DELETE_SNAPSHOT = 27;
+        public static final int DELETE_PATIENT = 28;
 
     }
 
@@ -403,39 +454,55 @@ public class CrudstarIntegrationTests {
 
         @Test
         @Order(3)
-        @DisplayName("Should return a patient as of every version")
+        @DisplayName("Should return a page of a patient's versions without their bodies")
         public void patientVersions() throws Exception {
-            MvcResult result = mvc.perform(get(
-                            CrudstarIntegrationTests.this.newPatientLink + "/version/")
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/version/")
                             .contentType(MediaType.APPLICATION_JSON))
                     .andExpect(status().isOk())
                     .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
-                    .andExpect(jsonPath("$._embedded.patientModelList").exists())
-                    .andExpect(jsonPath("$._embedded.patientModelList[*].id").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("$._embedded.patientModelList.length()").value(3))
-                    .andExpect(jsonPath("$._embedded.patientModelList[*]._links.self.href", hasSize(3)))
-                    .andExpect(jsonPath("$._embedded.patientModelList[0].firstName").value(
+                    .andExpect(jsonPath("$._embedded.versionModelList.length()").value(3))
+                    .andExpect(jsonPath("$._embedded.versionModelList[*].version", contains(1, 2, 3)))
+                    .andExpect(jsonPath("$._embedded.versionModelList[*].createdAt", hasSize(3)))
+                    .andExpect(jsonPath("$._embedded.versionModelList[*].patchSize", everyItem(greaterThan(0))))
+                    .andExpect(jsonPath("$._embedded.versionModelList[*].snapshotId").doesNotHaveJsonPath())
+                    .andExpect(jsonPath("$._embedded.versionModelList[*].patient").doesNotHaveJsonPath())
+                    .andExpect(jsonPath("$._embedded.versionModelList[0]._links.self.href").value(
+                            CrudstarIntegrationTests.this.newPatientLink + "/version/1"))
+                    .andExpect(jsonPath("$.page.totalElements").value(3));
+        }
+
+        @Test
+        @Order(4)
+        @DisplayName("Should return a page of a patient's versions with their bodies")
+        public void patientVersionsWithBodies() throws Exception {
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/version/")
+                            .param("include", "body")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                    .andExpect(jsonPath("$._embedded.versionModelList.length()").value(3))
+                    .andExpect(jsonPath("$._embedded.versionModelList[0].patient.firstName").value(
                             CrudstarIntegrationTests.this.newPatientModel.getFirstName()))
-                    .andExpect(jsonPath("$._embedded.patientModelList[0]._links.keys()",
-                            containsInAnyOrder(
-                                    "self", "patches", "nextVersion", "diffAgainstNextVersion",
-                                    "diffAgainstLatestVersion", "latestVersion")))
-                    .andExpect(jsonPath("$._embedded.patientModelList[1].firstName").value(
+                    .andExpect(jsonPath("$._embedded.versionModelList[1].patient.firstName").value(
                             CrudstarIntegrationTests.this.updatedPatientModel.getFirstName()))
-                    .andExpect(jsonPath("$._embedded.patientModelList[1]._links.keys()",
-                            containsInAnyOrder(
-                                    "self", "patches", "previousVersion", "diffAgainstPreviousVersion",
-                                    "nextVersion", "diffAgainstNextVersion", "diffAgainstLatestVersion", "latestVersion")))
-                    .andExpect(jsonPath("$._embedded.patientModelList[2].firstName").value(
-                            CrudstarIntegrationTests.this.patchedPatientModel.getFirstName()))
-                    .andExpect(jsonPath("$._embedded.patientModelList[2]._links.keys()",
-                            containsInAnyOrder(
-                                    "self", "patches", "previousVersion", "diffAgainstPreviousVersion", "diff")))
-                    .andReturn();
+                    .andExpect(jsonPath("$._embedded.versionModelList[2].patient.firstName").value(
+                            CrudstarIntegrationTests.this.patchedPatientModel.getFirstName()));
+
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/version/")
+                            .param("include", "body")
+                            .param("page", "1")
+                            .param("size", "2")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                    .andExpect(jsonPath("$._embedded.versionModelList.length()").value(1))
+                    .andExpect(jsonPath("$._embedded.versionModelList[0].version").value(3))
+                    .andExpect(jsonPath("$._embedded.versionModelList[0].patient.firstName").value(
+                            CrudstarIntegrationTests.this.patchedPatientModel.getFirstName()));
         }
 
         @Test
-        @Order(4)
+        @Order(5)
         @DisplayName("Should return the diff between a patient version and its previous version")
         public void patientVersionDiffPrevious() throws Exception {
             MvcResult result = mvc.perform(get(this.diffAgainstPreviousVersionLink)
@@ -451,7 +518,7 @@ public class CrudstarIntegrationTests {
         }
 
         @Test
-        @Order(5)
+        @Order(6)
         @DisplayName("Should return the diff between a patient version and its next version")
         public void patientVersionDiffNext() throws Exception {
             MvcResult result = mvc.perform(get(this.diffAgainstNextVersionLink)
@@ -465,6 +532,205 @@ public class CrudstarIntegrationTests {
                             CrudstarIntegrationTests.this.patchedPatientModel.getFirstName()))
                     .andReturn();
         }
+
+        @Test
+        @Order(7)
+        @DisplayName("Should serve a repeated patient version from the version cache")
+        public void patientVersionCached() throws Exception {
+            mvc.perform(get(
+                    CrudstarIntegrationTests.this.newPatientLink + "/version/" + (this.latestVersion - 1))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.firstName").value(
+                            CrudstarIntegrationTests.this.updatedPatientModel.getFirstName()));
+
+            mvc.perform(get("/actuator/metrics/cache.gets")
+                            .param("tag", "cache:patient.versions", "result:hit"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.measurements[0].value").value(greaterThan(0.0)));
+        }
+
+        @Test
+        @Order(8)
+        @DisplayName("Should stream every version of a patient as newline delimited json")
+        public void patientVersionsExport() throws Exception {
+            MvcResult result = mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/version/export"))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+
+            // the export's own timeout, not the default for async requests
+            assertEquals(1800000, result.getRequest().getAsyncContext().getTimeout());
+
+            String content = mvc.perform(asyncDispatch(result))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                    .andReturn().getResponse().getContentAsString();
+
+            List<String> lines = List.of(content.split("\n"));
+            assertEquals(3, lines.size());
+            List<String> firstNames = List.of(
+                    CrudstarIntegrationTests.this.newPatientModel.getFirstName(),
+                    CrudstarIntegrationTests.this.updatedPatientModel.getFirstName(),
+                    CrudstarIntegrationTests.this.patchedPatientModel.getFirstName());
+            for (int i = 0; i < lines.size(); i++) {
+                JsonNode versionRecord = objectMapper.readTree(lines.get(i));
+                assertEquals(i + 1, versionRecord.get("version").asInt());
+                assertEquals(firstNames.get(i), versionRecord.get("patient").get("firstName").textValue());
+            }
+
+            // the same patient twice is still exported once
+            String patientId = CrudstarIntegrationTests.this.newPatientLink
+                    .substring(CrudstarIntegrationTests.this.newPatientLink.lastIndexOf('/') + 1);
+            result = mvc.perform(post("/api/patient/version/export")
+                            .content(objectMapper.writeValueAsString(List.of(patientId, patientId)))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+
+            mvc.perform(asyncDispatch(result))
+                    .andExpect(status().isOk())
+                    .andExpect(content().string(content));
+        }
+
+        @Test
+        @Order(9)
+        @DisplayName("Should squash the patches from a version to the latest into one patch")
+        public void patientPatchesSquashed() throws Exception {
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/patches/squashed")
+                            .param("from", "1")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.fromVersion").value(1))
+                    .andExpect(jsonPath("$.toVersion").value(this.latestVersion))
+                    .andExpect(jsonPath("$.patch[?(@.path == '/firstName')].value").value(contains(
+                            CrudstarIntegrationTests.this.patchedPatientModel.getFirstName())));
+
+            // from the empty document the patch builds the whole patient
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/patches/squashed")
+                            .param("to", "1")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.fromVersion").value(0))
+                    .andExpect(jsonPath("$.toVersion").value(1))
+                    .andExpect(jsonPath("$.patch[?(@.path == '/firstName')].value").value(contains(
+                            CrudstarIntegrationTests.this.newPatientModel.getFirstName())));
+        }
+
+        @Test
+        @Order(10)
+        @DisplayName("Should stream a downsampled timeline of a patient's versions")
+        public void patientVersionTimeline() throws Exception {
+            MvcResult result = mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/version/timeline")
+                            .param("points", "2"))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+
+            String content = mvc.perform(asyncDispatch(result))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                    .andReturn().getResponse().getContentAsString();
+
+            List<String> lines = List.of(content.split("\n"));
+            assertEquals(2, lines.size());
+            assertEquals(1, objectMapper.readTree(lines.get(0)).get("version").asInt());
+            assertEquals(CrudstarIntegrationTests.this.newPatientModel.getFirstName(),
+                    objectMapper.readTree(lines.get(0)).get("patient").get("firstName").textValue());
+            assertEquals(this.latestVersion, objectMapper.readTree(lines.get(1)).get("version").asInt());
+            assertEquals(CrudstarIntegrationTests.this.patchedPatientModel.getFirstName(),
+                    objectMapper.readTree(lines.get(1)).get("patient").get("firstName").textValue());
+
+            // a single slice of time holds every version, its last one is the point
+            result = mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/version/timeline")
+                            .param("points", "1")
+                            .param("by", "time"))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+
+            content = mvc.perform(asyncDispatch(result))
+                    .andExpect(status().isOk())
+                    .andReturn().getResponse().getContentAsString();
+
+            assertEquals(this.latestVersion, objectMapper.readTree(content.trim()).get("version").asInt());
+
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/version/timeline")
+                            .param("by", "random"))
+                    .andExpect(status().isBadRequest());
+        }
+
+        @Test
+        @Order(11)
+        @DisplayName("Should return every change to one field of a patient")
+        public void patientFieldHistory() throws Exception {
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/history")
+                            .param("path", "/firstName")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.page.totalElements").value(this.latestVersion))
+                    .andExpect(jsonPath("$._embedded.fieldChangeModelList[0].op").value("add"))
+                    .andExpect(jsonPath("$._embedded.fieldChangeModelList[0].value").value(
+                            CrudstarIntegrationTests.this.newPatientModel.getFirstName()))
+                    .andExpect(jsonPath("$._embedded.fieldChangeModelList[2].version").value(this.latestVersion))
+                    .andExpect(jsonPath("$._embedded.fieldChangeModelList[2].value").value(
+                            CrudstarIntegrationTests.this.patchedPatientModel.getFirstName()))
+                    .andExpect(jsonPath("$._embedded.fieldChangeModelList[2]._links.version.href").exists());
+
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/history")
+                            .param("path", "firstName")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isBadRequest());
+        }
+
+        @Test
+        @Order(12)
+        @DisplayName("Should return the version that last changed each field of a patient")
+        public void patientBlame() throws Exception {
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/blame")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$['/firstName'].version").value(this.latestVersion))
+                    .andExpect(jsonPath("$['/lastName'].version").value(1))
+                    .andExpect(jsonPath("$['/lastName'].changedAt").exists());
+
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/blame")
+                            .param("path", "/firstName")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.keys()", hasSize(1)))
+                    .andExpect(jsonPath("$['/firstName'].version").value(this.latestVersion));
+        }
+
+        @Test
+        @Order(13)
+        @DisplayName("Should return many patients as of their own versions and times in request order")
+        public void patientsAsOfBatch() throws Exception {
+            String patientId = CrudstarIntegrationTests.this.newPatientLink
+                    .substring(CrudstarIntegrationTests.this.newPatientLink.lastIndexOf('/') + 1);
+
+            String requests = "[" +
+                    "{\"patientId\": \"" + patientId + "\", \"version\": 3}," +
+                    "{\"patientId\": \"" + patientId + "\", \"version\": 1}," +
+                    "{\"patientId\": \"" + patientId + "\", \"asOf\": \"" + LocalDateTime.now() + "\"}," +
+                    "{\"patientId\": \"" + patientId + "\", \"version\": 2}," +
+                    "{\"patientId\": \"" + patientId + "\"}" +
+                    "]";
+
+            mvc.perform(post("/api/patient/asOf")
+                            .content(requests)
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                    .andExpect(jsonPath("$", hasSize(5)))
+                    .andExpect(jsonPath("$[0].firstName").value(
+                            CrudstarIntegrationTests.this.patchedPatientModel.getFirstName()))
+                    .andExpect(jsonPath("$[1].firstName").value(
+                            CrudstarIntegrationTests.this.newPatientModel.getFirstName()))
+                    .andExpect(jsonPath("$[2].firstName").value(
+                            CrudstarIntegrationTests.this.patchedPatientModel.getFirstName()))
+                    .andExpect(jsonPath("$[3].firstName").value(
+                            CrudstarIntegrationTests.this.updatedPatientModel.getFirstName()))
+                    .andExpect(jsonPath("$[4].firstName").value(
+                            CrudstarIntegrationTests.this.patchedPatientModel.getFirstName()));
+        }
     }
 
     @Order(TestStep.PATIENT_SEARCH)
@@ -870,6 +1136,50 @@ public class CrudstarIntegrationTests {
 
             CrudstarIntegrationTests.this.updatedSnapshotPatientModel = objectMapper.convertValue(root, PatientModel.class);
         }
+
+        @Test
+        @Order(2)
+        @DisplayName("Should give concurrent updates of a snapshot patient a version each")
+        public void updateSnapshotPatientConcurrently() throws Exception {
+
+            String snapshotPath = "/snapshot/" + CrudstarIntegrationTests.this.nowSnapshotId;
+
+            MvcResult result = mvc.perform(post("/api/patient" + snapshotPath)
+                            .content("{\"firstName\": \"Test-Snapshot-Concurrent\", \"lastName\": \"Update\"}")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isCreated())
+                    .andReturn();
+            String patientLink = result.getResponse().getHeader("Location").replace(snapshotPath, "");
+
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<CompletableFuture<MvcResult>> updates = IntStream.range(0, 8)
+                        .mapToObj(i -> CompletableFuture.supplyAsync(() -> {
+                            try {
+                                return mvc.perform(put(patientLink + snapshotPath)
+                                                .content("{\"firstName\": \"Test-Snapshot-Concurrent-" + i + "\", " +
+                                                        "\"lastName\": \"Update\"}")
+                                                .contentType(MediaType.APPLICATION_JSON))
+                                        .andExpect(status().isOk())
+                                        .andReturn();
+                            } catch (Exception e) {
+                                throw new RuntimeException(e);
+                            }
+                        }, executor))
+                        .collect(Collectors.toList());
+                updates.forEach(CompletableFuture::join);
+
+                mvc.perform(get(patientLink + snapshotPath + "/latestVersion")
+                                .contentType(MediaType.APPLICATION_JSON))
+                        .andExpect(status().isOk())
+                        .andExpect(content().string("9"));
+            } finally {
+                executor.shutdown();
+
+                mvc.perform(delete(patientLink))
+                        .andExpect(status().is2xxSuccessful());
+            }
+        }
     }
 
     @Order(TestStep.SNAPSHOT_PATIENT_VERSION)
@@ -919,43 +1229,57 @@ public class CrudstarIntegrationTests {
 
         @Test
         @Order(3)
-        @DisplayName("Should return a snapshot patient as of every version")
+        @DisplayName("Should return a page of a snapshot patient's versions")
         public void snapshotPatientVersions() throws Exception {
-            MvcResult result = mvc.perform(get(
+            mvc.perform(get(
                             CrudstarIntegrationTests.this.updatedPatientLink
                                     + "/snapshot/" + CrudstarIntegrationTests.this.nowSnapshotId
                                     + "/version/")
                             .contentType(MediaType.APPLICATION_JSON))
                     .andExpect(status().isOk())
                     .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
-                    .andExpect(jsonPath("$._embedded.patientModelList").exists())
-                    .andExpect(jsonPath("$._embedded.patientModelList[*].id").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("$._embedded.patientModelList.length()").value(4))
-                    .andExpect(jsonPath("$._embedded.patientModelList[*]._links.self.href", hasSize(4)))
-                    .andExpect(jsonPath("$._embedded.patientModelList[0].firstName").value(
+                    .andExpect(jsonPath("$._embedded.versionModelList.length()").value(4))
+                    .andExpect(jsonPath("$._embedded.versionModelList[*].version", contains(1, 2, 3, 4)))
+                    .andExpect(jsonPath("$._embedded.versionModelList[*].patient").doesNotHaveJsonPath())
+                    .andExpect(jsonPath("$._embedded.versionModelList[2].snapshotId").doesNotHaveJsonPath())
+                    .andExpect(jsonPath("$._embedded.versionModelList[3].snapshotId").value(
+                            CrudstarIntegrationTests.this.nowSnapshotId))
+                    .andExpect(jsonPath("$._embedded.versionModelList[3]._links.self.href").value(
+                            CrudstarIntegrationTests.this.updatedPatientLink
+                                    + "/snapshot/" + CrudstarIntegrationTests.this.nowSnapshotId + "/version/4"))
+                    .andExpect(jsonPath("$.page.totalElements").value(4));
+
+            mvc.perform(get(
+                            CrudstarIntegrationTests.this.updatedPatientLink
+                                    + "/snapshot/" + CrudstarIntegrationTests.this.nowSnapshotId
+                                    + "/version/")
+                            .param("include", "body")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                    .andExpect(jsonPath("$._embedded.versionModelList[0].patient.firstName").value(
                             CrudstarIntegrationTests.this.newPatientModel.getFirstName()))
-                    .andExpect(jsonPath("$._embedded.patientModelList[0]._links.keys()",
-                            containsInAnyOrder(
-                                    "self", "patches", "nextVersion", "diffAgainstNextVersion",
-                                    "diffAgainstLatestVersion", "latestVersion")))
-                    .andExpect(jsonPath("$._embedded.patientModelList[1].firstName").value(
+                    .andExpect(jsonPath("$._embedded.versionModelList[1].patient.firstName").value(
                             CrudstarIntegrationTests.this.updatedPatientModel.getFirstName()))
-                    .andExpect(jsonPath("$._embedded.patientModelList[1]._links.keys()",
-                            containsInAnyOrder(
-                                    "self", "patches", "previousVersion", "diffAgainstPreviousVersion",
-                                    "nextVersion", "diffAgainstNextVersion", "diffAgainstLatestVersion", "latestVersion")))
-                    .andExpect(jsonPath("$._embedded.patientModelList[2].firstName").value(
+                    .andExpect(jsonPath("$._embedded.versionModelList[2].patient.firstName").value(
                             CrudstarIntegrationTests.this.patchedPatientModel.getFirstName()))
-                    .andExpect(jsonPath("$._embedded.patientModelList[2]._links.keys()",
-                            containsInAnyOrder(
-                                    "self", "patches", "previousVersion", "diffAgainstPreviousVersion",
-                                    "nextVersion", "diffAgainstNextVersion", "diffAgainstLatestVersion", "latestVersion")))
-                    .andExpect(jsonPath("$._embedded.patientModelList[3].firstName").value(
-                            CrudstarIntegrationTests.this.updatedSnapshotPatientModel.getFirstName()))
-                    .andExpect(jsonPath("$._embedded.patientModelList[3]._links.keys()",
-                            containsInAnyOrder(
-                                    "self", "patches", "previousVersion", "diffAgainstPreviousVersion", "diff")))
-                    .andReturn();
+                    .andExpect(jsonPath("$._embedded.versionModelList[3].patient.firstName").value(
+                            CrudstarIntegrationTests.this.updatedSnapshotPatientModel.getFirstName()));
+
+            // a later page replays from its own first version
+            mvc.perform(get(
+                            CrudstarIntegrationTests.this.updatedPatientLink
+                                    + "/snapshot/" + CrudstarIntegrationTests.this.nowSnapshotId
+                                    + "/version/")
+                            .param("include", "body")
+                            .param("page", "1")
+                            .param("size", "2")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$._embedded.versionModelList[0].patient.firstName").value(
+                            CrudstarIntegrationTests.this.patchedPatientModel.getFirstName()))
+                    .andExpect(jsonPath("$._embedded.versionModelList[1].patient.firstName").value(
+                            CrudstarIntegrationTests.this.updatedSnapshotPatientModel.getFirstName()));
         }
     }
 
@@ -1064,6 +1388,89 @@ public class CrudstarIntegrationTests {
                     .andExpect(jsonPath("$.page.number").value(totalPages - 1))
                     .andReturn();
         }
+
+        @Test
+        @Order(4)
+        @DisplayName("Should return every patient once when following the next page cursors")
+        public void getPatientsAsOfCursor() throws Exception {
+
+            assertThat(nextPageLink, containsString("cursor="));
+
+            Set<String> patientLinks = new HashSet<>();
+            String pageLink = "/api/patient?asOf=" + TEST_START_TIME.format(DateTimeFormatter.ISO_DATE_TIME);
+            while (pageLink != null) {
+                MvcResult result = mvc.perform(get(pageLink)
+                                .contentType(MediaType.APPLICATION_JSON))
+                        .andExpect(status().isOk())
+                        .andExpect(jsonPath("$.page.totalElements").value(totalElements))
+                        .andReturn();
+
+                JsonNode root = objectMapper.readTree(result.getResponse().getContentAsString());
+                for (JsonNode patientModel : root.get("_embedded").get("patientModelList")) {
+                    assertTrue(patientLinks.add(patientModel.get("_links").get("self").get("href").textValue()));
+                }
+
+                JsonNode nextLink = root.get("_links").get("next");
+                pageLink = nextLink != null ? nextLink.get("href").textValue() : null;
+            }
+
+            assertEquals(totalElements, patientLinks.size());
+        }
+
+        @Test
+        @Order(5)
+        @DisplayName("Should return the same patients as of now when replaying patches in the database")
+        public void getPatientsAsOfDatabaseReplay() throws Exception {
+
+            assertSameAsJvm(PatientService.ReplayMode.DATABASE, get("/api/patient")
+                    .param("asOf", LocalDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME))
+                    .param("size", "1000"));
+        }
+
+        @Test
+        @Order(6)
+        @DisplayName("Should return the same patients as of some time when reading the history table")
+        public void getPatientsAsOfHistory() throws Exception {
+
+            for (LocalDateTime asOf : List.of(TEST_START_TIME, LocalDateTime.now())) {
+                assertSameAsJvm(PatientService.ReplayMode.HISTORY, get("/api/patient")
+                        .param("asOf", asOf.format(DateTimeFormatter.ISO_DATE_TIME))
+                        .param("size", "1000"));
+            }
+        }
+
+        @Test
+        @Order(7)
+        @DisplayName("Should return a page of patients matching the query and filters as of some time")
+        public void searchPatientsAsOf() throws Exception {
+
+            String filterParam = objectMapper.writeValueAsString(List.of(
+                    new ApiFilter("firstName", "or", List.of(new FilterConstraint(
+                            "equals", CrudstarIntegrationTests.this.patchedPatientModel.getFirstName())))));
+
+            mvc.perform(get("/api/patient")
+                            .param("asOf", LocalDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME))
+                            .param("query", CrudstarIntegrationTests.this.patchedPatientModel.getLastName())
+                            .param("filters", filterParam)
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                    .andExpect(jsonPath("$._embedded.patientModelList.length()").value(1))
+                    .andExpect(jsonPath("$._embedded.patientModelList[0].firstName").value(
+                            CrudstarIntegrationTests.this.patchedPatientModel.getFirstName()))
+                    .andExpect(jsonPath("$._embedded.patientModelList[0]._links.self.href").value(
+                            startsWith(CrudstarIntegrationTests.this.updatedPatientLink)))
+                    .andExpect(jsonPath("$.page.totalElements").value(1));
+
+            // the patient didn't exist yet
+            mvc.perform(get("/api/patient")
+                            .param("asOf", TEST_START_TIME.format(DateTimeFormatter.ISO_DATE_TIME))
+                            .param("filters", filterParam)
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                    .andExpect(jsonPath("$.page.totalElements").value(0));
+        }
     }
 
     @Order(TestStep.GET_PATIENT_AS_OF)
@@ -1120,6 +1527,18 @@ public class CrudstarIntegrationTests {
                     .andExpect(jsonPath("$.page.number").value(0))
                     .andReturn();
         }
+
+        @Test
+        @Order(3)
+        @DisplayName("Should return the same patient as of some time when reading the history table")
+        public void getPatientAsOfHistory() throws Exception {
+
+            for (String asOf : List.of(CrudstarIntegrationTests.this.nowSnapshotAsOf,
+                    LocalDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME))) {
+                assertSameAsJvm(PatientService.ReplayMode.HISTORY, get(CrudstarIntegrationTests.this.updatedPatientLink)
+                        .param("asOf", asOf));
+            }
+        }
     }
 
     @Order(TestStep.GET_SNAPSHOT_PATIENTS_AS_OF)
@@ -1227,6 +1646,65 @@ public class CrudstarIntegrationTests {
                     .andExpect(jsonPath("$.page.number").value(totalPages - 1))
                     .andReturn();
         }
+
+        @Test
+        @Order(4)
+        @DisplayName("Should return the same snapshot patients as of now when replaying patches in the database")
+        public void getSnapshotPatientsAsOfDatabaseReplay() throws Exception {
+
+            assertSameAsJvm(PatientService.ReplayMode.DATABASE,
+                    get("/api/patient/snapshot/" + CrudstarIntegrationTests.this.nowSnapshotId)
+                            .param("asOf", LocalDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME))
+                            .param("size", "1000"));
+        }
+
+        @Test
+        @Order(5)
+        @DisplayName("Should return the same snapshot patients as of some time when reading the history table")
+        public void getSnapshotPatientsAsOfHistory() throws Exception {
+
+            for (LocalDateTime asOf : List.of(TEST_START_TIME, LocalDateTime.now())) {
+                assertSameAsJvm(PatientService.ReplayMode.HISTORY,
+                        get("/api/patient/snapshot/" + CrudstarIntegrationTests.this.nowSnapshotId)
+                                .param("asOf", asOf.format(DateTimeFormatter.ISO_DATE_TIME))
+                                .param("size", "1000"));
+            }
+        }
+
+        @Test
+        @Order(6)
+        @DisplayName("Should return a page of snapshot patients matching the query and filters as of some time")
+        public void searchSnapshotPatientsAsOf() throws Exception {
+
+            // renamed within the snapshot after it was taken
+            for (PatientModel patientModel : List.of(
+                    CrudstarIntegrationTests.this.patchedPatientModel,
+                    CrudstarIntegrationTests.this.updatedSnapshotPatientModel)) {
+                String filterParam = objectMapper.writeValueAsString(List.of(
+                        new ApiFilter("firstName", "or", List.of(new FilterConstraint(
+                                "equals", patientModel.getFirstName())))));
+
+                mvc.perform(get("/api/patient/snapshot/" + CrudstarIntegrationTests.this.nowSnapshotId)
+                                .param("asOf", CrudstarIntegrationTests.this.nowSnapshotAsOf)
+                                .param("query", patientModel.getLastName())
+                                .param("filters", filterParam)
+                                .contentType(MediaType.APPLICATION_JSON))
+                        .andExpect(status().isOk())
+                        .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                        .andExpect(jsonPath("$.page.totalElements").value(
+                                patientModel == CrudstarIntegrationTests.this.patchedPatientModel ? 1 : 0));
+
+                mvc.perform(get("/api/patient/snapshot/" + CrudstarIntegrationTests.this.nowSnapshotId)
+                                .param("asOf", LocalDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME))
+                                .param("query", patientModel.getLastName())
+                                .param("filters", filterParam)
+                                .contentType(MediaType.APPLICATION_JSON))
+                        .andExpect(status().isOk())
+                        .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                        .andExpect(jsonPath("$.page.totalElements").value(
+                                patientModel == CrudstarIntegrationTests.this.patchedPatientModel ? 0 : 1));
+            }
+        }
     }
 
     @Order(TestStep.GET_SNAPSHOT_PATIENT_AS_OF)
@@ -1288,6 +1766,19 @@ public class CrudstarIntegrationTests {
                     .andExpect(jsonPath("$.page.number").value(0))
                     .andReturn();
         }
+
+        @Test
+        @Order(3)
+        @DisplayName("Should return the same snapshot patient as of some time when reading the history table")
+        public void getSnapshotPatientAsOfHistory() throws Exception {
+
+            for (String asOf : List.of(CrudstarIntegrationTests.this.nowSnapshotAsOf,
+                    LocalDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME))) {
+                assertSameAsJvm(PatientService.ReplayMode.HISTORY, get(CrudstarIntegrationTests.this.updatedPatientLink
+                        + "/snapshot/" + CrudstarIntegrationTests.this.nowSnapshotId)
+                        .param("asOf", asOf));
+            }
+        }
     }
 
     @Order(TestStep.GET_PATIENTS_AGAIN)
@@ -1608,6 +2099,335 @@ public class CrudstarIntegrationTests {
         }
     }
 
+    @Order(TestStep.REVERT_PATIENT)
+    @Nested
+    @DisplayName("Revert Patient")
+    @TestInstance(TestInstance.Lifecycle.PER_CLASS)
+    @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+    class RevertPatient {
+
+        @Test
+        @Order(1)
+        @DisplayName("Should revert a patient to its first version as a new version")
+        public void revertPatient() throws Exception {
+
+            mvc.perform(post(CrudstarIntegrationTests.this.newPatientLink + "/version/1/revert")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                    .andExpect(jsonPath("$.firstName").value(
+                            CrudstarIntegrationTests.this.newPatientModel.getFirstName()));
+
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/latestVersion")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(content().string("4"));
+
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/version/4")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.firstName").value(
+                            CrudstarIntegrationTests.this.newPatientModel.getFirstName()))
+                    .andExpect(jsonPath("$.lastName").value(
+                            CrudstarIntegrationTests.this.newPatientModel.getLastName()));
+
+            // and forward again through the inverse of the revert
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/version/3")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.firstName").value(
+                            CrudstarIntegrationTests.this.patchedPatientModel.getFirstName()));
+        }
+    }
+
+    @Order(TestStep.ROLLBACK_PATIENTS)
+    @Nested
+    @DisplayName("Rollback Patients")
+    @TestInstance(TestInstance.Lifecycle.PER_CLASS)
+    @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+    class RollbackPatients {
+
+        @Test
+        @Order(1)
+        @DisplayName("Should roll back the given patients to their state as of a time")
+        public void rollbackPatients() throws Exception {
+
+            LocalDateTime asOf = LocalDateTime.now();
+            Thread.sleep(10);
+
+            String patch = "[{\"op\": \"replace\", \"path\": \"/firstName\", \"value\": \"Test-Rollback\"}]";
+            mvc.perform(patch(CrudstarIntegrationTests.this.newPatientLink)
+                            .content(patch)
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.firstName").value("Test-Rollback"));
+
+            // a patient that doesn't exist is skipped
+            String patientId = CrudstarIntegrationTests.this.newPatientLink
+                    .substring(CrudstarIntegrationTests.this.newPatientLink.lastIndexOf('/') + 1);
+            MvcResult result = mvc.perform(post("/api/patient/rollback")
+                            .param("asOf", asOf.toString())
+                            .content(objectMapper.writeValueAsString(List.of(patientId, UUID.randomUUID())))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+
+            mvc.perform(asyncDispatch(result))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                    .andExpect(jsonPath("$.total").value(2))
+                    .andExpect(jsonPath("$.processed").value(2))
+                    .andExpect(jsonPath("$.reverted").value(1))
+                    .andExpect(jsonPath("$.skipped").value(1));
+
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink)
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.firstName").value(
+                            CrudstarIntegrationTests.this.newPatientModel.getFirstName()));
+
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink + "/latestVersion")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(content().string("6"));
+        }
+
+        @Test
+        @Order(2)
+        @DisplayName("Should roll back the patients matching the filters")
+        public void rollbackFilteredPatients() throws Exception {
+
+            String lastName = "Test-Rollback-Filter-" + UUID.randomUUID();
+            MvcResult result = mvc.perform(post("/api/patient")
+                            .content("{\"firstName\": \"Before\", \"lastName\": \"" + lastName + "\"}")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isCreated())
+                    .andReturn();
+            String patientLink = result.getResponse().getHeader("Location");
+
+            try {
+                LocalDateTime asOf = LocalDateTime.now();
+                Thread.sleep(10);
+
+                mvc.perform(patch(patientLink)
+                                .content("[{\"op\": \"replace\", \"path\": \"/firstName\", \"value\": \"After\"}]")
+                                .contentType(MediaType.APPLICATION_JSON))
+                        .andExpect(status().isOk());
+
+                List<ApiFilter> filters = List.of(new ApiFilter("lastName", "or",
+                        List.of(new FilterConstraint("equals", lastName))));
+                result = mvc.perform(post("/api/patient/rollback")
+                                .param("asOf", asOf.toString())
+                                .param("filters", objectMapper.writeValueAsString(filters)))
+                        .andExpect(request().asyncStarted())
+                        .andReturn();
+
+                mvc.perform(asyncDispatch(result))
+                        .andExpect(status().isOk())
+                        .andExpect(jsonPath("$.total").value(1))
+                        .andExpect(jsonPath("$.reverted").value(1));
+
+                mvc.perform(get(patientLink)
+                                .contentType(MediaType.APPLICATION_JSON))
+                        .andExpect(status().isOk())
+                        .andExpect(jsonPath("$.firstName").value("Before"));
+            } finally {
+                mvc.perform(delete(patientLink))
+                        .andExpect(status().is2xxSuccessful());
+            }
+        }
+    }
+
+    @Order(TestStep.CONDITIONAL_UPDATE)
+    @Nested
+    @DisplayName("Conditional Update")
+    @TestInstance(TestInstance.Lifecycle.PER_CLASS)
+    @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+    class ConditionalUpdate {
+
+        @Test
+        @Order(1)
+        @DisplayName("Should only patch a patient still at the version in If-Match")
+        public void conditionalPatch() throws Exception {
+
+            mvc.perform(get(CrudstarIntegrationTests.this.newPatientLink)
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(header().string(HttpHeaders.ETAG, "\"6\""));
+
+            String patch = "[{\"op\": \"replace\", \"path\": \"/firstName\", \"value\": \"Test-If-Match\"}]";
+
+            mvc.perform(patch(CrudstarIntegrationTests.this.newPatientLink)
+                            .header(HttpHeaders.IF_MATCH, "\"5\"")
+                            .content(patch)
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isPreconditionFailed());
+
+            mvc.perform(patch(CrudstarIntegrationTests.this.newPatientLink)
+                            .header(HttpHeaders.IF_MATCH, "\"6\"")
+                            .content(patch)
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(header().string(HttpHeaders.ETAG, "\"7\""))
+                    .andExpect(jsonPath("$.firstName").value("Test-If-Match"));
+
+            // the same version again lost the race
+            mvc.perform(put(CrudstarIntegrationTests.this.newPatientLink)
+                            .header(HttpHeaders.IF_MATCH, "\"6\"")
+                            .content(objectMapper.writeValueAsString(CrudstarIntegrationTests.this.newPatientModel))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isPreconditionFailed());
+
+            mvc.perform(put(CrudstarIntegrationTests.this.newPatientLink)
+                            .header(HttpHeaders.IF_MATCH, "W/\"7\"")
+                            .content(objectMapper.writeValueAsString(CrudstarIntegrationTests.this.newPatientModel))
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(header().string(HttpHeaders.ETAG, "\"8\""))
+                    .andExpect(jsonPath("$.firstName").value(
+                            CrudstarIntegrationTests.this.newPatientModel.getFirstName()));
+        }
+    }
+
+    @Order(TestStep.GROUP_COMMIT)
+    @Nested
+    @DisplayName("Group Commit")
+    @TestInstance(TestInstance.Lifecycle.PER_CLASS)
+    @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+    class GroupCommit {
+
+        @Test
+        @Order(1)
+        @DisplayName("Should answer each write to the same patient in a group with its own version")
+        public void groupCommitSamePatient() throws Exception {
+
+            MvcResult result = mvc.perform(post("/api/patient")
+                            .content("{\"firstName\": \"Test-Group\", \"lastName\": \"Commit\"}")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isCreated())
+                    .andReturn();
+            String patientLink = result.getResponse().getHeader("Location");
+
+            PatientGroupCommitter patientGroupCommitter = new PatientGroupCommitter(transactionManager,
+                    new SimpleMeterRegistry(), true, 100, 200);
+            Object defaultGroupCommitter = ReflectionTestUtils.getField(patientController, "patientGroupCommitter");
+            ExecutorService executor = Executors.newFixedThreadPool(10);
+            try {
+                ReflectionTestUtils.setField(patientController, "patientGroupCommitter", patientGroupCommitter);
+
+                List<CompletableFuture<MvcResult>> writes = IntStream.range(0, 10)
+                        .mapToObj(i -> CompletableFuture.supplyAsync(() -> {
+                            try {
+                                return mvc.perform(put(patientLink)
+                                                .content("{\"firstName\": \"Test-Group-" + i + "\", " +
+                                                        "\"lastName\": \"Commit\"}")
+                                                .contentType(MediaType.APPLICATION_JSON))
+                                        .andExpect(status().isOk())
+                                        .andExpect(jsonPath("$.firstName").value("Test-Group-" + i))
+                                        .andReturn();
+                            } catch (Exception e) {
+                                throw new RuntimeException(e);
+                            }
+                        }, executor))
+                        .collect(Collectors.toList());
+
+                // a write that fails in the middle of the group only fails itself
+                CompletableFuture<MvcResult> conflict = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return mvc.perform(put(patientLink)
+                                        .header(HttpHeaders.IF_MATCH, "\"1000\"")
+                                        .content("{\"firstName\": \"Test-Group-Conflict\", \"lastName\": \"Commit\"}")
+                                        .contentType(MediaType.APPLICATION_JSON))
+                                .andExpect(status().isPreconditionFailed())
+                                .andReturn();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }, executor);
+
+                Set<String> versions = new HashSet<>();
+                for (CompletableFuture<MvcResult> write : writes) {
+                    MvcResult writeResult = write.join();
+                    String version = writeResult.getResponse().getHeader(HttpHeaders.ETAG).replace("\"", "");
+                    versions.add(version);
+
+                    // the version in the etag holds the document the write answered with
+                    mvc.perform(get(patientLink + "/version/" + version)
+                                    .contentType(MediaType.APPLICATION_JSON))
+                            .andExpect(status().isOk())
+                            .andExpect(jsonPath("$.firstName").value(
+                                    objectMapper.readTree(writeResult.getResponse().getContentAsString())
+                                            .get("firstName").asText()));
+                }
+                assertEquals(10, versions.size());
+                conflict.join();
+            } finally {
+                ReflectionTestUtils.setField(patientController, "patientGroupCommitter", defaultGroupCommitter);
+                patientGroupCommitter.destroy();
+                executor.shutdown();
+
+                mvc.perform(delete(patientLink))
+                        .andExpect(status().is2xxSuccessful());
+            }
+        }
+    }
+
+    @Order(TestStep.BULK_INGEST)
+    @Nested
+    @DisplayName("Bulk Ingest")
+    @TestInstance(TestInstance.Lifecycle.PER_CLASS)
+    @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+    class BulkIngest {
+
+        @Test
+        @Order(1)
+        @DisplayName("Should bulk load patients with copy")
+        public void ingestPatients() throws Exception {
+
+            String firstName = "Test-Copy-" + UUID.randomUUID();
+            String patients = "[" +
+                    "{\"firstName\": \"" + firstName + "\", \"lastName\": \"One\", " +
+                    "\"medications\": [{\"name\": \"a \\\"quoted\\\", comma\\nname\", \"dosage\": \"5mg\"}]}," +
+                    "{\"firstName\": \"" + firstName + "\", \"lastName\": \"Two\", \"dateOfBirth\": \"1990-01-02\"}" +
+                    "]";
+
+            mvc.perform(post("/api/patient/batch")
+                            .param("copy", "true")
+                            .content(patients)
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isCreated())
+                    .andExpect(jsonPath("$.patients").value(2))
+                    .andExpect(jsonPath("$.patientsPerSecond").exists());
+
+            MvcResult result = mvc.perform(get("/api/patient/search")
+                            .param("query", firstName)
+                            .param("sort", "lastName,asc")
+                            .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$._embedded.patientModelList.length()").value(2))
+                    .andExpect(jsonPath("$._embedded.patientModelList[0].lastName").value("One"))
+                    .andExpect(jsonPath("$._embedded.patientModelList[0].medications[0].name")
+                            .value("a \"quoted\", comma\nname"))
+                    .andExpect(jsonPath("$._embedded.patientModelList[1].dateOfBirth").value("1990-01-02"))
+                    .andReturn();
+
+            JsonNode patientModels = objectMapper.readTree(result.getResponse().getContentAsString())
+                    .get("_embedded").get("patientModelList");
+            for (JsonNode patientModel : patientModels) {
+                String patientLink = patientModel.get("_links").get("self").get("href").textValue()
+                        .replaceAll("\\{.*}", "");
+
+                mvc.perform(get(patientLink + "/version/1")
+                                .contentType(MediaType.APPLICATION_JSON))
+                        .andExpect(status().isOk())
+                        .andExpect(jsonPath("$.firstName").value(firstName));
+
+                mvc.perform(delete(patientLink))
+                        .andExpect(status().is2xxSuccessful());
+            }
+        }
+    }
+
     @Order(TestStep.DELETE_SNAPSHOT)
     @Nested
     @DisplayName("Delete Snapshot")
@@ -0,0 +1,225 @@
+package com.ethanaa.crudstar;
+
+import com.ethanaa.crudstar.service.JsonPatchComposer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.flipkart.zjsonpatch.JsonDiff;
+import com.flipkart.zjsonpatch.JsonPatch;
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class JsonPatchComposerTests {
+
+    private static final int HISTORY_SIZE = 150;
+
+    private ObjectMapper objectMapper;
+    private JsonPatchComposer jsonPatchComposer;
+    private Random random;
+
+    private List<JsonNode> documents;
+    private List<JsonNode> patches;
+    private List<JsonNode> inversePatches;
+
+    @BeforeAll
+    public void setUp() {
+
+        objectMapper = new ObjectMapper();
+        jsonPatchComposer = new JsonPatchComposer();
+        random = new Random(42);
+
+        // successive edits of a document and the diffs between them, the way PatientService stores patches
+        documents = new ArrayList<>();
+        patches = new ArrayList<>();
+        inversePatches = new ArrayList<>();
+        JsonNode document = objectMapper.createObjectNode();
+        documents.add(document);
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            JsonNode nextDocument = edit(document.deepCopy());
+            patches.add(JsonDiff.asJson(document, nextDocument));
+            inversePatches.add(JsonDiff.asJson(nextDocument, document));
+            documents.add(nextDocument);
+            document = nextDocument;
+        }
+    }
+
+    @Test
+    @DisplayName("Should compose forward patches into one patch from the earlier document to the later one")
+    public void composeForward() {
+
+        for (int from = 0; from < HISTORY_SIZE; from += 7) {
+            for (int to = from + 1; to <= HISTORY_SIZE; to += 5) {
+                List<JsonNode> run = patches.subList(from, to);
+                ArrayNode composed = jsonPatchComposer.compose(run);
+
+                assertEquals(documents.get(to), JsonPatch.apply(composed, documents.get(from)), from + " -> " + to);
+                assertTrue(composed.size() <= operations(run));
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Should compose inverse patches into one patch from the later document back to the earlier one")
+    public void composeInverse() {
+
+        for (int from = 0; from < HISTORY_SIZE; from += 7) {
+            for (int to = from + 1; to <= HISTORY_SIZE; to += 5) {
+                List<JsonNode> run = new ArrayList<>(inversePatches.subList(from, to));
+                Collections.reverse(run);
+                ArrayNode composed = jsonPatchComposer.compose(run);
+
+                assertEquals(documents.get(from), JsonPatch.apply(composed, documents.get(to)), to + " -> " + from);
+                assertTrue(composed.size() <= operations(run));
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Should fold overwritten and cancelled operations away")
+    public void composeFolds() throws Exception {
+
+        List<JsonNode> run = new ArrayList<>();
+        run.add(objectMapper.readTree("[{\"op\":\"replace\",\"path\":\"/name\",\"value\":\"a\"}]"));
+        run.add(objectMapper.readTree("[{\"op\":\"add\",\"path\":\"/items/1\",\"value\":{\"name\":\"b\"}}]"));
+        run.add(objectMapper.readTree("[{\"op\":\"replace\",\"path\":\"/name\",\"value\":\"c\"}]"));
+        run.add(objectMapper.readTree("[{\"op\":\"replace\",\"path\":\"/items/1/name\",\"value\":\"d\"}]"));
+        run.add(objectMapper.readTree("[{\"op\":\"remove\",\"path\":\"/phone\"}]"));
+        run.add(objectMapper.readTree("[{\"op\":\"add\",\"path\":\"/phone\",\"value\":\"555\"}]"));
+        run.add(objectMapper.readTree("[{\"op\":\"add\",\"path\":\"/tags/0\",\"value\":\"x\"}]"));
+        run.add(objectMapper.readTree("[{\"op\":\"remove\",\"path\":\"/tags/0\"}]"));
+
+        assertEquals(objectMapper.readTree("[" +
+                        "{\"op\":\"add\",\"path\":\"/items/1\",\"value\":{\"name\":\"d\"}}," +
+                        "{\"op\":\"replace\",\"path\":\"/name\",\"value\":\"c\"}," +
+                        "{\"op\":\"replace\",\"path\":\"/phone\",\"value\":\"555\"}" +
+                        "]"),
+                jsonPatchComposer.compose(run));
+    }
+
+    @Test
+    @DisplayName("Should keep an insert / remove pair when something in between addressed the shifted array")
+    public void composeKeepsShiftedIndices() throws Exception {
+
+        JsonNode before = objectMapper.readTree("{\"medications\":[" +
+                "{\"name\":\"a\",\"dosage\":\"1\"},{\"name\":\"b\",\"dosage\":\"1\"}," +
+                "{\"name\":\"c\",\"dosage\":\"1\"}]}");
+
+        List<JsonNode> run = new ArrayList<>();
+        run.add(objectMapper.readTree(
+                "[{\"op\":\"add\",\"path\":\"/medications/0\",\"value\":{\"name\":\"x\",\"dosage\":\"1\"}}]"));
+        run.add(objectMapper.readTree("[{\"op\":\"replace\",\"path\":\"/medications/2/dosage\",\"value\":\"2\"}]"));
+        run.add(objectMapper.readTree("[{\"op\":\"remove\",\"path\":\"/medications/0\"}]"));
+
+        JsonNode after = before;
+        for (JsonNode patch : run) {
+            after = JsonPatch.apply(patch, after);
+        }
+
+        assertEquals("2", after.at("/medications/1/dosage").asText());
+        assertEquals(after, JsonPatch.apply(jsonPatchComposer.compose(run), before));
+    }
+
+    @Test
+    @DisplayName("Should revert across an insert, an edit and a remove in an array")
+    public void composeRevertAcrossArrayShifts() throws Exception {
+
+        // created, something inserted at the front, the shifted element edited, the insert taken out again
+        List<JsonNode> versions = new ArrayList<>();
+        versions.add(objectMapper.readTree("{\"medications\":[" +
+                "{\"name\":\"a\",\"dosage\":\"1\"},{\"name\":\"b\",\"dosage\":\"1\"}]}"));
+        versions.add(objectMapper.readTree("{\"medications\":[{\"name\":\"x\",\"dosage\":\"1\"}," +
+                "{\"name\":\"a\",\"dosage\":\"1\"},{\"name\":\"b\",\"dosage\":\"1\"}]}"));
+        versions.add(objectMapper.readTree("{\"medications\":[{\"name\":\"x\",\"dosage\":\"1\"}," +
+                "{\"name\":\"a\",\"dosage\":\"1\"},{\"name\":\"b\",\"dosage\":\"2\"}]}"));
+        versions.add(objectMapper.readTree("{\"medications\":[" +
+                "{\"name\":\"a\",\"dosage\":\"1\"},{\"name\":\"b\",\"dosage\":\"2\"}]}"));
+
+        // newest first, the way a revert reads them
+        List<JsonNode> run = new ArrayList<>();
+        for (int i = versions.size() - 1; i > 0; i--) {
+            run.add(JsonDiff.asJson(versions.get(i), versions.get(i - 1)));
+        }
+
+        assertEquals(versions.get(0), JsonPatch.apply(jsonPatchComposer.compose(run), versions.get(3)));
+    }
+
+    private int operations(List<JsonNode> run) {
+        return run.stream().mapToInt(JsonNode::size).sum();
+    }
+
+    private JsonNode edit(JsonNode document) {
+
+        ObjectNode object = (ObjectNode) document;
+        ArrayNode items = object.has("items") ? (ArrayNode) object.get("items") : object.putArray("items");
+
+        switch (random.nextInt(7)) {
+            case 0:
+                object.put("name", randomString());
+                break;
+            case 1:
+                if (random.nextBoolean()) {
+                    object.put("address", randomString());
+                } else {
+                    object.remove("address");
+                }
+                break;
+            case 2:
+                items.insert(random.nextInt(items.size() + 1), randomItem());
+                break;
+            case 3:
+                if (items.size() > 0) {
+                    items.remove(random.nextInt(items.size()));
+                }
+                break;
+            case 4:
+                if (items.size() > 0) {
+                    ObjectNode item = (ObjectNode) items.get(random.nextInt(items.size()));
+                    item.put("dosage", randomString());
+                    ((ArrayNode) item.get("tags")).add(randomString());
+                }
+                break;
+            case 5:
+                if (items.size() > 0) {
+                    ArrayNode tags = (ArrayNode) items.get(random.nextInt(items.size())).get("tags");
+                    if (tags.size() > 0) {
+                        tags.remove(random.nextInt(tags.size()));
+                    }
+                }
+                break;
+            default:
+                object.put("name", randomString());
+                object.put("phone", "555" + random.nextInt(10000000));
+                break;
+        }
+
+        return document;
+    }
+
+    private ObjectNode randomItem() {
+
+        ObjectNode item = objectMapper.createObjectNode();
+        item.put("name", randomString());
+        item.put("dosage", random.nextInt(500) + "mg");
+        item.putArray("tags").add(randomString());
+
+        return item;
+    }
+
+    private String randomString() {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,70 @@
+package com.ethanaa.crudstar;
+
+import com.ethanaa.crudstar.model.persist.patient.FieldBlame;
+import com.ethanaa.crudstar.service.PatientBlame;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.*;
+
+import java.time.LocalDateTime;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class PatientBlameTests {
+
+    private ObjectMapper objectMapper;
+    private PatientBlame patientBlame;
+
+    @BeforeAll
+    public void setUp() {
+
+        objectMapper = new ObjectMapper();
+        patientBlame = new PatientBlame();
+    }
+
+    @Test
+    @DisplayName("Should blame the last write at a path, its ancestors or below it")
+    public void blameFields() throws Exception {
+
+        SortedMap<String, FieldBlame> blame = new TreeMap<>();
+        record(blame, 2, "[{\"op\":\"replace\",\"path\":\"/firstName\",\"value\":\"a\"}," +
+                "{\"op\":\"replace\",\"path\":\"/medications/0/dosage\",\"value\":\"5mg\"}]");
+        record(blame, 3, "[{\"op\":\"replace\",\"path\":\"/medications/1/dosage\",\"value\":\"10mg\"}]");
+        record(blame, 4, "[{\"op\":\"remove\",\"path\":\"/address\"}]");
+
+        assertEquals(2, patientBlame.resolve(blame, "/firstName").getVersion());
+        assertEquals(2, patientBlame.resolve(blame, "/medications/0/dosage").getVersion());
+        assertEquals(3, patientBlame.resolve(blame, "/medications").getVersion());
+        assertNull(patientBlame.resolve(blame, "/lastName"));
+        assertNull(patientBlame.resolve(blame, "/address"));
+
+        record(blame, 5, "[{\"op\":\"replace\",\"path\":\"/medications\",\"value\":[]}]");
+
+        assertEquals(5, patientBlame.resolve(blame, "/medications/0/dosage").getVersion());
+        assertFalse(blame.containsKey("/medications/1/dosage"));
+    }
+
+    @Test
+    @DisplayName("Should blame inserts and removes in an array on the array")
+    public void blameArrays() throws Exception {
+
+        SortedMap<String, FieldBlame> blame = new TreeMap<>();
+        record(blame, 2, "[{\"op\":\"replace\",\"path\":\"/medications/1/dosage\",\"value\":\"10mg\"}]");
+        record(blame, 3, "[{\"op\":\"add\",\"path\":\"/medications/0\",\"value\":{\"name\":\"a\"}}]");
+
+        // what was /medications/1 is /medications/2 now, the array as a whole is blamed instead
+        assertEquals(1, blame.size());
+        assertEquals(3, patientBlame.resolve(blame, "/medications/2/dosage").getVersion());
+
+        record(blame, 4, "[{\"op\":\"remove\",\"path\":\"/medications/0\"}]");
+
+        assertEquals(4, patientBlame.resolve(blame, "/medications/0/name").getVersion());
+    }
+
+    private void record(SortedMap<String, FieldBlame> blame, long version, String patch) throws Exception {
+
+        patientBlame.record(blame, objectMapper.readTree(patch), version, LocalDateTime.now());
+    }
+}
@@ -0,0 +1,160 @@
+package com.ethanaa.crudstar;
+
+import com.ethanaa.crudstar.service.PatientGroupCommitter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class PatientGroupCommitterTests {
+
+    private static final int WRITERS = 8;
+    private static final int WRITES_PER_WRITER = 25;
+
+    private AtomicInteger commits;
+    private AtomicInteger rollbacks;
+
+    private PatientGroupCommitter patientGroupCommitter;
+    private ExecutorService writers;
+
+    @BeforeAll
+    public void setUp() {
+
+        commits = new AtomicInteger();
+        rollbacks = new AtomicInteger();
+
+        // counts transactions instead of running them, a write's savepoint isn't a transaction of its own
+        PlatformTransactionManager transactionManager = new PlatformTransactionManager() {
+
+            @Override
+            public TransactionStatus getTransaction(TransactionDefinition definition) {
+                return new SimpleTransactionStatus(
+                        definition.getPropagationBehavior() != TransactionDefinition.PROPAGATION_NESTED);
+            }
+
+            @Override
+            public void commit(TransactionStatus status) {
+                if (status.isNewTransaction()) {
+                    commits.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void rollback(TransactionStatus status) {
+                rollbacks.incrementAndGet();
+            }
+        };
+
+        patientGroupCommitter = new PatientGroupCommitter(
+                transactionManager, new SimpleMeterRegistry(), true, 100, 20);
+        writers = Executors.newFixedThreadPool(WRITERS);
+    }
+
+    @AfterAll
+    public void tearDown() {
+
+        writers.shutdownNow();
+        patientGroupCommitter.destroy();
+    }
+
+    @BeforeEach
+    public void reset() {
+
+        commits.set(0);
+        rollbacks.set(0);
+    }
+
+    @Test
+    @DisplayName("Should commit concurrent writes together and keep each writer's writes in order")
+    public void groupCommit() throws Exception {
+
+        Map<Integer, List<Integer>> applied = new ConcurrentHashMap<>();
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int writer = 0; writer < WRITERS; writer++) {
+            int patient = writer;
+            futures.add(writers.submit(() -> {
+                for (int write = 0; write < WRITES_PER_WRITER; write++) {
+                    int version = write;
+                    int result = patientGroupCommitter.write(() -> {
+                        applied.computeIfAbsent(patient, p -> Collections.synchronizedList(new ArrayList<>()))
+                                .add(version);
+                        return version;
+                    });
+                    assertEquals(version, result);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+
+        for (int patient = 0; patient < WRITERS; patient++) {
+            List<Integer> versions = applied.get(patient);
+            for (int write = 0; write < WRITES_PER_WRITER; write++) {
+                assertEquals(write, versions.get(write));
+            }
+        }
+        assertTrue(commits.get() < WRITERS * WRITES_PER_WRITER, commits.get() + " commits");
+        assertEquals(0, rollbacks.get());
+    }
+
+    @Test
+    @DisplayName("Should only fail the caller whose write failed")
+    public void failedWrite() throws Exception {
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // hold the committer up so the next writes queue behind it and go out together
+        Future<Integer> blocking = writers.submit(() -> patientGroupCommitter.write(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return 0;
+        }));
+        started.await();
+
+        AtomicInteger goodWrites = new AtomicInteger();
+        Future<Integer> good = writers.submit(() -> patientGroupCommitter.write(() -> {
+            goodWrites.incrementAndGet();
+            return 1;
+        }));
+        Future<Integer> bad = writers.submit(() -> patientGroupCommitter.write(() -> {
+            throw new IllegalArgumentException("bad write");
+        }));
+        Future<Integer> alsoGood = writers.submit(() -> patientGroupCommitter.write(() -> {
+            goodWrites.incrementAndGet();
+            return 2;
+        }));
+
+        Thread.sleep(100);
+        release.countDown();
+
+        assertEquals(0, blocking.get(30, TimeUnit.SECONDS));
+        assertEquals(1, good.get(30, TimeUnit.SECONDS));
+        assertEquals(2, alsoGood.get(30, TimeUnit.SECONDS));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> bad.get(30, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalArgumentException);
+        assertTrue(rollbacks.get() >= 1);
+
+        // rolled back to its savepoint, the rest of the group committed without running again
+        assertEquals(2, goodWrites.get());
+    }
+}
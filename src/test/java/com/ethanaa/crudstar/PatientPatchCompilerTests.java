@@ -0,0 +1,283 @@
+package com.ethanaa.crudstar;
+
+import com.ethanaa.crudstar.model.persist.patient.FollowUp;
+import com.ethanaa.crudstar.model.persist.patient.Medication;
+import com.ethanaa.crudstar.model.persist.patient.Patient;
+import com.ethanaa.crudstar.service.PatientPatchCompiler;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.flipkart.zjsonpatch.JsonDiff;
+import com.flipkart.zjsonpatch.JsonPatch;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.*;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class PatientPatchCompilerTests {
+
+    private static final int HISTORY_SIZE = 200;
+    private static final int BENCHMARK_ROUNDS = 50;
+
+    private ObjectMapper objectMapper;
+    private PatientPatchCompiler patientPatchCompiler;
+    private Random random;
+
+    private List<UUID> patchIds;
+    private List<String> patches;
+
+    @BeforeAll
+    public void setUp() throws Exception {
+
+        // same settings as JacksonConfig
+        objectMapper = new ObjectMapper();
+        objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        objectMapper.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+        objectMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_EMPTY);
+        objectMapper.findAndRegisterModules();
+
+        patientPatchCompiler = new PatientPatchCompiler(objectMapper, new SimpleMeterRegistry(), 100000);
+        random = new Random(42);
+
+        // diffs between successive edits of a patient, the way PatientService.update() writes them
+        patchIds = new ArrayList<>();
+        patches = new ArrayList<>();
+        JsonNode patientJson = objectMapper.createObjectNode();
+        Patient patient = randomPatient();
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            JsonNode nextPatientJson = objectMapper.valueToTree(patient);
+            patchIds.add(UUID.randomUUID());
+            patches.add(objectMapper.writeValueAsString(JsonDiff.asJson(patientJson, nextPatientJson)));
+            patientJson = nextPatientJson;
+            patient = edit(objectMapper.convertValue(patientJson, Patient.class));
+        }
+    }
+
+    @Test
+    @DisplayName("Should replay compiled patches to the same patient as zjsonpatch")
+    public void compiledReplayMatchesJsonPatch() {
+
+        JsonNode patientJson = objectMapper.createObjectNode();
+        Patient patient = new Patient();
+        for (int i = 0; i < patches.size(); i++) {
+            JsonPatch.applyInPlace(readTree(patches.get(i)), patientJson);
+            patientPatchCompiler.compile(patchIds.get(i), patches.get(i)).apply(patient);
+
+            assertEquals(
+                    objectMapper.valueToTree(objectMapper.convertValue(patientJson, Patient.class)),
+                    objectMapper.valueToTree(patient),
+                    "version " + (i + 1));
+        }
+    }
+
+    @Test
+    @DisplayName("Should compile every generated patch to typed operations")
+    public void compileGeneratedPatches() {
+
+        long typed = patches.stream()
+                .filter(patch -> patientPatchCompiler.compile(patch).isTyped())
+                .count();
+        assertEquals(patches.size(), typed);
+    }
+
+    @Test
+    @DisplayName("Should fall back to zjsonpatch for operations it can't compile")
+    public void fallbackToJsonPatch() {
+
+        Patient patient = objectMapper.convertValue(replayJson(patches.size()), Patient.class);
+        String patch = "[" +
+                "{\"op\":\"test\",\"path\":\"/firstName\",\"value\":\"" + patient.getFirstName() + "\"}," +
+                "{\"op\":\"copy\",\"from\":\"/firstName\",\"path\":\"/lastName\"}" +
+                "]";
+
+        PatientPatchCompiler.CompiledPatch compiledPatch = patientPatchCompiler.compile(patch);
+        compiledPatch.apply(patient);
+
+        assertFalse(compiledPatch.isTyped());
+        assertEquals(patient.getFirstName(), patient.getLastName());
+    }
+
+    // timing, so out of the default suite: mvn test -Pbenchmark
+    @Test
+    @Tag("benchmark")
+    @DisplayName("Should replay compiled patches faster than zjsonpatch")
+    public void benchmark(TestReporter testReporter) {
+
+        // warm up both routes, the compiled patches stay cached by patch id
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            replayJson(patches.size());
+            replayCompiled();
+        }
+
+        long jsonNanos = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            objectMapper.convertValue(replayJson(patches.size()), Patient.class);
+        }
+        jsonNanos = System.nanoTime() - jsonNanos;
+
+        long compiledNanos = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            replayCompiled();
+        }
+        compiledNanos = System.nanoTime() - compiledNanos;
+
+        long replayedPatches = (long) BENCHMARK_ROUNDS * patches.size();
+        String result = "zjsonpatch: " + jsonNanos / replayedPatches + " ns, compiled: "
+                + compiledNanos / replayedPatches + " ns per patch";
+        testReporter.publishEntry("benchmark", result);
+
+        assertTrue(compiledNanos < jsonNanos, result);
+    }
+
+    private JsonNode replayJson(int numPatches) {
+
+        JsonNode patientJson = objectMapper.createObjectNode();
+        for (int i = 0; i < numPatches; i++) {
+            JsonPatch.applyInPlace(readTree(patches.get(i)), patientJson);
+        }
+
+        return patientJson;
+    }
+
+    private Patient replayCompiled() {
+
+        Patient patient = new Patient();
+        for (int i = 0; i < patches.size(); i++) {
+            patientPatchCompiler.compile(patchIds.get(i), patches.get(i)).apply(patient);
+        }
+
+        return patient;
+    }
+
+    private JsonNode readTree(String patch) {
+
+        try {
+            return objectMapper.readTree(patch);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Patient randomPatient() {
+
+        Patient patient = new Patient();
+        patient.setFirstName(randomString());
+        patient.setLastName(randomString());
+        patient.setDateOfBirth(LocalDate.of(1930 + random.nextInt(80), 1 + random.nextInt(12), 1 + random.nextInt(28)));
+        patient.setMedicalRecordNumber(randomString());
+        patient.setAddress(randomString());
+        patient.setPhoneNumber("555" + random.nextInt(10000000));
+        patient.setMedications(new ArrayList<>());
+        patient.setFollowUps(new ArrayList<>());
+
+        return patient;
+    }
+
+    private Patient edit(Patient patient) {
+
+        if (patient.getMedications() == null) {
+            patient.setMedications(new ArrayList<>());
+        }
+        if (patient.getFollowUps() == null) {
+            patient.setFollowUps(new ArrayList<>());
+        }
+
+        switch (random.nextInt(9)) {
+            case 0:
+                patient.setFirstName(randomString());
+                break;
+            case 1:
+                patient.setAddress(random.nextBoolean() ? randomString() : null);
+                break;
+            case 2:
+                patient.setDateOfBirth(patient.getDateOfBirth().plusDays(1));
+                break;
+            case 3:
+                patient.getMedications().add(random.nextInt(patient.getMedications().size() + 1), randomMedication());
+                break;
+            case 4:
+                if (!patient.getMedications().isEmpty()) {
+                    patient.getMedications().remove(random.nextInt(patient.getMedications().size()));
+                }
+                break;
+            case 5:
+                if (!patient.getMedications().isEmpty()) {
+                    Medication medication = patient.getMedications().get(random.nextInt(patient.getMedications().size()));
+                    medication.setDosage(randomString());
+                    medication.setEndDate(LocalDate.of(2022, 1 + random.nextInt(12), 1 + random.nextInt(28)));
+                }
+                break;
+            case 6:
+                patient.getFollowUps().add(randomFollowUp());
+                break;
+            case 7:
+                if (!patient.getFollowUps().isEmpty()) {
+                    FollowUp followUp = patient.getFollowUps().get(random.nextInt(patient.getFollowUps().size()));
+                    followUp.setDate(followUp.getDate().plusHours(1));
+                    if (followUp.getNatures() == null) {
+                        followUp.setNatures(new ArrayList<>());
+                    }
+                    followUp.getNatures().add(randomEnum(FollowUp.Nature.values()));
+                    if (followUp.getMedications() == null) {
+                        followUp.setMedications(new ArrayList<>());
+                    }
+                    followUp.getMedications().add(randomMedication());
+                }
+                break;
+            default:
+                if (!patient.getFollowUps().isEmpty()) {
+                    patient.getFollowUps().remove(random.nextInt(patient.getFollowUps().size()));
+                }
+                break;
+        }
+
+        return patient;
+    }
+
+    private Medication randomMedication() {
+
+        Medication medication = new Medication();
+        medication.setName(randomString());
+        medication.setDosage(random.nextInt(500) + "mg");
+        medication.setStartDate(LocalDate.of(2020, 1 + random.nextInt(12), 1 + random.nextInt(28)));
+
+        return medication;
+    }
+
+    private FollowUp randomFollowUp() {
+
+        FollowUp followUp = new FollowUp();
+        followUp.setDate(LocalDateTime.of(2022, 1 + random.nextInt(12), 1 + random.nextInt(28), random.nextInt(24), 0));
+        followUp.setType(randomEnum(FollowUp.Type.values()));
+        List<FollowUp.Nature> natures = new ArrayList<>();
+        natures.add(randomEnum(FollowUp.Nature.values()));
+        followUp.setNatures(natures);
+
+        return followUp;
+    }
+
+    private <E> E randomEnum(E[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private String randomString() {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+
+        return sb.toString();
+    }
+}
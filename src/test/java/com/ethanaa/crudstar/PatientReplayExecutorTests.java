@@ -0,0 +1,65 @@
+package com.ethanaa.crudstar;
+
+import com.ethanaa.crudstar.service.PatientReplayExecutor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.*;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class PatientReplayExecutorTests {
+
+    private PatientReplayExecutor patientReplayExecutor;
+
+    @BeforeAll
+    public void setUp() {
+
+        patientReplayExecutor = new PatientReplayExecutor(new SimpleMeterRegistry(), 4, 4);
+    }
+
+    @AfterAll
+    public void tearDown() {
+
+        patientReplayExecutor.destroy();
+    }
+
+    @Test
+    @DisplayName("Should replay patients on several threads and return them in their original order")
+    public void mapInOrder() {
+
+        List<Integer> patients = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+
+        List<String> replayed = patientReplayExecutor.map(patients, patient -> {
+            threads.add(Thread.currentThread().getName());
+            return "patient " + patient;
+        });
+
+        assertEquals(patients.stream().map(patient -> "patient " + patient).collect(Collectors.toList()), replayed);
+        assertTrue(threads.contains(Thread.currentThread().getName()));
+        assertTrue(threads.size() > 1);
+    }
+
+    @Test
+    @DisplayName("Should rethrow a failed replay on the calling thread")
+    public void mapFailure() {
+
+        List<Integer> patients = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> patientReplayExecutor.map(patients,
+                patient -> {
+                    if (patient == 0) {
+                        throw new IllegalStateException("patient " + patient);
+                    }
+                    return patient;
+                }));
+
+        assertEquals("patient 0", e.getMessage());
+    }
+}